@@ -16,10 +16,12 @@
 package com.squareup.okhttp.benchmarks;
 
 import com.google.caliper.Param;
+import com.google.caliper.api.SkipThisScenarioException;
 import com.google.caliper.model.ArbitraryMeasurement;
 import com.google.caliper.runner.CaliperMain;
 import com.squareup.okhttp.Protocol;
 import com.squareup.okhttp.internal.SslContextBuilder;
+import com.squareup.okhttp.internal.Util;
 import com.squareup.okhttp.mockwebserver.Dispatcher;
 import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.MockWebServer;
@@ -32,6 +34,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -82,6 +86,14 @@ public class Benchmark extends com.google.caliper.Benchmark {
   @Param({ "0", "20" })
   int headerCount;
 
+  /**
+   * True to run requests on virtual threads. This requires Java 24 or newer.
+   * Run with {@code -Dokhttp.virtualThreads=true} to also run OkHttp's SPDY
+   * connections on virtual threads.
+   */
+  @Param
+  boolean virtualThreads;
+
   /** Which ALPN/NPN protocols are in use. Only useful with TLS. */
   List<Protocol> protocols = Arrays.asList(Protocol.HTTP_11);
 
@@ -97,6 +109,7 @@ public class Benchmark extends com.google.caliper.Benchmark {
   @ArbitraryMeasurement(description = "requests per second")
   public double run() throws Exception {
     if (VERBOSE) System.out.println(toString());
+    if (virtualThreads && !Util.supportsVirtualThreads()) throw new SkipThisScenarioException();
     HttpClient httpClient = client.create();
 
     // Prepare the client & server
@@ -144,12 +157,20 @@ public class Benchmark extends com.google.caliper.Benchmark {
     if (tls) modifiers.add("tls");
     if (gzip) modifiers.add("gzip");
     if (chunked) modifiers.add("chunked");
+    if (virtualThreads) modifiers.add("virtualThreads");
     modifiers.addAll(protocols);
 
     return String.format("%s %s\nbodyByteCount=%s headerCount=%s concurrencyLevel=%s",
         client, modifiers, bodyByteCount, headerCount, concurrencyLevel);
   }
 
+  /** Returns a factory for the threads that clients use to execute requests. */
+  ThreadFactory threadFactory() {
+    return virtualThreads
+        ? Util.virtualThreadFactory("Benchmark")
+        : Executors.defaultThreadFactory();
+  }
+
   private void sleep(int millis) {
     try {
       Thread.sleep(millis);
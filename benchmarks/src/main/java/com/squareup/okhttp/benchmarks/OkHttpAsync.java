@@ -49,7 +49,8 @@ class OkHttpAsync implements HttpClient {
     client = new OkHttpClient();
     client.setProtocols(benchmark.protocols);
     client.setDispatcher(new Dispatcher(new ThreadPoolExecutor(benchmark.concurrencyLevel,
-        benchmark.concurrencyLevel, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>())));
+        benchmark.concurrencyLevel, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        benchmark.threadFactory())));
 
     if (benchmark.tls) {
       SSLContext sslContext = SslContextBuilder.localhost();
@@ -30,7 +30,7 @@ abstract class SynchronousHttpClient implements HttpClient {
   @Override public void prepare(Benchmark benchmark) {
     this.targetBacklog = benchmark.targetBacklog;
     executor = new ThreadPoolExecutor(benchmark.concurrencyLevel, benchmark.concurrencyLevel,
-        1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), benchmark.threadFactory());
   }
 
   @Override public void enqueue(URL url) {
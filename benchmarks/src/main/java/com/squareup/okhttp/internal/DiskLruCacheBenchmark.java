@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Reads and writes a shared {@link DiskLruCache} from many threads, the way
+ * concurrent requests use a response cache. Each operation picks a random key
+ * and either reads its values or replaces them:
+ *
+ * <ul>
+ *   <li>{@code read-heavy}: 5% of operations are writes, like a warm cache.
+ *   <li>{@code write-heavy}: 50% of operations are writes, like a cold cache.
+ * </ul>
+ *
+ * {@link #main} runs each mix with 1, 8 and 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskLruCacheBenchmark {
+  private static final int[] THREAD_COUNTS = { 1, 8, 64 };
+  private static final int KEY_COUNT = 1000;
+  private static final int VALUE_SIZE = 1024;
+
+  @Param({ "read-heavy", "write-heavy" })
+  String mix;
+
+  private int writePercent;
+  private File directory;
+  private DiskLruCache cache;
+  private final byte[] value = new byte[VALUE_SIZE];
+
+  @Setup public void setup() throws IOException {
+    if (mix.equals("read-heavy")) {
+      writePercent = 5;
+    } else if (mix.equals("write-heavy")) {
+      writePercent = 50;
+    } else {
+      throw new IllegalArgumentException(mix);
+    }
+
+    directory = new File(System.getProperty("java.io.tmpdir"), "DiskLruCache-" + UUID.randomUUID());
+    cache = DiskLruCache.open(directory, 1, 2, Long.MAX_VALUE);
+    for (int i = 0; i < KEY_COUNT; i++) {
+      write("k" + i);
+    }
+  }
+
+  @TearDown public void tearDown() throws IOException {
+    cache.delete();
+    directory.delete();
+  }
+
+  /** Per-thread state, so threads don't contend on a shared random. */
+  @State(Scope.Thread)
+  public static class Operations {
+    final Random random = new Random();
+    final byte[] readBuffer = new byte[VALUE_SIZE];
+  }
+
+  @Benchmark public int readOrWrite(Operations operations) throws IOException {
+    String key = "k" + operations.random.nextInt(KEY_COUNT);
+    if (operations.random.nextInt(100) < writePercent) {
+      return write(key) ? 1 : 0;
+    } else {
+      return read(key, operations.readBuffer);
+    }
+  }
+
+  private boolean write(String key) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    if (editor == null) return false; // Another thread is writing this key.
+    for (int i = 0; i < 2; i++) {
+      OutputStream out = editor.newOutputStream(i);
+      out.write(value);
+      out.close();
+    }
+    editor.commit();
+    return true;
+  }
+
+  private int read(String key, byte[] buffer) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    if (snapshot == null) return 0;
+    try {
+      int result = 0;
+      for (int i = 0; i < 2; i++) {
+        InputStream in = snapshot.getInputStream(i);
+        for (int count; (count = in.read(buffer)) != -1; ) {
+          result += count;
+        }
+      }
+      return result;
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    for (int threads : THREAD_COUNTS) {
+      new Runner(new OptionsBuilder()
+          .include(DiskLruCacheBenchmark.class.getName())
+          .threads(threads)
+          .build()).run();
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.spdy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
+import okio.OkBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Decodes a sequence of header blocks with {@link HpackDraft05.Reader}. Each
+ * operation decodes every block of a scenario into a new reader:
+ *
+ * <ul>
+ *   <li>{@code large}: blocks of 500 headers in a 64 KiB header table. Half
+ *       of the headers repeat and half change on every block, so the table
+ *       holds over a thousand entries and each new entry evicts an old one.
+ *   <li>{@code evicting}: blocks of 10 headers whose values change on every
+ *       block, so almost every insert into a 256 byte table evicts an entry.
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HpackBenchmark {
+  private static final int BLOCK_COUNT = 50;
+
+  @Param({ "large", "evicting" })
+  String scenario;
+
+  private int maxHeaderTableByteCount;
+  private ByteString[] blocks;
+
+  @Setup public void setup() throws IOException {
+    int headersPerBlock;
+    int repeatedHeaders;
+    if (scenario.equals("large")) {
+      maxHeaderTableByteCount = 65536;
+      headersPerBlock = 500;
+      repeatedHeaders = 250;
+    } else if (scenario.equals("evicting")) {
+      maxHeaderTableByteCount = 256;
+      headersPerBlock = 10;
+      repeatedHeaders = 0;
+    } else {
+      throw new IllegalArgumentException(scenario);
+    }
+
+    OkBuffer buffer = new OkBuffer();
+    HpackDraft05.Writer writer =
+        new HpackDraft05.Writer(true, maxHeaderTableByteCount, buffer);
+    blocks = new ByteString[BLOCK_COUNT];
+    for (int b = 0; b < BLOCK_COUNT; b++) {
+      List<Header> headerBlock = new ArrayList<Header>();
+      for (int h = 0; h < headersPerBlock; h++) {
+        int value = h < repeatedHeaders ? 0 : b;
+        headerBlock.add(new Header("x-header-" + h, "value-" + value));
+      }
+      writer.writeHeaders(headerBlock);
+      blocks[b] = buffer.readByteString(buffer.size());
+    }
+  }
+
+  @Benchmark public long decode() throws IOException {
+    OkBuffer source = new OkBuffer();
+    HpackDraft05.Reader reader = new HpackDraft05.Reader(false, maxHeaderTableByteCount, source);
+    long result = 0;
+    for (ByteString block : blocks) {
+      source.write(block);
+      reader.readHeaders();
+      reader.emitReferenceSet();
+      result += reader.getAndReset().size();
+    }
+    return result;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(HpackBenchmark.class.getName())
+        .build()).run();
+  }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.spdy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
+import okio.OkBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares {@link Huffman.Codec} with the tree-walking decoder and the
+ * stream encoder it replaced. Each operation codes every header value of a
+ * typical request or response. This lives in the {@code spdy} package because
+ * the codec isn't public API.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HuffmanBenchmark {
+  /** Header values sent by browsers and mobile clients. */
+  static final String[] REQUEST_CORPUS = {
+      "GET",
+      "https",
+      "www.example.com",
+      "/api/v2/users/8675309/timeline?count=50&since_id=4242424242&include_entities=true",
+      "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_9_2) AppleWebKit/537.36 (KHTML, like Gecko) "
+          + "Chrome/34.0.1847.116 Safari/537.36",
+      "text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8",
+      "gzip,deflate,sdch",
+      "en-US,en;q=0.8",
+      "max-age=0",
+      "__utma=111872281.1546523218.1397254810.1397254810.1397254810.1; "
+          + "__utmz=111872281.1397254810.1.1.utmcsr=(direct)|utmccn=(direct)|utmcmd=(none); "
+          + "session=eyJ1c2VyX2lkIjo4Njc1MzA5fQ.BmVtJw.fQ2c7yP3kX9h1bLw",
+      "https://www.example.com/search?q=okhttp&ie=UTF-8",
+      "\"5d8c72a5edda8d6a:0\"",
+      "Sat, 12 Apr 2014 22:04:37 GMT",
+      "Bearer 8f14e45fceea167a5a36dedd4bea2543",
+      "application/json; charset=utf-8",
+  };
+
+  /** Header values returned by web servers and CDNs. */
+  static final String[] RESPONSE_CORPUS = {
+      "200",
+      "Sat, 12 Apr 2014 22:04:37 GMT",
+      "Apache/2.2.22 (Ubuntu)",
+      "text/html; charset=UTF-8",
+      "private, max-age=0, must-revalidate",
+      "Thu, 01 Jan 1970 00:00:00 GMT",
+      "\"1a2b3c4d5e6f7a8b9c0d\"",
+      "Fri, 11 Apr 2014 17:39:12 GMT",
+      "gzip",
+      "Accept-Encoding, User-Agent",
+      "PREF=ID=4c8e4a0ef1c5e7a1:FF=0:TM=1397254810:LM=1397254810:S=kJ8bJ8fQ2c7yP3kX; "
+          + "expires=Mon, 11-Apr-2016 22:20:10 GMT; path=/; domain=.example.com",
+      "SID=DQAAAL8AAACp5jvQf2c7yP3kX9h1bLwBmVtJw; Path=/; Secure; HttpOnly",
+      "https://www.example.com/account/login?continue=%2Fapi%2Fv2%2Fusers",
+      "max-age=31536000; includeSubDomains",
+      "SAMEORIGIN",
+      "1; mode=block",
+      "HIT",
+      "cache-sjc3128-SJC",
+  };
+
+  @Param({ "request", "response" })
+  String corpus;
+
+  private Huffman.Codec codec;
+  private TreeCodec treeCodec;
+  private ByteString[] values;
+  private byte[][] encodedArrays;
+  private final OkBuffer buffer = new OkBuffer();
+
+  @Setup public void setup() throws IOException {
+    String[] strings;
+    if (corpus.equals("request")) {
+      codec = Huffman.Codec.REQUEST;
+      strings = REQUEST_CORPUS;
+    } else if (corpus.equals("response")) {
+      codec = Huffman.Codec.RESPONSE;
+      strings = RESPONSE_CORPUS;
+    } else {
+      throw new IllegalArgumentException(corpus);
+    }
+
+    treeCodec = new TreeCodec(codec.codes, codec.lengths);
+    values = new ByteString[strings.length];
+    encodedArrays = new byte[strings.length][];
+    for (int i = 0; i < strings.length; i++) {
+      values[i] = ByteString.encodeUtf8(strings[i]);
+      codec.encode(values[i], buffer);
+      encodedArrays[i] = buffer.readByteString(buffer.size()).toByteArray();
+    }
+  }
+
+  @Benchmark public long tableDecode() throws IOException {
+    long result = 0;
+    for (byte[] encoded : encodedArrays) {
+      result += codec.decode(encoded).length;
+    }
+    return result;
+  }
+
+  @Benchmark public long treeDecode() {
+    long result = 0;
+    for (byte[] encoded : encodedArrays) {
+      result += treeCodec.decode(encoded).length;
+    }
+    return result;
+  }
+
+  @Benchmark public long bulkEncode() {
+    for (ByteString value : values) {
+      codec.encode(value, buffer);
+    }
+    long result = buffer.size();
+    buffer.clear();
+    return result;
+  }
+
+  @Benchmark public long streamEncode() throws IOException {
+    long result = 0;
+    for (ByteString value : values) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      treeCodec.encode(value.toByteArray(), out);
+      result += out.size();
+    }
+    return result;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(HuffmanBenchmark.class.getName())
+        .build()).run();
+  }
+
+  /** The previous codec: a bit-oriented stream encoder and a decoder that walks a node tree. */
+  static final class TreeCodec {
+    private final Node root = new Node();
+    private final int[] codes;
+    private final byte[] lengths;
+
+    TreeCodec(int[] codes, byte[] lengths) {
+      this.codes = codes;
+      this.lengths = lengths;
+      for (int i = 0; i < lengths.length; i++) {
+        addCode(i, codes[i], lengths[i]);
+      }
+    }
+
+    void encode(byte[] data, OutputStream out) throws IOException {
+      long current = 0;
+      int n = 0;
+
+      for (int i = 0; i < data.length; i++) {
+        int b = data[i] & 0xFF;
+        int code = codes[b];
+        int nbits = lengths[b];
+
+        current <<= nbits;
+        current |= code;
+        n += nbits;
+
+        while (n >= 8) {
+          n -= 8;
+          out.write(((int) (current >> n)));
+        }
+      }
+
+      if (n > 0) {
+        current <<= (8 - n);
+        current |= (0xFF >>> n);
+        out.write((int) current);
+      }
+    }
+
+    byte[] decode(byte[] buf) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      Node node = root;
+      int current = 0;
+      int nbits = 0;
+      for (int i = 0; i < buf.length; i++) {
+        int b = buf[i] & 0xFF;
+        current = (current << 8) | b;
+        nbits += 8;
+        while (nbits >= 8) {
+          int c = (current >>> (nbits - 8)) & 0xFF;
+          node = node.children[c];
+          if (node.children == null) {
+            baos.write(node.symbol);
+            nbits -= node.terminalBits;
+            node = root;
+          } else {
+            nbits -= 8;
+          }
+        }
+      }
+
+      while (nbits > 0) {
+        int c = (current << (8 - nbits)) & 0xFF;
+        node = node.children[c];
+        if (node.children != null || node.terminalBits > nbits) {
+          break;
+        }
+        baos.write(node.symbol);
+        nbits -= node.terminalBits;
+        node = root;
+      }
+
+      return baos.toByteArray();
+    }
+
+    private void addCode(int sym, int code, byte len) {
+      Node terminal = new Node(sym, len);
+
+      Node current = root;
+      while (len > 8) {
+        len -= 8;
+        int i = ((code >>> len) & 0xFF);
+        if (current.children[i] == null) {
+          current.children[i] = new Node();
+        }
+        current = current.children[i];
+      }
+
+      int shift = 8 - len;
+      int start = (code << shift) & 0xFF;
+      int end = 1 << shift;
+      for (int i = start; i < start + end; i++) {
+        current.children[i] = terminal;
+      }
+    }
+  }
+
+  private static final class Node {
+    private final Node[] children;
+    private final int symbol;
+    private final int terminalBits;
+
+    Node() {
+      this.children = new Node[256];
+      this.symbol = 0;
+      this.terminalBits = 0;
+    }
+
+    Node(int symbol, int bits) {
+      this.children = null;
+      this.symbol = symbol;
+      int b = bits & 0x07;
+      this.terminalBits = b == 0 ? 8 : b;
+    }
+  }
+}
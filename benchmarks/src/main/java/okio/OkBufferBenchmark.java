@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okio;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the hot paths of {@link OkBuffer}: primitive reads and writes,
+ * UTF-8 encoding, scanning, moving segments between buffers, and cloning.
+ * Run with {@link OkioBenchmarks} to also collect the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OkBufferBenchmark {
+  /** The number of bytes in the buffers that are scanned, moved and cloned. */
+  @Param({ "128", "8192", "1048576" })
+  int byteCount;
+
+  private final OkBuffer buffer = new OkBuffer();
+  private final OkBuffer source = new OkBuffer();
+  private final OkBuffer sink = new OkBuffer();
+  private String string;
+
+  @Setup public void setup() {
+    char[] chars = new char[byteCount];
+    Arrays.fill(chars, 'a');
+    string = new String(chars);
+
+    // A buffer whose only newline is its last byte, so indexOf() scans everything.
+    source.clear();
+    source.writeUtf8(string.substring(1));
+    source.writeByte('\n');
+  }
+
+  @Benchmark public long writeAndReadPrimitives() {
+    buffer.writeByte(0x7f);
+    buffer.writeShort(0x7fff);
+    buffer.writeInt(0x7fffffff);
+    buffer.writeLong(0x7fffffffffffffffL);
+    return buffer.readByte() + buffer.readShort() + buffer.readInt() + buffer.readLong();
+  }
+
+  @Benchmark public long writeAndReadPrimitivesLe() {
+    buffer.writeShortLe(0x7fff);
+    buffer.writeIntLe(0x7fffffff);
+    buffer.writeLongLe(0x7fffffffffffffffL);
+    return buffer.readShortLe() + buffer.readIntLe() + buffer.readLongLe();
+  }
+
+  @Benchmark public String writeAndReadUtf8() {
+    buffer.writeUtf8(string);
+    return buffer.readUtf8(buffer.size());
+  }
+
+  @Benchmark public long indexOf() {
+    return source.indexOf((byte) '\n');
+  }
+
+  @Benchmark public long moveSegments() {
+    sink.write(source, source.size());
+    source.write(sink, sink.size());
+    return source.size();
+  }
+
+  /** Moves a prefix that isn't segment-aligned, which forces segments to split. */
+  @Benchmark public long moveSplitSegments() {
+    sink.write(source, source.size() / 2 + 1);
+    sink.write(source, source.size());
+    source.write(sink, sink.size());
+    return source.size();
+  }
+
+  @Benchmark public void cloneBuffer(Blackhole blackhole) {
+    OkBuffer clone = source.clone();
+    blackhole.consume(clone);
+    clone.clear();
+  }
+}
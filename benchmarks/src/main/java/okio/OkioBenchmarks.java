@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okio;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the okio microbenchmarks once for each thread count, reporting both
+ * throughput and allocation rate. Arguments are regular JMH command line
+ * options and may be used to select benchmarks or override parameters.
+ */
+public final class OkioBenchmarks {
+  private static final int[] THREAD_COUNTS = { 1, 4, 16 };
+
+  private OkioBenchmarks() {
+  }
+
+  public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+    CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+    String include = commandLineOptions.getIncludes().isEmpty()
+        ? OkioBenchmarks.class.getPackage().getName() + "\\..*Benchmark"
+        : null;
+
+    for (int threads : THREAD_COUNTS) {
+      OptionsBuilder options = new OptionsBuilder();
+      options.parent(commandLineOptions);
+      if (include != null) options.include(include);
+      options.addProfiler(GCProfiler.class);
+      options.threads(threads);
+      new Runner(options.build()).run();
+    }
+  }
+}
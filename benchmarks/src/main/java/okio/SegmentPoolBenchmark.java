@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okio;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures contention on the shared {@link SegmentPool}. This lives in the
+ * {@code okio} package because the pool isn't public API. Run it with several
+ * thread counts to see how the pool scales; {@link OkioBenchmarks} does that.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentPoolBenchmark {
+  /**
+   * How many segments each operation takes before recycling them. Bursts
+   * larger than the pool's capacity measure the cost of allocating segments.
+   */
+  @Param({ "1", "16", "64" })
+  int burst;
+
+  private final byte[] segmentBytes = new byte[Segment.SIZE];
+  private Segment[] segments;
+
+  @Setup public void setup() {
+    segments = new Segment[burst];
+  }
+
+  @Benchmark public int takeAndRecycle() {
+    int result = 0;
+    for (int i = 0; i < burst; i++) {
+      segments[i] = SegmentPool.INSTANCE.take();
+    }
+    for (int i = 0; i < burst; i++) {
+      result += segments[i].limit;
+      SegmentPool.INSTANCE.recycle(segments[i]);
+      segments[i] = null;
+    }
+    return result;
+  }
+
+  /** Takes and recycles segments indirectly, the way applications do. */
+  @Benchmark public long writeAndClear() {
+    OkBuffer buffer = new OkBuffer();
+    for (int i = 0; i < burst; i++) {
+      buffer.write(segmentBytes);
+    }
+    long result = buffer.size();
+    buffer.clear();
+    return result;
+  }
+}
@@ -26,8 +26,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import javax.net.ssl.SSLContext;
 import org.junit.After;
@@ -35,6 +39,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -77,6 +82,18 @@ public final class AsyncApiTest {
     assertTrue(server.takeRequest().getHeaders().contains("User-Agent: AsyncApiTest"));
   }
 
+  @Test public void queueWaitIsReported() throws Exception {
+    server.enqueue(new MockResponse().setBody("abc"));
+    server.play();
+
+    Request request = new Request.Builder().url(server.getUrl("/")).build();
+    client.enqueue(request, receiver);
+
+    RecordedResponse recordedResponse = receiver.await(request.url()).assertBody("abc");
+    String queueWaitMillis = recordedResponse.response.header("OkHttp-Queue-Wait-Millis");
+    assertTrue(Long.parseLong(queueWaitMillis) >= 0);
+  }
+
   @Test public void connectionPooling() throws Exception {
     server.enqueue(new MockResponse().setBody("abc"));
     server.enqueue(new MockResponse().setBody("def"));
@@ -392,4 +409,139 @@ public final class AsyncApiTest {
     assertEquals("text/plain; charset=utf-8", request2.getHeader("Content-Type"));
     assertEquals(1, request2.getSequenceNumber());
   }
+
+  @Test public void nonBlockingGet() throws Exception {
+    server.enqueue(new MockResponse()
+        .setBody("abc")
+        .addHeader("Content-Type: text/plain"));
+    server.play();
+
+    client.getDispatcher().setNonBlocking(true);
+    Request request = new Request.Builder()
+        .url(server.getUrl("/"))
+        .header("User-Agent", "AsyncApiTest")
+        .build();
+    client.enqueue(request, receiver);
+
+    receiver.await(request.url())
+        .assertCode(200)
+        .assertContainsHeaders("Content-Type: text/plain")
+        .assertBody("abc");
+
+    RecordedRequest recordedRequest = server.takeRequest();
+    assertTrue(recordedRequest.getHeaders().contains("User-Agent: AsyncApiTest"));
+    assertTrue(recordedRequest.getHeaders().contains("Connection: close"));
+  }
+
+  @Test public void nonBlockingPost() throws Exception {
+    server.enqueue(new MockResponse().setBody("abc"));
+    server.play();
+
+    client.getDispatcher().setNonBlocking(true);
+    Request request = new Request.Builder()
+        .url(server.getUrl("/"))
+        .post(Request.Body.create(MediaType.parse("text/plain"), "def"))
+        .build();
+    client.enqueue(request, receiver);
+
+    receiver.await(request.url())
+        .assertCode(200)
+        .assertBody("abc");
+
+    RecordedRequest recordedRequest = server.takeRequest();
+    assertEquals("def", recordedRequest.getUtf8Body());
+    assertEquals("3", recordedRequest.getHeader("Content-Length"));
+    assertEquals("text/plain; charset=utf-8", recordedRequest.getHeader("Content-Type"));
+  }
+
+  @Test public void nonBlockingChunkedBodyArrivesIncrementally() throws Exception {
+    server.enqueue(new MockResponse()
+        .setChunkedBody("abcdefghijklmnopqrstuvwxyz", 3)
+        .throttleBody(8, 50, TimeUnit.MILLISECONDS));
+    server.play();
+
+    client.getDispatcher().setNonBlocking(true);
+    final AtomicInteger callbackCount = new AtomicInteger();
+    Request request = new Request.Builder().url(server.getUrl("/")).build();
+    client.enqueue(request, new Response.Receiver() {
+      @Override public void onFailure(Failure failure) {
+        receiver.onFailure(failure);
+      }
+
+      @Override public boolean onResponse(Response response) throws IOException {
+        callbackCount.incrementAndGet();
+        return receiver.onResponse(response);
+      }
+    });
+
+    receiver.await(request.url()).assertBody("abcdefghijklmnopqrstuvwxyz");
+    assertTrue(callbackCount.get() > 1);
+  }
+
+  @Test public void nonBlockingBodyWithoutContentLength() throws Exception {
+    server.enqueue(new MockResponse()
+        .setBody("abc")
+        .removeHeader("Content-Length")
+        .setSocketPolicy(SocketPolicy.DISCONNECT_AT_END));
+    server.play();
+
+    client.getDispatcher().setNonBlocking(true);
+    Request request = new Request.Builder().url(server.getUrl("/")).build();
+    client.enqueue(request, receiver);
+
+    receiver.await(request.url()).assertBody("abc");
+  }
+
+  @Test public void nonBlockingHeadHasNoBody() throws Exception {
+    server.enqueue(new MockResponse().addHeader("Content-Length: 3"));
+    server.play();
+
+    client.getDispatcher().setNonBlocking(true);
+    Request request = new Request.Builder().url(server.getUrl("/")).head().build();
+    client.enqueue(request, receiver);
+
+    receiver.await(request.url()).assertCode(200).assertBody("");
+  }
+
+  @Test public void nonBlockingConnectionFailure() throws Exception {
+    server.play();
+    URL url = server.getUrl("/");
+    server.shutdown();
+
+    client.getDispatcher().setNonBlocking(true);
+    Request request = new Request.Builder().url(url).build();
+    client.enqueue(request, receiver);
+
+    assertNotNull(receiver.await(url).failure);
+  }
+
+  @Test public void nonBlockingReadTimeoutBeforeHeaders() throws Exception {
+    // A server that accepts connections but never responds.
+    ServerSocket serverSocket = new ServerSocket(0);
+    try {
+      client.setReadTimeout(250, TimeUnit.MILLISECONDS);
+      client.getDispatcher().setNonBlocking(true);
+      URL url = new URL("http", "localhost", serverSocket.getLocalPort(), "/");
+      Request request = new Request.Builder().url(url).build();
+      client.enqueue(request, receiver);
+
+      receiver.await(url).assertFailure("Read timed out");
+    } finally {
+      serverSocket.close();
+    }
+  }
+
+  @Test public void nonBlockingReadTimeoutDuringBody() throws Exception {
+    server.enqueue(new MockResponse()
+        .setBody("abc")
+        .throttleBody(1, 1, TimeUnit.SECONDS));
+    server.play();
+
+    client.setReadTimeout(250, TimeUnit.MILLISECONDS);
+    client.getDispatcher().setNonBlocking(true);
+    Request request = new Request.Builder().url(server.getUrl("/")).build();
+    client.enqueue(request, receiver);
+
+    receiver.await(request.url()).assertFailure("Read timed out");
+  }
 }
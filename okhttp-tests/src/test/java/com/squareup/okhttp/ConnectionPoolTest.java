@@ -170,6 +170,18 @@ public final class ConnectionPoolTest {
     assertPooled(pool);
   }
 
+  @Test public void expiredConnectionsAreEvictedWithoutPoolActivity() throws Exception {
+    ConnectionPool pool = new ConnectionPool(10, 100);
+    pool.recycle(httpA);
+    pool.recycle(httpB);
+    pool.recycle(httpC);
+    Thread.sleep(500);
+    assertEquals(0, pool.getConnectionCount());
+    assertTrue(httpA.getSocket().isClosed());
+    assertTrue(httpB.getSocket().isClosed());
+    assertTrue(httpC.getSocket().isClosed());
+  }
+
   @Test public void nonAliveConnectionNotReturned() throws Exception {
     ConnectionPool pool = new ConnectionPool(2, KEEP_ALIVE_DURATION_MS);
     pool.recycle(httpA);
@@ -6,6 +6,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.TimeUnit;
+import okio.Deadline;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -111,6 +112,94 @@ public final class DispatcherTest {
     executor.assertJobs("http://a/1");
   }
 
+  @Test public void readyJobsArePromotedRoundRobinByHost() throws Exception {
+    dispatcher.setMaxRequests(1);
+    client.enqueue(newRequest("http://a/1"), receiver);
+    client.enqueue(newRequest("http://a/2"), receiver);
+    client.enqueue(newRequest("http://a/3"), receiver);
+    client.enqueue(newRequest("http://b/1"), receiver);
+    executor.finishJob("http://a/1");
+    executor.assertJobs("http://a/2");
+    executor.finishJob("http://a/2");
+    executor.assertJobs("http://b/1");
+    executor.finishJob("http://b/1");
+    executor.assertJobs("http://a/3");
+  }
+
+  @Test public void decreasingMaxPerHostDefersReadyJobs() throws Exception {
+    dispatcher.setMaxRequests(1);
+    client.enqueue(newRequest("http://a/1"), receiver);
+    client.enqueue(newRequest("http://a/2"), receiver);
+    client.enqueue(newRequest("http://a/3"), receiver);
+    dispatcher.setMaxRequests(2);
+    dispatcher.setMaxRequestsPerHost(1);
+    executor.finishJob("http://a/1");
+    executor.assertJobs("http://a/2");
+  }
+
+  @Test public void readyJobsArePromotedByPriority() throws Exception {
+    dispatcher.setMaxRequests(1);
+    client.enqueue(newRequest("http://a/1"), receiver);
+    client.enqueue(newRequest("http://a/2"), receiver);
+    client.enqueue(newRequest("http://b/1"), receiver);
+    client.enqueue(new Request.Builder().url("http://a/3").priority(1).build(), receiver);
+    client.enqueue(new Request.Builder().url("http://c/1").priority(2).build(), receiver);
+    executor.finishJob("http://a/1");
+    executor.assertJobs("http://c/1");
+    executor.finishJob("http://c/1");
+    executor.assertJobs("http://a/3");
+    executor.finishJob("http://a/3");
+    executor.assertJobs("http://b/1");
+    executor.finishJob("http://b/1");
+    executor.assertJobs("http://a/2");
+  }
+
+  @Test public void jobWithReachedDeadlineFailsWhenEnqueued() throws Exception {
+    Request request = new Request.Builder()
+        .url("http://a/1")
+        .deadline(new Deadline().start(0, TimeUnit.SECONDS))
+        .build();
+    client.enqueue(request, receiver);
+    executor.assertJobs();
+    receiver.await(request.url()).assertFailure("Deadline reached");
+  }
+
+  @Test public void jobWhoseDeadlineIsReachedWhileReadyFails() throws Exception {
+    dispatcher.setMaxRequests(1);
+    Request request = new Request.Builder()
+        .url("http://a/2")
+        .deadline(new Deadline().start(100, TimeUnit.MILLISECONDS))
+        .build();
+    client.enqueue(newRequest("http://a/1"), receiver);
+    client.enqueue(request, receiver);
+    client.enqueue(newRequest("http://a/3"), receiver);
+
+    // The job fails while the running job holds the only slot.
+    receiver.await(request.url()).assertFailure("Deadline reached");
+    executor.assertJobs("http://a/1");
+    executor.finishJob("http://a/1");
+    executor.assertJobs("http://a/3");
+  }
+
+  @Test public void earlierDeadlineIsReachedFirst() throws Exception {
+    dispatcher.setMaxRequests(1);
+    Request late = new Request.Builder()
+        .url("http://a/2")
+        .deadline(new Deadline().start(1, TimeUnit.HOURS))
+        .build();
+    Request early = new Request.Builder()
+        .url("http://a/3")
+        .deadline(new Deadline().start(100, TimeUnit.MILLISECONDS))
+        .build();
+    client.enqueue(newRequest("http://a/1"), receiver);
+    client.enqueue(late, receiver);
+    client.enqueue(early, receiver);
+
+    receiver.await(early.url()).assertFailure("Deadline reached");
+    executor.finishJob("http://a/1");
+    executor.assertJobs("http://a/2");
+  }
+
   @Test public void cancelingReadyJobPreventsItFromStarting() throws Exception {
     dispatcher.setMaxRequestsPerHost(1);
     client.enqueue(newRequest("http://a/1"), receiver);
@@ -134,7 +223,11 @@ public final class DispatcherTest {
     private List<Job> jobs = new ArrayList<Job>();
 
     @Override public void execute(Runnable command) {
-      jobs.add((Job) command);
+      if (command instanceof Job) {
+        jobs.add((Job) command);
+      } else {
+        command.run(); // Failures are reported immediately.
+      }
     }
 
     public void assertJobs(String... expectedUrls) {
@@ -23,8 +23,16 @@ import com.squareup.okhttp.mockwebserver.RecordedRequest;
 import com.squareup.okhttp.mockwebserver.SocketPolicy;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.SSLContext;
 import org.junit.After;
 import org.junit.Before;
@@ -92,6 +100,50 @@ public final class SyncApiTest {
     assertEquals(2, server.takeRequest().getSequenceNumber());
   }
 
+  @Test public void prewarm() throws Exception {
+    server.enqueue(new MockResponse().setBody("abc"));
+    server.enqueue(new MockResponse().setBody("def"));
+    server.play();
+
+    ConnectionPool pool = new ConnectionPool(5, 60000);
+    client.setConnectionPool(pool);
+    assertEquals(2, client.prewarm(server.getUrl("/"), 2));
+    assertEquals(2, pool.getHttpConnectionCount());
+
+    // Prewarmed connections haven't been reused yet.
+    for (Connection connection : pool.getConnections()) {
+      assertEquals(0, connection.recycleCount());
+      assertTrue(connection.isPrewarmed());
+    }
+
+    onSuccess(new Request.Builder().url(server.getUrl("/a")).build())
+        .assertBody("abc");
+    onSuccess(new Request.Builder().url(server.getUrl("/b")).build())
+        .assertBody("def");
+
+    // Each request used a different prewarmed connection.
+    assertEquals(0, server.takeRequest().getSequenceNumber());
+    assertEquals(0, server.takeRequest().getSequenceNumber());
+    assertEquals(2, pool.getHttpConnectionCount());
+  }
+
+  @Test public void prewarmTls() throws Exception {
+    server.useHttps(sslContext.getSocketFactory(), false);
+    server.enqueue(new MockResponse().setBody("abc"));
+    server.play();
+
+    ConnectionPool pool = new ConnectionPool(5, 60000);
+    client.setConnectionPool(pool);
+    client.setSslSocketFactory(sslContext.getSocketFactory());
+    client.setHostnameVerifier(new RecordingHostnameVerifier());
+    assertEquals(1, client.prewarm(server.getUrl("/"), 1));
+
+    onSuccess(new Request.Builder().url(server.getUrl("/")).build())
+        .assertBody("abc")
+        .assertHandshake();
+    assertEquals(0, server.takeRequest().getSequenceNumber());
+  }
+
   @Test public void tls() throws Exception {
     server.useHttps(sslContext.getSocketFactory(), false);
     server.enqueue(new MockResponse()
@@ -279,6 +331,136 @@ public final class SyncApiTest {
     assertEquals(1, request2.getSequenceNumber());
   }
 
+  @Test public void pipelined() throws Exception {
+    server.enqueue(new MockResponse().setBody("abc"));
+    server.enqueue(new MockResponse()); // MockWebServer doesn't omit bodies of HEAD responses.
+    server.enqueue(new MockResponse().setBody("ghi"));
+    server.play();
+
+    ConnectionPool pool = new ConnectionPool(5, 60000);
+    client.setConnectionPool(pool);
+    List<Response> responses = client.executePipelined(Arrays.asList(
+        new Request.Builder().url(server.getUrl("/a")).build(),
+        new Request.Builder().url(server.getUrl("/b")).head().build(),
+        new Request.Builder().url(server.getUrl("/c")).build()));
+    assertEquals(3, responses.size());
+    assertEquals("abc", responses.get(0).body().string());
+    assertEquals("", responses.get(1).body().string());
+    assertEquals("ghi", responses.get(2).body().string());
+    assertEquals("/c", responses.get(2).request().url().getPath());
+
+    assertEquals("GET /a HTTP/1.1", server.takeRequest().getRequestLine());
+    RecordedRequest head = server.takeRequest();
+    assertEquals("HEAD /b HTTP/1.1", head.getRequestLine());
+    assertEquals(1, head.getSequenceNumber());
+    assertEquals(2, server.takeRequest().getSequenceNumber());
+    assertEquals(1, pool.getHttpConnectionCount());
+  }
+
+  /** The server answers only after it has received every request. */
+  @Test public void pipelinedRequestsAreWrittenBeforeResponsesAreRead() throws Exception {
+    final ServerSocket serverSocket = new ServerSocket(0);
+    Thread serverThread = new Thread("pipelining server") {
+      @Override public void run() {
+        try {
+          Socket socket = serverSocket.accept();
+          InputStream in = socket.getInputStream();
+          int crlfCrlfCount = 0;
+          for (int last4 = 0; crlfCrlfCount < 3; ) {
+            int b = in.read();
+            if (b == -1) throw new IOException("unexpected end of stream");
+            last4 = (last4 << 8) | b;
+            if (last4 == 0x0d0a0d0a) crlfCrlfCount++;
+          }
+          OutputStream out = socket.getOutputStream();
+          for (int i = 0; i < 3; i++) {
+            out.write(("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\n" + i).getBytes("UTF-8"));
+          }
+          out.flush();
+          socket.close();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        } finally {
+          try {
+            serverSocket.close();
+          } catch (IOException ignored) {
+          }
+        }
+      }
+    };
+    serverThread.start();
+
+    client.setReadTimeout(5, TimeUnit.SECONDS);
+    client.setConnectionPool(new ConnectionPool(5, 60000));
+    URL url = new URL("http", "localhost", serverSocket.getLocalPort(), "/");
+    Request request = new Request.Builder().url(url).build();
+    List<Response> responses = client.executePipelined(Arrays.asList(request, request, request));
+    assertEquals("0", responses.get(0).body().string());
+    assertEquals("1", responses.get(1).body().string());
+    assertEquals("2", responses.get(2).body().string());
+    serverThread.join();
+  }
+
+  @Test public void pipelinedRequestsRetriedWhenServerClosesEarly() throws Exception {
+    server.enqueue(new MockResponse().setBody("abc")
+        .setSocketPolicy(SocketPolicy.DISCONNECT_AT_END));
+    server.enqueue(new MockResponse().setBody("def"));
+    server.enqueue(new MockResponse().setBody("ghi"));
+    server.play();
+
+    client.setConnectionPool(new ConnectionPool(5, 60000));
+    List<Response> responses = client.executePipelined(Arrays.asList(
+        new Request.Builder().url(server.getUrl("/a")).build(),
+        new Request.Builder().url(server.getUrl("/b")).build(),
+        new Request.Builder().url(server.getUrl("/c")).build()));
+    assertEquals("abc", responses.get(0).body().string());
+    assertEquals("def", responses.get(1).body().string());
+    assertEquals("ghi", responses.get(2).body().string());
+
+    assertEquals(0, server.takeRequest().getSequenceNumber());
+    RecordedRequest retried = server.takeRequest();
+    assertEquals("GET /b HTTP/1.1", retried.getRequestLine());
+    assertEquals(0, retried.getSequenceNumber()); // A new connection.
+    assertEquals(1, server.takeRequest().getSequenceNumber());
+  }
+
+  @Test public void pipelinedRequestsFailWhenFreshConnectionsFail() throws Exception {
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+    server.play();
+
+    client.setConnectionPool(new ConnectionPool(5, 60000));
+    try {
+      client.executePipelined(Arrays.asList(
+          new Request.Builder().url(server.getUrl("/a")).build(),
+          new Request.Builder().url(server.getUrl("/b")).build()));
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void pipelineRejectsRequestsWithBodies() throws Exception {
+    Request post = new Request.Builder()
+        .url("http://example.com/")
+        .post(Request.Body.create(MediaType.parse("text/plain"), "body!"))
+        .build();
+    try {
+      client.executePipelined(Arrays.asList(post));
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test public void pipelineRejectsRequestsToDifferentServers() throws Exception {
+    try {
+      client.executePipelined(Arrays.asList(
+          new Request.Builder().url("http://example.com/").build(),
+          new Request.Builder().url("https://example.com/").build()));
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
   private RecordedResponse onSuccess(Request request) throws IOException {
     Response response = client.execute(request);
     return new RecordedResponse(request, response, response.body().string(), null);
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class DiskLruCacheTest {
+  private static final int VERSION = 100;
+
+  private File directory;
+  private DiskLruCache cache;
+
+  @Before public void setUp() throws Exception {
+    String tmp = System.getProperty("java.io.tmpdir");
+    directory = new File(tmp, "DiskLruCacheTest-" + UUID.randomUUID());
+    cache = DiskLruCache.open(directory, VERSION, 2, Integer.MAX_VALUE);
+  }
+
+  @After public void tearDown() throws Exception {
+    cache.delete();
+    directory.delete();
+  }
+
+  @Test public void entriesSurviveReopen() throws Exception {
+    set("a", "a0", "a1");
+    set("b", "b0", "b1");
+    cache.remove("a");
+    set("c", "c0", "c1");
+    cache.close();
+
+    cache = DiskLruCache.open(directory, VERSION, 2, Integer.MAX_VALUE);
+    assertNull(cache.get("a"));
+    assertValue("b", "b0", "b1");
+    assertValue("c", "c0", "c1");
+    assertEquals(8, cache.size());
+  }
+
+  @Test public void evictsLeastRecentlyUsed() throws Exception {
+    cache.close();
+    cache = DiskLruCache.open(directory, VERSION, 2, 10);
+    set("a", "a", "a"); // size 2
+    set("b", "b", "b"); // size 4
+    set("c", "c", "c"); // size 6
+    set("d", "d", "d"); // size 8
+    cache.get("a").close(); // b is now the least recently used.
+    set("e", "e", "e"); // size 10
+    set("f", "f", "f"); // size 12, evicting b.
+    cache.flush();
+    assertNull(cache.get("b"));
+    assertValue("a", "a", "a");
+    assertValue("f", "f", "f");
+    assertEquals(10, cache.size());
+  }
+
+  @Test public void touchCountsAsUseForEviction() throws Exception {
+    cache.close();
+    cache = DiskLruCache.open(directory, VERSION, 2, 10);
+    set("a", "a", "a");
+    set("b", "b", "b");
+    set("c", "c", "c");
+    set("d", "d", "d");
+    set("e", "e", "e");
+    assertTrue(cache.touch("a"));
+    assertFalse(cache.touch("z"));
+    set("f", "f", "f"); // Evicts b.
+    cache.flush();
+    assertNull(cache.get("b"));
+    assertValue("a", "a", "a");
+  }
+
+  @Test public void evictionListenerIsNotified() throws Exception {
+    cache.close();
+    cache = DiskLruCache.open(directory, VERSION, 2, 4);
+    final BlockingQueue<String> evicted = new LinkedBlockingQueue<String>();
+    cache.setEvictionListener(new DiskLruCache.EvictionListener() {
+      @Override public void evicted(String key) {
+        evicted.add(key);
+      }
+    });
+    set("a", "a", "a");
+    set("b", "b", "b");
+    cache.remove("b"); // Removals aren't evictions.
+    set("c", "c", "c");
+    set("d", "d", "d"); // Evicts a, maybe on the cleanup thread.
+    assertEquals("a", evicted.poll(5, TimeUnit.SECONDS));
+    cache.flush();
+    assertNull(evicted.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  @Test public void snapshotEditIsStaleAfterCommit() throws Exception {
+    set("a", "a0", "a1");
+    DiskLruCache.Snapshot snapshot = cache.get("a");
+    set("a", "b0", "b1");
+    assertNull(snapshot.edit());
+    snapshot.close();
+  }
+
+  @Test public void readRecordsCanBeDisabled() throws Exception {
+    set("a", "a0", "a1");
+    cache.setReadRecordInterval(0);
+    for (int i = 0; i < 8; i++) {
+      cache.get("a").close();
+    }
+    cache.close();
+    assertEquals(0, journalLineCount("READ"));
+  }
+
+  @Test public void readRecordsAreSampled() throws Exception {
+    set("a", "a0", "a1");
+    cache.setReadRecordInterval(4);
+    for (int i = 0; i < 8; i++) {
+      cache.get("a").close();
+    }
+    cache.close();
+    assertEquals(2, journalLineCount("READ"));
+  }
+
+  @Test public void unrecordedReadsStillCountForEviction() throws Exception {
+    cache.close();
+    cache = DiskLruCache.open(directory, VERSION, 2, 10);
+    cache.setReadRecordInterval(0);
+    set("a", "a", "a");
+    set("b", "b", "b");
+    set("c", "c", "c");
+    set("d", "d", "d");
+    set("e", "e", "e");
+    cache.get("a").close();
+    set("f", "f", "f"); // Evicts b.
+    cache.flush();
+    assertNull(cache.get("b"));
+    assertValue("a", "a", "a");
+  }
+
+  @Test public void groupCommitSharesFlushes() throws Exception {
+    final int threadCount = 8;
+    cache.setJournalGroupCommit(100, TimeUnit.MILLISECONDS, 1000);
+    int flushCount = cache.journalFlushCount();
+
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int t = 0; t < threadCount; t++) {
+      final String key = "k" + t;
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override public Void call() throws Exception {
+          set(key, key, key);
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    // Each edit waits for two records: DIRTY and CLEAN.
+    assertTrue(cache.journalFlushCount() - flushCount < threadCount);
+    cache.close();
+
+    cache = DiskLruCache.open(directory, VERSION, 2, Integer.MAX_VALUE);
+    for (int t = 0; t < threadCount; t++) {
+      assertValue("k" + t, "k" + t, "k" + t);
+    }
+  }
+
+  @Test public void groupCommitFlushesFullBatchWithoutDelay() throws Exception {
+    cache.setJournalGroupCommit(1, TimeUnit.HOURS, 1);
+    set("a", "a0", "a1"); // Doesn't wait an hour.
+    assertValue("a", "a0", "a1");
+  }
+
+  /**
+   * Readers and writers on overlapping keys always see both values of a
+   * single edit. Enough operations are made to rebuild the journal while
+   * they run, and the result is read back after reopening the cache.
+   */
+  @Test public void concurrentReadersAndWriters() throws Exception {
+    readAndWriteConcurrently();
+  }
+
+  @Test public void concurrentReadersAndWritersWithGroupCommit() throws Exception {
+    cache.setJournalGroupCommit(1, TimeUnit.MILLISECONDS, 64);
+    cache.setReadRecordInterval(8);
+    readAndWriteConcurrently();
+  }
+
+  /**
+   * Edits that race with close either complete before the journal is closed
+   * or fail. After reopening, every value file belongs to an entry.
+   */
+  @Test public void editsRacingCloseLeaveNoOrphanedFiles() throws Exception {
+    final int threadCount = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int t = 0; t < threadCount; t++) {
+      final int thread = t;
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override public Void call() throws Exception {
+          try {
+            for (int i = 0; ; i++) {
+              set("k" + thread + "_" + i, "a", "b");
+            }
+          } catch (IllegalStateException expected) {
+            return null; // The cache was closed.
+          }
+        }
+      }));
+    }
+    Thread.sleep(50);
+    cache.close();
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    cache = DiskLruCache.open(directory, VERSION, 2, Integer.MAX_VALUE);
+    long fileSize = 0;
+    for (File file : directory.listFiles()) {
+      String name = file.getName();
+      if (!name.matches(".*\\.[0-9]+")) continue;
+      fileSize += file.length();
+      String key = name.substring(0, name.lastIndexOf('.'));
+      DiskLruCache.Snapshot snapshot = cache.get(key);
+      assertTrue("orphaned " + name, snapshot != null);
+      snapshot.close();
+    }
+    assertEquals(fileSize, cache.size());
+  }
+
+  private void readAndWriteConcurrently() throws Exception {
+    final int threadCount = 8;
+    final int keyCount = 32;
+    final int operationCount = 1000;
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int t = 0; t < threadCount; t++) {
+      final int thread = t;
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override public Void call() throws Exception {
+          for (int i = 0; i < operationCount; i++) {
+            String key = "k" + ((i * 7 + thread) % keyCount);
+            if ((i + thread) % 4 == 0) {
+              String value = thread + "-" + i;
+              DiskLruCache.Editor editor = cache.edit(key);
+              if (editor == null) continue; // Another thread is editing this key.
+              editor.set(0, value);
+              editor.set(1, value);
+              editor.commit();
+            } else {
+              DiskLruCache.Snapshot snapshot = cache.get(key);
+              if (snapshot == null) continue;
+              try {
+                assertEquals(snapshot.getString(0), snapshot.getString(1));
+              } finally {
+                snapshot.close();
+              }
+            }
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    long size = cache.size();
+    List<String> values = new ArrayList<String>();
+    for (int k = 0; k < keyCount; k++) {
+      DiskLruCache.Snapshot snapshot = cache.get("k" + k);
+      values.add(snapshot != null ? snapshot.getString(0) : null);
+      if (snapshot != null) snapshot.close();
+    }
+    cache.close();
+
+    cache = DiskLruCache.open(directory, VERSION, 2, Integer.MAX_VALUE);
+    assertEquals(size, cache.size());
+    for (int k = 0; k < keyCount; k++) {
+      String value = values.get(k);
+      if (value == null) {
+        assertNull(cache.get("k" + k));
+      } else {
+        assertValue("k" + k, value, value);
+      }
+    }
+  }
+
+  private int journalLineCount(String prefix) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(new File(directory, DiskLruCache.JOURNAL_FILE)), Util.UTF_8));
+    try {
+      int result = 0;
+      for (String line; (line = reader.readLine()) != null; ) {
+        if (line.startsWith(prefix + " ")) result++;
+      }
+      return result;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void set(String key, String value0, String value1) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    editor.set(0, value0);
+    editor.set(1, value1);
+    editor.commit();
+  }
+
+  private void assertValue(String key, String value0, String value1) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    assertEquals(value0, snapshot.getString(0));
+    assertEquals(value1, snapshot.getString(1));
+    snapshot.close();
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class EventLoopTest {
+  @Test public void handlerRuntimeExceptionFailsOnlyItsChannel() throws Exception {
+    EventLoop loop = EventLoop.next();
+    final BlockingQueue<IOException> failures = new LinkedBlockingQueue<IOException>();
+    final RuntimeException thrown = new IllegalStateException("boom");
+    Pipe pipe = Pipe.open();
+    loop.register(pipe.source(), SelectionKey.OP_READ, new EventLoop.Handler() {
+      @Override public void ready(SelectionKey key) {
+        throw thrown;
+      }
+
+      @Override public void failed(IOException e) {
+        failures.add(e);
+      }
+    });
+    pipe.sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+
+    IOException failure = failures.poll(5, TimeUnit.SECONDS);
+    assertEquals(thrown, failure.getCause());
+    assertFalse(pipe.source().isOpen());
+    pipe.sink().close();
+    assertLoopIsRunning(loop);
+  }
+
+  @Test public void taskRuntimeExceptionDoesNotStopLoop() throws Exception {
+    EventLoop loop = EventLoop.next();
+    loop.execute(new Runnable() {
+      @Override public void run() {
+        throw new IllegalStateException("boom");
+      }
+    });
+    assertLoopIsRunning(loop);
+  }
+
+  private void assertLoopIsRunning(EventLoop loop) throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    loop.execute(new Runnable() {
+      @Override public void run() {
+        latch.countDown();
+      }
+    });
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+  }
+}
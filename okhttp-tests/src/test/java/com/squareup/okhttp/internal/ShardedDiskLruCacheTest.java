@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class ShardedDiskLruCacheTest {
+  private static final int VERSION = 100;
+
+  private File directory;
+  private ShardedDiskLruCache cache;
+
+  @Before public void setUp() throws Exception {
+    String tmp = System.getProperty("java.io.tmpdir");
+    directory = new File(tmp, "ShardedDiskLruCacheTest-" + UUID.randomUUID());
+    cache = ShardedDiskLruCache.open(directory, VERSION, 2, Integer.MAX_VALUE, 4);
+  }
+
+  @After public void tearDown() throws Exception {
+    cache.delete();
+    directory.delete();
+  }
+
+  @Test public void entriesSurviveReopen() throws Exception {
+    for (int i = 0; i < 16; i++) {
+      set("k" + i, "a" + i, "b" + i);
+    }
+    cache.remove("k0");
+    cache.close();
+
+    cache = ShardedDiskLruCache.open(directory, VERSION, 2, Integer.MAX_VALUE, 4);
+    assertNull(cache.get("k0"));
+    for (int i = 1; i < 16; i++) {
+      assertValue("k" + i, "a" + i, "b" + i);
+    }
+  }
+
+  @Test public void entriesAreSpreadAcrossShards() throws Exception {
+    for (int i = 0; i < 64; i++) {
+      set("k" + i, "a", "b");
+    }
+    cache.flush();
+    assertFalse(new File(directory, DiskLruCache.JOURNAL_FILE).exists());
+    for (int i = 0; i < 4; i++) {
+      File shard = new File(directory, "shard" + i + "of4");
+      assertTrue(new File(shard, DiskLruCache.JOURNAL_FILE).exists());
+      assertTrue(shard.list().length > 1);
+    }
+  }
+
+  @Test public void sizeIsTheSumOfShards() throws Exception {
+    set("a", "a", "aa");
+    set("b", "bbb", "b");
+    set("c", "c", "");
+    assertEquals(8, cache.size());
+    cache.close();
+
+    cache = ShardedDiskLruCache.open(directory, VERSION, 2, Integer.MAX_VALUE, 4);
+    assertEquals(8, cache.size());
+  }
+
+  @Test public void maxSizeIsSplitBetweenShards() throws Exception {
+    cache.close();
+    cache = ShardedDiskLruCache.open(directory, VERSION, 2, 40, 4);
+    for (int i = 0; i < 64; i++) {
+      set("k" + i, "a", "b");
+    }
+    cache.flush();
+    assertEquals(40, cache.getMaxSize());
+    assertTrue(cache.size() <= 40);
+    assertTrue(cache.size() > 0);
+  }
+
+  @Test public void changingShardCountDiscardsEntries() throws Exception {
+    set("a", "a0", "a1");
+    cache.close();
+
+    cache = ShardedDiskLruCache.open(directory, VERSION, 2, Integer.MAX_VALUE, 2);
+    assertFalse(new File(directory, "shard0of4").exists());
+    assertNull(cache.get("a"));
+    set("b", "b0", "b1");
+    cache.close();
+
+    cache = ShardedDiskLruCache.open(directory, VERSION, 2, Integer.MAX_VALUE, 1);
+    assertFalse(new File(directory, "shard0of2").exists());
+    assertNull(cache.get("b"));
+    set("c", "c0", "c1");
+    assertTrue(new File(directory, DiskLruCache.JOURNAL_FILE).exists());
+    cache.close();
+
+    cache = ShardedDiskLruCache.open(directory, VERSION, 2, Integer.MAX_VALUE, 4);
+    assertFalse(new File(directory, DiskLruCache.JOURNAL_FILE).exists());
+    assertNull(cache.get("c"));
+  }
+
+  @Test public void filesOfOtherCachesAreNotDeleted() throws Exception {
+    cache.delete();
+    directory.mkdirs();
+    File entryLikeFile = new File(directory, "notes.0");
+    File shardLikeDirectory = new File(directory, "shard0of2");
+    writeFile(entryLikeFile, "notes");
+    shardLikeDirectory.mkdir();
+    writeFile(new File(shardLikeDirectory, DiskLruCache.JOURNAL_FILE), "journal");
+
+    // Without a layout file or journal, the directory doesn't hold another layout.
+    cache = ShardedDiskLruCache.open(directory, VERSION, 2, Integer.MAX_VALUE, 4);
+    set("a", "a0", "a1");
+    cache.close();
+    assertTrue(entryLikeFile.exists());
+    assertTrue(shardLikeDirectory.exists());
+
+    // Changing the shard count deletes only the recorded layout's shards.
+    cache = ShardedDiskLruCache.open(directory, VERSION, 2, Integer.MAX_VALUE, 1);
+    assertFalse(new File(directory, "shard0of4").exists());
+    assertTrue(entryLikeFile.exists());
+    assertTrue(shardLikeDirectory.exists());
+  }
+
+  @Test public void singleShardUsesUnshardedLayout() throws Exception {
+    cache.close();
+    DiskLruCache unsharded = DiskLruCache.open(directory, VERSION, 2, Integer.MAX_VALUE);
+    DiskLruCache.Editor editor = unsharded.edit("a");
+    editor.set(0, "a0");
+    editor.set(1, "a1");
+    editor.commit();
+    unsharded.close();
+
+    cache = ShardedDiskLruCache.open(directory, VERSION, 2, Integer.MAX_VALUE, 1);
+    assertValue("a", "a0", "a1");
+  }
+
+  @Test public void operationsFailAfterClose() throws Exception {
+    cache.close();
+    assertTrue(cache.isClosed());
+    try {
+      cache.get("a");
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  private void writeFile(File file, String content) throws IOException {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    writer.write(content);
+    writer.close();
+  }
+
+  private void set(String key, String value0, String value1) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    editor.set(0, value0);
+    editor.set(1, value1);
+    editor.commit();
+  }
+
+  private void assertValue(String key, String value0, String value1) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    assertEquals(value0, snapshot.getString(0));
+    assertEquals(value1, snapshot.getString(1));
+    snapshot.close();
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.http;
+
+import com.squareup.okhttp.Headers;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.Arrays;
+import okio.BufferedSource;
+import okio.Deadline;
+import okio.OkBuffer;
+import okio.Okio;
+import okio.Source;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class HeaderReaderTest {
+  private final HeaderReader reader = new HeaderReader(HeaderReader.DEFAULT_MAX_HEAD_BYTES);
+
+  @Test public void readStatusLineAndHeaders() throws IOException {
+    BufferedSource source = source("HTTP/1.1 200 OK\r\n"
+        + "Content-Type: text/plain\r\n"
+        + "content-length:5\r\n"
+        + "X-Custom:  a value  \r\n"
+        + "\r\n"
+        + "hello");
+    StatusLine statusLine = reader.readStatusLine(source);
+    assertEquals("HTTP/1.1 200 OK", statusLine.getStatusLine());
+    assertEquals(200, statusLine.code());
+
+    Headers.Builder builder = new Headers.Builder();
+    reader.readHeaders(source, builder);
+    Headers headers = builder.build();
+    assertEquals(3, headers.size());
+    assertSame("Content-Type", headers.name(0));
+    assertEquals("text/plain", headers.value(0));
+    assertEquals("content-length", headers.name(1));
+    assertEquals("5", headers.value(1));
+    assertEquals("X-Custom", headers.name(2));
+    assertEquals("a value", headers.value(2));
+    assertEquals("hello", source.readUtf8(5));
+  }
+
+  @Test public void wellKnownNamesAreShared() throws IOException {
+    BufferedSource source = source("content-length: 1\r\nX-Custom: a\r\n\r\n"
+        + "content-length: 2\r\nX-Custom: b\r\n\r\n");
+    Headers.Builder first = new Headers.Builder();
+    reader.readHeaders(source, first);
+    Headers.Builder second = new Headers.Builder();
+    reader.readHeaders(source, second);
+    assertSame(first.build().name(0), second.build().name(0));
+    assertEquals(first.build().name(1), second.build().name(1));
+  }
+
+  @Test public void bareNewlines() throws IOException {
+    BufferedSource source = source("HTTP/1.0 404 Not Found\nA: b\n\n");
+    assertEquals("Not Found", reader.readStatusLine(source).message());
+    Headers.Builder builder = new Headers.Builder();
+    reader.readHeaders(source, builder);
+    assertEquals("b", builder.build().get("a"));
+    assertTrue(source.exhausted());
+  }
+
+  @Test public void nonAsciiValue() throws IOException {
+    BufferedSource source = source("Title: \u00e9t\u00e9 \u2603\r\n\r\n");
+    Headers.Builder builder = new Headers.Builder();
+    reader.readHeaders(source, builder);
+    assertEquals("\u00e9t\u00e9 \u2603", builder.get("Title"));
+  }
+
+  @Test public void lenientLines() throws IOException {
+    BufferedSource source = source(":a: b\r\n"
+        + ": c\r\n"
+        + "no colon\r\n"
+        + "nul: x\0y\r\n"
+        + "\r\n");
+    Headers.Builder builder = new Headers.Builder();
+    reader.readHeaders(source, builder);
+    Headers headers = builder.build();
+    assertEquals(":a", headers.name(0));
+    assertEquals("b", headers.value(0));
+    assertEquals("", headers.name(1));
+    assertEquals("c", headers.value(1));
+    assertEquals("", headers.name(2));
+    assertEquals("no colon", headers.value(2));
+    assertEquals("nul", headers.name(3));
+    assertEquals("x\0y", headers.value(3));
+  }
+
+  @Test public void linesSplitAcrossReads() throws IOException {
+    BufferedSource source = Okio.buffer(new OneByteSource("HTTP/1.1 204 No Content\r\n"
+        + "Date: Sat, 12 Apr 2014 22:04:37 GMT\r\n"
+        + "\r\n"));
+    assertEquals(204, reader.readStatusLine(source).code());
+    Headers.Builder builder = new Headers.Builder();
+    reader.readHeaders(source, builder);
+    assertEquals("Sat, 12 Apr 2014 22:04:37 GMT", builder.get("Date"));
+  }
+
+  @Test public void truncatedHead() throws IOException {
+    BufferedSource source = source("HTTP/1.1 200 OK\r\nContent-Type: text/");
+    reader.readStatusLine(source);
+    try {
+      reader.readHeaders(source, new Headers.Builder());
+      fail();
+    } catch (EOFException expected) {
+    }
+  }
+
+  @Test public void incompleteLine() throws IOException {
+    OkBuffer buffer = new OkBuffer().writeUtf8("HTTP/1.1 200 OK\r\nA: b");
+    long newline = reader.lineEnd(buffer);
+    reader.readStatusLine(buffer, newline);
+    assertEquals(-1, reader.lineEnd(buffer));
+    assertEquals(4, buffer.size());
+
+    buffer.writeUtf8("\r\n\r\n");
+    Headers.Builder builder = new Headers.Builder();
+    assertTrue(reader.readHeaderLine(buffer, reader.lineEnd(buffer), builder));
+    assertFalse(reader.readHeaderLine(buffer, reader.lineEnd(buffer), builder));
+    assertEquals("b", builder.get("A"));
+    assertEquals(0, buffer.size());
+  }
+
+  @Test public void longLine() throws IOException {
+    char[] value = new char[10000];
+    Arrays.fill(value, 'v');
+    BufferedSource source = source("A: " + new String(value) + "\r\n\r\n");
+    Headers.Builder builder = new Headers.Builder();
+    reader.readHeaders(source, builder);
+    assertEquals(new String(value), builder.get("A"));
+  }
+
+  @Test public void headLimitExceeded() throws IOException {
+    HeaderReader reader = new HeaderReader(32);
+    BufferedSource source = source("HTTP/1.1 200 OK\r\n" // 17 bytes.
+        + "A: 0123456789\r\n" // 15 bytes.
+        + "B: c\r\n"
+        + "\r\n");
+    reader.readStatusLine(source);
+    Headers.Builder builder = new Headers.Builder();
+    try {
+      reader.readHeaders(source, builder);
+      fail();
+    } catch (ProtocolException expected) {
+    }
+    assertEquals("0123456789", builder.get("A"));
+  }
+
+  @Test public void headLimitExceededWithoutNewline() throws IOException {
+    HeaderReader reader = new HeaderReader(16);
+    OkBuffer buffer = new OkBuffer().writeUtf8("HTTP/1.1 200 OK ");
+    assertEquals(-1, reader.lineEnd(buffer));
+    buffer.writeUtf8("X");
+    try {
+      reader.lineEnd(buffer);
+      fail();
+    } catch (ProtocolException expected) {
+    }
+  }
+
+  @Test public void headLimitIsPerHead() throws IOException {
+    HeaderReader reader = new HeaderReader(20);
+    BufferedSource source = source("HTTP/1.1 100 Go\r\n\r\n"
+        + "HTTP/1.1 200 OK\r\n\r\n");
+    assertEquals(100, reader.readStatusLine(source).code());
+    reader.readHeaders(source, new Headers.Builder());
+    assertEquals(200, reader.readStatusLine(source).code());
+    reader.readHeaders(source, new Headers.Builder());
+  }
+
+  private static BufferedSource source(String s) {
+    return Okio.buffer((Source) new OkBuffer().writeUtf8(s));
+  }
+
+  /** Returns one byte per read. */
+  private static final class OneByteSource implements Source {
+    private final OkBuffer data;
+
+    OneByteSource(String s) {
+      this.data = new OkBuffer().writeUtf8(s);
+    }
+
+    @Override public long read(OkBuffer sink, long byteCount) throws IOException {
+      return data.read(sink, Math.min(byteCount, 1));
+    }
+
+    @Override public Source deadline(Deadline deadline) {
+      return this;
+    }
+
+    @Override public void close() throws IOException {
+    }
+  }
+}
@@ -19,14 +19,19 @@ import com.squareup.okhttp.Headers;
 import com.squareup.okhttp.Protocol;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
+import com.squareup.okhttp.internal.HeaderNames;
 import com.squareup.okhttp.internal.spdy.Header;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
+import okio.ByteString;
+import okio.OkBuffer;
 import org.junit.Test;
 
 import static com.squareup.okhttp.internal.Util.headerEntries;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 public final class HeadersTest {
   @Test public void parseNameValueBlock() throws IOException {
@@ -135,4 +140,75 @@ public final class HeadersTest {
     assertEquals(expected,
         SpdyTransport.writeNameValueBlock(request, Protocol.HTTP_2, "HTTP/1.1"));
   }
+
+  @Test public void addLineSharesWellKnownNames() {
+    Headers a = new Headers.Builder()
+        .addLine("Content-Type: text/html")
+        .addLine("content-length:  42 ")
+        .addLine("X-Custom: a")
+        .build();
+    Headers b = new Headers.Builder()
+        .addLine("Content-Type:text/plain")
+        .addLine("content-length: 7")
+        .addLine("X-Custom: b")
+        .build();
+    assertSame(a.name(0), b.name(0));
+    assertSame(a.name(1), b.name(1));
+    assertEquals("Content-Type", a.name(0));
+    assertEquals("content-length", a.name(1));
+    assertEquals("X-Custom", a.name(2));
+    assertEquals("42", a.value(1));
+    assertEquals("text/plain", b.value(0));
+  }
+
+  @Test public void getIgnoresCaseOfWellKnownAndOtherNames() {
+    Headers headers = new Headers.Builder()
+        .add("CONTENT-type", "text/html")
+        .add("x-custom", "a")
+        .add("Content-Type", "text/plain")
+        .add("X-CUSTOM", "b")
+        .add("ETag", "\"abc\"")
+        .build();
+    assertEquals("text/plain", headers.get("content-type"));
+    assertEquals("b", headers.get("x-Custom"));
+    assertEquals("\"abc\"", headers.get("etag"));
+    assertEquals(Arrays.asList("text/html", "text/plain"), headers.values("Content-TYPE"));
+    assertEquals(Arrays.asList("a", "b"), headers.values("X-Custom"));
+    assertNull(headers.get("Content-Length"));
+    assertNull(headers.get("x-other"));
+  }
+
+  @Test public void readNameValueBlockSharesWellKnownNames() throws IOException {
+    List<Header> headerBlock = headerEntries(
+        ":status", "200 OK",
+        ":version", "HTTP/1.1",
+        "content-type", "text/html");
+    Headers a = SpdyTransport.readNameValueBlock(headerBlock, Protocol.SPDY_3)
+        .request(new Request.Builder().url("http://square.com/").build()).build().headers();
+    Headers b = SpdyTransport.readNameValueBlock(headerBlock, Protocol.SPDY_3)
+        .request(new Request.Builder().url("http://square.com/").build()).build().headers();
+    assertEquals("content-type", a.name(1));
+    assertSame(a.name(1), b.name(1));
+  }
+
+  @Test public void headerNames() throws IOException {
+    assertEquals(HeaderNames.indexOf("Content-Type"), HeaderNames.indexOf("content-TYPE"));
+    assertEquals(HeaderNames.indexOf("Content-Type"),
+        HeaderNames.indexOf(ByteString.encodeUtf8("CONTENT-TYPE")));
+    assertEquals(HeaderNames.indexOf("Content-Type"),
+        HeaderNames.indexOf("xContent-Typex", 1, 13));
+    assertEquals(-1, HeaderNames.indexOf("Content-Typo"));
+    assertEquals(-1, HeaderNames.indexOf(ByteString.encodeUtf8("content-typ")));
+    assertEquals(-1, HeaderNames.indexOf(""));
+
+    assertSame(HeaderNames.lowercaseUtf8("Content-Type"),
+        HeaderNames.lowercaseUtf8("CONTENT-TYPE"));
+    assertEquals(ByteString.encodeUtf8("x-custom"), HeaderNames.lowercaseUtf8("X-Custom"));
+
+    OkBuffer buffer = new OkBuffer();
+    HeaderNames.writeUtf8(buffer, "Content-Type");
+    HeaderNames.writeUtf8(buffer, "content-type");
+    HeaderNames.writeUtf8(buffer, "CONTENT-TYPE");
+    assertEquals("Content-Typecontent-typeCONTENT-TYPE", buffer.readUtf8(buffer.size()));
+  }
 }
@@ -52,6 +52,7 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -209,6 +210,44 @@ public abstract class HttpOverSpdyTest {
     assertEquals(1, server.takeRequest().getSequenceNumber());
   }
 
+  @Test public void coalescedWrites() throws Exception {
+    server.enqueue(new MockResponse().setBody("ABCDEF"));
+    server.enqueue(new MockResponse().setBody("GHIJKL"));
+    server.play();
+
+    client.setSpdyWriteCoalescing(16 * 1024, 10, MILLISECONDS);
+    HttpURLConnection connection1 = client.open(server.getUrl("/r1"));
+    connection1.setDoOutput(true);
+    OutputStream out = connection1.getOutputStream();
+    out.write("ABC".getBytes("UTF-8"));
+    out.close();
+    HttpURLConnection connection2 = client.open(server.getUrl("/r2"));
+    assertEquals("ABCDEF", readAscii(connection1.getInputStream(), Integer.MAX_VALUE));
+    assertEquals("GHIJKL", readAscii(connection2.getInputStream(), Integer.MAX_VALUE));
+
+    RecordedRequest request1 = server.takeRequest();
+    assertEquals("POST /r1 HTTP/1.1", request1.getRequestLine());
+    assertEquals("ABC", request1.getUtf8Body());
+    assertEquals(1, server.takeRequest().getSequenceNumber());
+  }
+
+  @Test public void autoTunedReceiveWindows() throws Exception {
+    byte[] body = new byte[1024 * 1024];
+    Arrays.fill(body, (byte) 'A');
+    server.enqueue(new MockResponse().setBody(body));
+    server.play();
+
+    client.setSpdyReceiveWindowAutoTuning(4 * 1024 * 1024, 2 * 1024 * 1024);
+    connection = client.open(server.getUrl("/"));
+    InputStream in = connection.getInputStream();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int count; (count = in.read(buffer)) != -1; ) {
+      out.write(buffer, 0, count);
+    }
+    assertArrayEquals(body, out.toByteArray());
+  }
+
   @Test @Ignore public void synchronousSpdyRequest() throws Exception {
     server.enqueue(new MockResponse().setBody("A"));
     server.enqueue(new MockResponse().setBody("A"));
@@ -31,6 +31,7 @@ import com.squareup.okhttp.mockwebserver.RecordedRequest;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -52,6 +53,7 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
@@ -1861,12 +1863,340 @@ public final class HttpResponseCacheTest {
     assertEquals("foo", connection.getHeaderField("etag"));
   }
 
+  @Test public void textEntryIsMigratedToBinaryFormat() throws Exception {
+    cache.close();
+    server.enqueue(new MockResponse().setBody("ABC"));
+    server.play();
+
+    URL url = server.getUrl("/");
+    String urlKey = Util.hash(url.toString());
+    String entryMetadata = ""
+        + "" + url + "\n"
+        + "GET\n"
+        + "0\n"
+        + "HTTP/1.1 200 OK\n"
+        + "3\n"
+        + "Cache-Control: max-age=60\n"
+        + "OkHttp-Received-Millis: " + System.currentTimeMillis() + "\n"
+        + "OkHttp-Sent-Millis: " + System.currentTimeMillis() + "\n";
+    String entryBody = "abc";
+    String journalBody = ""
+        + "libcore.io.DiskLruCache\n"
+        + "1\n"
+        + "201105\n"
+        + "2\n"
+        + "\n"
+        + "CLEAN " + urlKey + " " + entryMetadata.length() + " " + entryBody.length() + "\n";
+    writeFile(cache.getDirectory(), urlKey + ".0", entryMetadata);
+    writeFile(cache.getDirectory(), urlKey + ".1", entryBody);
+    writeFile(cache.getDirectory(), "journal", journalBody);
+    cache = new HttpResponseCache(cache.getDirectory(), Integer.MAX_VALUE);
+    client.setOkResponseCache(cache);
+
+    assertEquals("abc", readAscii(client.open(url)));
+    assertEquals(0, readFirstByte(new File(cache.getDirectory(), urlKey + ".0")));
+
+    // The migrated entry is read back in the binary format.
+    assertEquals("abc", readAscii(client.open(url)));
+    assertEquals(2, cache.getHitCount());
+    assertEquals(0, server.getRequestCount());
+  }
+
+  @Test public void certificateChainIsStoredOnce() throws Exception {
+    server.useHttps(sslContext.getSocketFactory(), false);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("B"));
+    server.play();
+    client.setSslSocketFactory(sslContext.getSocketFactory());
+    client.setHostnameVerifier(NULL_HOSTNAME_VERIFIER);
+
+    HttpsURLConnection a = (HttpsURLConnection) client.open(server.getUrl("/a"));
+    assertEquals("A", readAscii(a));
+    List<Certificate> serverCerts = toListOrNull(a.getServerCertificates());
+    assertEquals("B", readAscii(client.open(server.getUrl("/b"))));
+    assertEquals(1, chainFiles(cache.getDirectory()).size());
+
+    // The chain counts toward the cache's size.
+    long size = 0;
+    for (File file : cache.getDirectory().listFiles()) {
+      if (file.getName().matches(".*\\.[0-9]+")) size += file.length();
+    }
+    assertEquals(size, cache.getSize());
+
+    // A new cache decodes the shared chain for both entries.
+    cache.close();
+    cache = new HttpResponseCache(cache.getDirectory(), Integer.MAX_VALUE);
+    client.setOkResponseCache(cache);
+    HttpsURLConnection cachedA = (HttpsURLConnection) client.open(server.getUrl("/a"));
+    assertEquals("A", readAscii(cachedA));
+    assertEquals(serverCerts, toListOrNull(cachedA.getServerCertificates()));
+    HttpsURLConnection cachedB = (HttpsURLConnection) client.open(server.getUrl("/b"));
+    assertEquals("B", readAscii(cachedB));
+    assertEquals(serverCerts, toListOrNull(cachedB.getServerCertificates()));
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, chainFiles(cache.getDirectory()).size());
+  }
+
+  @Test public void unreferencedCertificateChainIsEvicted() throws Exception {
+    cache.delete();
+    String tmp = System.getProperty("java.io.tmpdir");
+    File cacheDir = new File(tmp, "HttpCache-" + UUID.randomUUID());
+    cache = new HttpResponseCache(cacheDir, 5000);
+    client.setOkResponseCache(cache);
+    server.useHttps(sslContext.getSocketFactory(), false);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.play();
+    client.setSslSocketFactory(sslContext.getSocketFactory());
+    client.setHostnameVerifier(NULL_HOSTNAME_VERIFIER);
+    char[] body = new char[3000];
+    Arrays.fill(body, 'x');
+    for (int i = 0; i < 2; i++) {
+      server2.enqueue(new MockResponse()
+          .addHeader("Cache-Control: max-age=60")
+          .setBody(new String(body)));
+    }
+    server2.play();
+
+    assertEquals("A", readAscii(client.open(server.getUrl("/a"))));
+    assertEquals(1, chainFiles(cacheDir).size());
+
+    // Evict the HTTPS response, and its chain after it.
+    readAscii(client.open(server2.getUrl("/b")));
+    readAscii(client.open(server2.getUrl("/c")));
+    cache.flush();
+    assertEquals(Collections.<File>emptyList(), chainFiles(cacheDir));
+  }
+
+  @Test public void entryWithMissingCertificateChainIsRemoved() throws Exception {
+    server.useHttps(sslContext.getSocketFactory(), false);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("B"));
+    server.play();
+    client.setSslSocketFactory(sslContext.getSocketFactory());
+    client.setHostnameVerifier(NULL_HOSTNAME_VERIFIER);
+
+    assertEquals("A", readAscii(client.open(server.getUrl("/"))));
+    cache.close();
+    for (File file : chainFiles(cache.getDirectory())) {
+      assertTrue(file.delete());
+    }
+    cache = new HttpResponseCache(cache.getDirectory(), Integer.MAX_VALUE);
+    client.setOkResponseCache(cache);
+
+    // The entry is removed, and replaced with the next response.
+    assertEquals("B", readAscii(client.open(server.getUrl("/"))));
+    assertEquals("B", readAscii(client.open(server.getUrl("/"))));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, chainFiles(cache.getDirectory()).size());
+  }
+
+  /** Returns the files that hold shared certificate chains in {@code directory}. */
+  private List<File> chainFiles(File directory) {
+    List<File> result = new ArrayList<File>();
+    for (File file : directory.listFiles()) {
+      if (file.getName().matches("[0-9a-f]{64}\\.0")) result.add(file);
+    }
+    return result;
+  }
+
+  @Test public void memoryTierServesRepeatHits() throws Exception {
+    useMemoryTier(1024 * 1024);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.play();
+
+    URL url = server.getUrl("/");
+    assertEquals("A", readAscii(openConnection(url)));
+    assertEquals("A", readAscii(openConnection(url)));
+    assertEquals(1, cache.getDiskHitCount());
+    assertTrue(cache.getMemorySize() > 0);
+
+    // Corrupt the metadata on disk. The next hit doesn't read it.
+    String key = Util.hash(url.toString());
+    writeFile(cache.getDirectory(), key + ".0", "garbage\n");
+    assertEquals("A", readAscii(openConnection(url)));
+    assertEquals(1, cache.getMemoryHitCount());
+    assertEquals(1, cache.getDiskHitCount());
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getNetworkCount());
+  }
+
+  @Test public void memoryTierIsInvalidatedByConditionalUpdate() throws Exception {
+    useMemoryTier(1024 * 1024);
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=0")
+        .addHeader("ETag: v1")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED)
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("Allow: GET, HEAD"));
+    server.play();
+
+    URL url = server.getUrl("/");
+    assertEquals("A", readAscii(openConnection(url)));
+    assertEquals("A", readAscii(openConnection(url)));
+    assertNull(server.takeRequest().getHeader("If-None-Match"));
+    assertEquals("v1", server.takeRequest().getHeader("If-None-Match"));
+
+    // The updated headers are read from disk.
+    HttpURLConnection connection = openConnection(url);
+    assertEquals("A", readAscii(connection));
+    assertEquals("GET, HEAD", connection.getHeaderField("Allow"));
+    assertEquals(2, cache.getDiskHitCount());
+    assertEquals(2, server.getRequestCount());
+  }
+
+  @Test public void memoryTierKeepsLargeBodiesOnDisk() throws Exception {
+    useMemoryTier(1024 * 1024);
+    char[] body = new char[100 * 1024];
+    Arrays.fill(body, 'x');
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody(new String(body)));
+    server.play();
+
+    URL url = server.getUrl("/");
+    for (int i = 0; i < 3; i++) {
+      assertEquals(new String(body), readAscii(openConnection(url)));
+    }
+    assertEquals(1, cache.getDiskHitCount());
+    assertEquals(1, cache.getMemoryHitCount());
+    assertTrue(cache.getMemorySize() < body.length);
+  }
+
+  @Test public void memoryTierEvictsLeastRecentlyUsed() throws Exception {
+    useMemoryTier(64 * 1024);
+    char[] body = new char[40 * 1024];
+    Arrays.fill(body, 'x');
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody(new String(body)));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody(new String(body)));
+    server.play();
+
+    URL a = server.getUrl("/a");
+    URL b = server.getUrl("/b");
+    readAscii(openConnection(a));
+    readAscii(openConnection(b));
+    readAscii(openConnection(a)); // a is read from disk.
+    readAscii(openConnection(b)); // b is read from disk, evicting a.
+    readAscii(openConnection(a)); // a is read from disk, evicting b.
+    assertEquals(3, cache.getDiskHitCount());
+    assertEquals(0, cache.getMemoryHitCount());
+    readAscii(openConnection(a));
+    assertEquals(1, cache.getMemoryHitCount());
+  }
+
+  @Test public void memoryHitsKeepDiskEntriesFresh() throws Exception {
+    cache.delete();
+    String tmp = System.getProperty("java.io.tmpdir");
+    File cacheDir = new File(tmp, "HttpCache-" + UUID.randomUUID());
+    cache = new HttpResponseCache(cacheDir, 25 * 1000, 1024 * 1024); // Two entries on disk.
+    ResponseCache.setDefault(cache);
+    char[] body = new char[10 * 1000];
+    Arrays.fill(body, 'x');
+    for (int i = 0; i < 4; i++) {
+      server.enqueue(new MockResponse()
+          .addHeader("Cache-Control: max-age=60")
+          .setBody(new String(body)));
+    }
+    server.play();
+
+    URL a = server.getUrl("/a");
+    URL b = server.getUrl("/b");
+    URL c = server.getUrl("/c");
+    readAscii(openConnection(a));
+    readAscii(openConnection(b));
+    readAscii(openConnection(a)); // a is read from disk.
+    readAscii(openConnection(b)); // b is read from disk.
+    readAscii(openConnection(a)); // a is read from memory, and is now more recent than b on disk.
+    assertEquals(1, cache.getMemoryHitCount());
+    long memorySize = cache.getMemorySize();
+    readAscii(openConnection(c)); // Evicts b from disk, and so from memory.
+    cache.flush();
+    assertTrue(new File(cacheDir, Util.hash(a.toString()) + ".1").exists());
+    assertFalse(new File(cacheDir, Util.hash(b.toString()) + ".1").exists());
+    for (int i = 0; cache.getMemorySize() >= memorySize; i++) {
+      assertTrue(i < 500); // The eviction listener may run on the cleanup thread.
+      Thread.sleep(10);
+    }
+
+    readAscii(openConnection(a));
+    assertEquals(2, cache.getMemoryHitCount());
+    readAscii(openConnection(b));
+    assertEquals(4, server.getRequestCount());
+  }
+
+  @Test public void shardedCacheServesHitsAfterReopen() throws Exception {
+    cache.delete();
+    String tmp = System.getProperty("java.io.tmpdir");
+    File cacheDir = new File(tmp, "HttpCache-" + UUID.randomUUID());
+    cache = new HttpResponseCache(cacheDir, Integer.MAX_VALUE, 0, 4);
+    client.setOkResponseCache(cache);
+    for (int i = 0; i < 8; i++) {
+      server.enqueue(new MockResponse()
+          .addHeader("Cache-Control: max-age=60")
+          .setBody("body" + i));
+    }
+    server.play();
+
+    for (int i = 0; i < 8; i++) {
+      assertEquals("body" + i, readAscii(openConnection(server.getUrl("/" + i))));
+    }
+    long size = cache.getSize();
+    assertTrue(size > 0);
+    assertFalse(new File(cacheDir, "journal").exists());
+    assertTrue(new File(cacheDir, "shard3of4").isDirectory());
+    cache.close();
+
+    cache = new HttpResponseCache(cacheDir, Integer.MAX_VALUE, 0, 4);
+    client.setOkResponseCache(cache);
+    for (int i = 0; i < 8; i++) {
+      assertEquals("body" + i, readAscii(openConnection(server.getUrl("/" + i))));
+    }
+    assertEquals(8, cache.getHitCount());
+    assertEquals(size, cache.getSize());
+    assertEquals(8, server.getRequestCount());
+  }
+
+  /** Replaces the cache with one that keeps {@code maxMemorySize} bytes in memory. */
+  private void useMemoryTier(long maxMemorySize) throws IOException {
+    cache.delete();
+    String tmp = System.getProperty("java.io.tmpdir");
+    File cacheDir = new File(tmp, "HttpCache-" + UUID.randomUUID());
+    cache = new HttpResponseCache(cacheDir, Integer.MAX_VALUE, maxMemorySize);
+    ResponseCache.setDefault(cache);
+  }
+
   private void writeFile(File directory, String file, String content) throws IOException {
     OutputStream out = new FileOutputStream(new File(directory, file));
     out.write(content.getBytes(Util.UTF_8));
     out.close();
   }
 
+  private int readFirstByte(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      return in.read();
+    } finally {
+      in.close();
+    }
+  }
+
   /**
    * @param delta the offset from the current date to use. Negative
    * values yield dates in the past; positive values yield dates in the
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.spdy;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import okio.Deadline;
+import okio.OkBuffer;
+import okio.Sink;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class CoalescingSinkTest {
+  private final RecordingSink socket = new RecordingSink();
+  private final QueueExecutor executor = new QueueExecutor();
+
+  @Test public void flushesAreCoalesced() throws IOException {
+    CoalescingSink sink = new CoalescingSink(socket, executor, "test", 1024, 0);
+    write(sink, "abc");
+    sink.flush();
+    write(sink, "def");
+    sink.flush();
+    assertEquals(1, executor.tasks.size());
+    assertEquals(0, socket.writes.size());
+
+    executor.runAll();
+    assertEquals(1, socket.writes.size());
+    assertEquals("abcdef", socket.writes.get(0));
+    assertEquals(1, sink.batchSizes()[2]); // 6 bytes is in [4..8).
+  }
+
+  @Test public void framesWrittenAfterABatchMakeANewBatch() throws IOException {
+    CoalescingSink sink = new CoalescingSink(socket, executor, "test", 1024, 0);
+    write(sink, "a");
+    sink.flush();
+    executor.runAll();
+    write(sink, "bc");
+    sink.flush();
+    executor.runAll();
+    assertEquals("a", socket.writes.get(0));
+    assertEquals("bc", socket.writes.get(1));
+    long[] batchSizes = sink.batchSizes();
+    assertEquals(1, batchSizes[0]);
+    assertEquals(1, batchSizes[1]);
+  }
+
+  @Test public void fullBatchIsScheduledWithoutFlush() throws IOException {
+    CoalescingSink sink = new CoalescingSink(socket, executor, "test", 4, 0);
+    write(sink, "abc");
+    assertEquals(0, executor.tasks.size());
+    write(sink, "de");
+    assertEquals(1, executor.tasks.size());
+    executor.runAll();
+    assertEquals("abcde", socket.writes.get(0));
+  }
+
+  @Test public void emptyFlushSchedulesNothing() throws IOException {
+    CoalescingSink sink = new CoalescingSink(socket, executor, "test", 1024, 0);
+    sink.flush();
+    assertEquals(0, executor.tasks.size());
+  }
+
+  @Test public void closeWritesRemainingFrames() throws IOException {
+    CoalescingSink sink = new CoalescingSink(socket, executor, "test", 1024, 0);
+    write(sink, "abc");
+    sink.close();
+    assertEquals("abc", socket.writes.get(0));
+    assertTrue(socket.closed);
+    try {
+      write(sink, "def");
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void writeFailureIsReportedToNextCaller() throws IOException {
+    CoalescingSink sink = new CoalescingSink(socket, executor, "test", 1024, 0);
+    IOException failure = new IOException("boom");
+    socket.failure = failure;
+    write(sink, "abc");
+    sink.flush();
+    executor.runAll();
+    assertTrue(socket.closed);
+    try {
+      sink.flush();
+      fail();
+    } catch (IOException expected) {
+      assertSame(failure, expected);
+    }
+  }
+
+  private static void write(Sink sink, String s) throws IOException {
+    OkBuffer buffer = new OkBuffer().writeUtf8(s);
+    sink.write(buffer, buffer.size());
+  }
+
+  /** Runs tasks when asked to. */
+  private static final class QueueExecutor implements Executor {
+    final Deque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+    @Override public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove().run();
+      }
+    }
+  }
+
+  /** Records each flushed write as a string. */
+  private static final class RecordingSink implements Sink {
+    final List<String> writes = new ArrayList<String>();
+    final OkBuffer buffer = new OkBuffer();
+    IOException failure;
+    boolean closed;
+
+    @Override public void write(OkBuffer source, long byteCount) throws IOException {
+      if (failure != null) throw failure;
+      buffer.write(source, byteCount);
+    }
+
+    @Override public void flush() throws IOException {
+      writes.add(buffer.readUtf8(buffer.size()));
+    }
+
+    @Override public Sink deadline(Deadline deadline) {
+      return this;
+    }
+
+    @Override public void close() throws IOException {
+      closed = true;
+    }
+  }
+}
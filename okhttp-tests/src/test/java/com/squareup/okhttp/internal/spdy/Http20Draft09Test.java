@@ -481,9 +481,23 @@ public class Http20Draft09Test {
     }
   }
 
+  @Test public void headerTableIsSizedByPeerSettings() throws IOException {
+    Http20Draft09.Writer writer = new Http20Draft09.Writer(new OkBuffer(), true);
+
+    Settings okHttpSettings = new Settings();
+    okHttpSettings.set(Settings.HEADER_TABLE_SIZE, 0, 1024);
+    writer.settings(okHttpSettings);
+    assertEquals(4096, writer.hpackWriter.maxHeaderTableByteCount());
+
+    Settings peerSettings = new Settings();
+    peerSettings.set(Settings.HEADER_TABLE_SIZE, 0, 256);
+    writer.ackSettings(peerSettings);
+    assertEquals(256, writer.hpackWriter.maxHeaderTableByteCount());
+  }
+
   private OkBuffer literalHeaders(List<Header> sentHeaders) throws IOException {
     OkBuffer out = new OkBuffer();
-    new HpackDraft05.Writer(out).writeHeaders(sentHeaders);
+    new HpackDraft05.Writer(true, 4096, out).writeHeaders(sentHeaders);
     return out;
   }
 
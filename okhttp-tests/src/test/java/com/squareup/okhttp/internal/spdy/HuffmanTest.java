@@ -15,15 +15,13 @@
  */
 package com.squareup.okhttp.internal.spdy;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.Random;
+import okio.ByteString;
+import okio.OkBuffer;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
 
 /**
  * Original version of this class was lifted from {@code com.twitter.hpack.HuffmanTest}.
@@ -48,13 +46,13 @@ public class HuffmanTest {
   }
 
   private static void assertRoundTrip(Huffman.Codec codec, byte[] buf) throws IOException {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream dos = new DataOutputStream(baos);
+    ByteString data = ByteString.of(buf);
+    OkBuffer encoded = new OkBuffer();
 
-    codec.encode(buf, dos);
-    assertEquals(baos.size(), codec.encodedLength(buf));
+    codec.encode(data, encoded);
+    assertEquals(encoded.size(), codec.encodedLength(data));
 
-    byte[] decodedBytes = codec.decode(baos.toByteArray());
-    assertTrue(Arrays.equals(buf, decodedBytes));
+    ByteString decoded = codec.decode(encoded.readByteString(encoded.size()));
+    assertEquals(data, decoded);
   }
 }
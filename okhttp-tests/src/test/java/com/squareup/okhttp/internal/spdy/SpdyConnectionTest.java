@@ -16,6 +16,7 @@
 package com.squareup.okhttp.internal.spdy;
 
 import com.squareup.okhttp.internal.Util;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.util.ArrayList;
@@ -94,6 +95,53 @@ public final class SpdyConnectionTest {
     assertTrue(Arrays.equals("c3po".getBytes("UTF-8"), requestData.data));
   }
 
+  @Test public void coalescedWritesShareABatch() throws Exception {
+    // write the mocking script
+    peer.acceptFrame(); // SYN_STREAM
+    peer.acceptFrame(); // SYN_STREAM
+    peer.acceptFrame(); // SYN_STREAM
+    peer.sendFrame().synReply(true, 1, headerEntries("a", "android"));
+    peer.sendFrame().synReply(true, 3, headerEntries("b", "banana"));
+    peer.sendFrame().synReply(true, 5, headerEntries("c", "cola"));
+    peer.acceptFrame(); // PING
+    peer.sendFrame().ping(true, 1, 0);
+    peer.play();
+
+    // play it back
+    SpdyConnection connection = connectionBuilder(peer, SPDY3)
+        .coalesceWrites(64 * 1024, 250, TimeUnit.MILLISECONDS)
+        .build();
+    SpdyStream stream1 = connection.newStream(headerEntries("d", "donut"), false, true);
+    SpdyStream stream3 = connection.newStream(headerEntries("e", "eclair"), false, true);
+    SpdyStream stream5 = connection.newStream(headerEntries("f", "froyo"), false, true);
+    assertEquals(headerEntries("a", "android"), stream1.getResponseHeaders());
+    assertEquals(headerEntries("b", "banana"), stream3.getResponseHeaders());
+    assertEquals(headerEntries("c", "cola"), stream5.getResponseHeaders());
+
+    // verify the peer received what was expected
+    assertEquals(headerEntries("d", "donut"), peer.takeFrame().headerBlock);
+    assertEquals(headerEntries("e", "eclair"), peer.takeFrame().headerBlock);
+    assertEquals(headerEntries("f", "froyo"), peer.takeFrame().headerBlock);
+    long batchCount = 0;
+    for (long count : connection.writeBatchSizes()) {
+      batchCount += count;
+    }
+    assertEquals(1, batchCount);
+
+    // Keep the peer open until the batches have been counted.
+    connection.ping().roundTripTime();
+  }
+
+  @Test public void writeBatchSizesRequiresCoalescing() throws Exception {
+    peer.play();
+    SpdyConnection connection = connection(peer, SPDY3);
+    try {
+      connection.writeBatchSizes();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
   @Test public void headersOnlyStreamIsClosedAfterReplyHeaders() throws Exception {
     peer.acceptFrame(); // SYN_STREAM
     peer.sendFrame().synReply(false, 1, headerEntries("b", "banana"));
@@ -338,7 +386,8 @@ public final class SpdyConnectionTest {
       assertEquals(0, connection.peerSettings.getHeaderTableSize());
       Http20Draft09.Reader frameReader = (Http20Draft09.Reader) connection.frameReader;
       assertEquals(0, frameReader.hpackReader.maxHeaderTableByteCount());
-      // TODO: when supported, check the frameWriter's compression table is unaffected.
+      Http20Draft09.Writer frameWriter = (Http20Draft09.Writer) connection.frameWriter;
+      assertEquals(0, frameWriter.hpackWriter.maxHeaderTableByteCount());
     }
   }
 
@@ -1115,6 +1164,102 @@ public final class SpdyConnectionTest {
     }
   }
 
+  @Test public void autoTunedWindowsGrowWithConsumption() throws Exception {
+    peer.setVariantAndClient(HTTP_20_DRAFT_09, false);
+
+    // Write the mocking script.
+    peer.acceptFrame(); // HEADERS
+    peer.sendFrame().synReply(false, 1, headerEntries("a", "android"));
+    sendData(1, DEFAULT_INITIAL_WINDOW_SIZE / 2);
+    peer.acceptFrame(); // WINDOW_UPDATE
+    peer.acceptFrame(); // WINDOW_UPDATE
+    peer.acceptFrame(); // PING to measure the round trip.
+    sendData(1, DEFAULT_INITIAL_WINDOW_SIZE);
+    peer.acceptFrame(); // WINDOW_UPDATE
+    peer.acceptFrame(); // WINDOW_UPDATE
+    peer.acceptFrame(); // WINDOW_UPDATE
+    peer.acceptFrame(); // WINDOW_UPDATE
+    peer.sendFrame().ping(true, 1, 0);
+    peer.acceptFrame(); // WINDOW_UPDATE growing the connection's window.
+    sendData(1, DEFAULT_INITIAL_WINDOW_SIZE / 2);
+    peer.acceptFrame(); // WINDOW_UPDATE growing the stream's window.
+    peer.play();
+
+    // Play it back.
+    SpdyConnection connection = connectionBuilder(peer, HTTP_20_DRAFT_09)
+        .autoTuneReceiveWindows(1024 * 1024, 1024 * 1024)
+        .build();
+    SpdyStream stream = connection.newStream(headerEntries("b", "banana"), false, true);
+    Source in = stream.getSource();
+    readFully(in, DEFAULT_INITIAL_WINDOW_SIZE / 2);
+    readFully(in, DEFAULT_INITIAL_WINDOW_SIZE / 2);
+    readFully(in, DEFAULT_INITIAL_WINDOW_SIZE / 2);
+
+    // Verify the peer received what was expected.
+    assertEquals(TYPE_HEADERS, peer.takeFrame().type);
+
+    // The first connection window update starts a measurement.
+    int pingCount = 0;
+    for (int i = 0; i < 3; i++) {
+      MockSpdyPeer.InFrame frame = peer.takeFrame();
+      if (frame.type == TYPE_PING) {
+        assertEquals(1, frame.payload1);
+        pingCount++;
+      } else {
+        assertEquals(TYPE_WINDOW_UPDATE, frame.type);
+        assertEquals(DEFAULT_INITIAL_WINDOW_SIZE / 2, frame.windowSizeIncrement);
+      }
+    }
+    assertEquals(1, pingCount);
+    for (int i = 0; i < 4; i++) {
+      MockSpdyPeer.InFrame windowUpdate = peer.takeFrame();
+      assertEquals(TYPE_WINDOW_UPDATE, windowUpdate.type);
+      assertEquals(DEFAULT_INITIAL_WINDOW_SIZE / 2, windowUpdate.windowSizeIncrement);
+    }
+
+    // The whole window was consumed in one round trip, so the windows double.
+    MockSpdyPeer.InFrame connectionGrowth = peer.takeFrame();
+    assertEquals(TYPE_WINDOW_UPDATE, connectionGrowth.type);
+    assertEquals(0, connectionGrowth.streamId);
+    long tunedWindow = 2 * DEFAULT_INITIAL_WINDOW_SIZE;
+    assertEquals(tunedWindow - DEFAULT_INITIAL_WINDOW_SIZE, connectionGrowth.windowSizeIncrement);
+    assertEquals(tunedWindow, connection.windowTuner.streamWindow);
+
+    // The stream's window grows with its next update.
+    readFully(in, DEFAULT_INITIAL_WINDOW_SIZE / 2);
+    MockSpdyPeer.InFrame streamGrowth = peer.takeFrame();
+    assertEquals(TYPE_WINDOW_UPDATE, streamGrowth.type);
+    assertEquals(1, streamGrowth.streamId);
+    assertEquals(DEFAULT_INITIAL_WINDOW_SIZE / 2 + tunedWindow - DEFAULT_INITIAL_WINDOW_SIZE,
+        streamGrowth.windowSizeIncrement);
+  }
+
+  @Test public void autoTunedClientStartsWithDefaultWindow() throws Exception {
+    peer.play();
+    SpdyConnection connection = connectionBuilder(peer, HTTP_20_DRAFT_09)
+        .autoTuneReceiveWindows(1024 * 1024, 1024 * 1024)
+        .build();
+    assertEquals(DEFAULT_INITIAL_WINDOW_SIZE,
+        connection.okHttpSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE));
+    assertEquals(DEFAULT_INITIAL_WINDOW_SIZE, connection.windowTuner.connectionWindow);
+  }
+
+  /** Sends {@code byteCount} bytes on {@code streamId} in frames of at most 16383 bytes. */
+  private void sendData(int streamId, int byteCount) throws IOException {
+    for (int remaining = byteCount; remaining > 0; ) {
+      int frameSize = Math.min(remaining, 16383);
+      peer.sendFrame().data(false, streamId, data(frameSize));
+      remaining -= frameSize;
+    }
+  }
+
+  private void readFully(Source in, long byteCount) throws IOException {
+    OkBuffer buffer = new OkBuffer();
+    while (buffer.size() < byteCount) {
+      if (in.read(buffer, byteCount - buffer.size()) == -1) throw new EOFException();
+    }
+  }
+
   private OkBuffer data(int byteCount) {
     return new OkBuffer().write(new byte[byteCount]);
   }
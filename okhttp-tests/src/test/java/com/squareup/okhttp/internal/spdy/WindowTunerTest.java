@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.spdy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class WindowTunerTest {
+  private final WindowTuner tuner = new WindowTuner(1000, 1000, 100000, 100000);
+
+  @Test public void measurementStartsOnlyWithWindowUpdate() {
+    for (int i = 0; i < 100; i++) {
+      assertFalse(tuner.consumed(1, false));
+    }
+    assertTrue(tuner.consumed(1, true));
+  }
+
+  @Test public void windowsGrowWhenMostOfTheWindowIsConsumedInOneRoundTrip() {
+    assertTrue(tuner.consumed(500, true));
+    tuner.pingSent(1);
+    assertFalse(tuner.consumed(900, true));
+    assertEquals(800, tuner.pingReceived(1));
+    assertEquals(1800, tuner.connectionWindow);
+    assertEquals(1800, tuner.streamWindow);
+  }
+
+  @Test public void measuringStopsAfterUnproductiveSamples() {
+    for (int i = 0; i < WindowTuner.MAX_UNPRODUCTIVE_SAMPLES; i++) {
+      int pingId = 2 * i + 1;
+      assertTrue(tuner.consumed(500, true));
+      tuner.pingSent(pingId);
+      tuner.consumed(10, false);
+      assertEquals(0, tuner.pingReceived(pingId));
+    }
+    assertFalse(tuner.consumed(500, true));
+  }
+
+  @Test public void openingAStreamResumesMeasuring() {
+    for (int i = 0; i < WindowTuner.MAX_UNPRODUCTIVE_SAMPLES; i++) {
+      int pingId = 2 * i + 1;
+      assertTrue(tuner.consumed(500, true));
+      tuner.pingSent(pingId);
+      assertEquals(0, tuner.pingReceived(pingId));
+    }
+    assertFalse(tuner.consumed(500, true));
+
+    tuner.streamOpened();
+    assertTrue(tuner.consumed(500, true));
+  }
+
+  @Test public void productiveSampleResetsUnproductiveCount() {
+    for (int i = 0; i < WindowTuner.MAX_UNPRODUCTIVE_SAMPLES - 1; i++) {
+      int pingId = 2 * i + 1;
+      assertTrue(tuner.consumed(500, true));
+      tuner.pingSent(pingId);
+      assertEquals(0, tuner.pingReceived(pingId));
+    }
+    assertTrue(tuner.consumed(500, true));
+    tuner.pingSent(99);
+    tuner.consumed(1000, true);
+    assertTrue(tuner.pingReceived(99) > 0);
+
+    for (int i = 0; i < WindowTuner.MAX_UNPRODUCTIVE_SAMPLES - 1; i++) {
+      int pingId = 2 * i + 101;
+      assertTrue(tuner.consumed(500, true));
+      tuner.pingSent(pingId);
+      assertEquals(0, tuner.pingReceived(pingId));
+    }
+    assertTrue(tuner.consumed(500, true));
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import com.squareup.okhttp.internal.DiskLruCache;
+import com.squareup.okhttp.internal.ShardedDiskLruCache;
+import com.squareup.okhttp.internal.Util;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import okio.ByteString;
+import okio.OkBuffer;
+
+/**
+ * Certificate chains shared by the entries of a response cache. Most cached
+ * HTTPS responses come from a handful of servers, so entries refer to their
+ * chains by fingerprint and each chain is stored once.
+ *
+ * <p>Each chain is an entry of the response cache itself, keyed by the hex of
+ * its SHA-256 fingerprint. Those keys are 64 characters, so they can't collide
+ * with the 32-character keys of responses. Chains count toward the cache's
+ * size and are evicted with its least recently used entries; reading or
+ * writing a response that refers to a chain also uses the chain, so a chain
+ * outlives the responses that refer to it only briefly. The chain's value is
+ * the number of certificates, and then each certificate's length and DER
+ * encoding.
+ *
+ * <p>Recently used chains are kept decoded in memory.
+ */
+final class CertificateChainStore {
+  private static final int FINGERPRINT_SIZE = 32;
+  private static final int MAX_DECODED_CHAINS = 64;
+
+  private final ShardedDiskLruCache cache;
+
+  /** Recently used chains by fingerprint. Guarded by itself. */
+  private final DecodedChains decoded = new DecodedChains();
+
+  CertificateChainStore(ShardedDiskLruCache cache) {
+    this.cache = cache;
+  }
+
+  /** Returns the chain with {@code fingerprint}, or null if it isn't stored or is unreadable. */
+  List<Certificate> get(ByteString fingerprint) throws IOException {
+    String key = fingerprint.hex();
+    List<Certificate> result;
+    synchronized (decoded) {
+      result = decoded.get(fingerprint);
+    }
+    if (result != null) {
+      if (cache.touch(key)) return result;
+      forget(key);
+      return null;
+    }
+
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    if (snapshot != null) {
+      try {
+        result = decode(snapshot);
+      } catch (IOException e) {
+        // The chain is unreadable.
+      } finally {
+        snapshot.close();
+      }
+    }
+    if (result == null) {
+      // If the chain's file is missing or corrupt, remove it so it can be stored again.
+      cache.remove(key);
+      return null;
+    }
+    synchronized (decoded) {
+      decoded.put(fingerprint, result);
+    }
+    return result;
+  }
+
+  /** Stores {@code chain} if it isn't stored already, and returns its fingerprint. */
+  ByteString put(List<Certificate> chain) throws IOException {
+    OkBuffer record = new OkBuffer();
+    try {
+      record.writeInt(chain.size());
+      for (Certificate certificate : chain) {
+        byte[] encoded = certificate.getEncoded();
+        record.writeInt(encoded.length);
+        record.write(encoded);
+      }
+    } catch (CertificateEncodingException e) {
+      throw new IOException(e.getMessage());
+    }
+    ByteString encodedChain = record.readByteString(record.size());
+    ByteString fingerprint = sha256(encodedChain);
+    String key = fingerprint.hex();
+
+    if (cache.touch(key)) return fingerprint; // Already stored.
+    DiskLruCache.Editor editor = cache.edit(key);
+    if (editor == null) return fingerprint; // Another thread is storing it.
+    try {
+      OutputStream out = editor.newOutputStream(0);
+      try {
+        encodedChain.write(out);
+      } finally {
+        out.close();
+      }
+      editor.set(1, "");
+      editor.commit();
+    } catch (IOException e) {
+      editor.abortUnlessCommitted();
+      throw e;
+    }
+    synchronized (decoded) {
+      decoded.put(fingerprint, Collections.unmodifiableList(new ArrayList<Certificate>(chain)));
+    }
+    return fingerprint;
+  }
+
+  /** Marks the chains with {@code fingerprints} as recently used. */
+  void touch(List<ByteString> fingerprints) throws IOException {
+    for (int i = 0, size = fingerprints.size(); i < size; i++) {
+      cache.touch(fingerprints.get(i).hex());
+    }
+  }
+
+  /** Forgets the decoded chain for {@code key}, after its entry is evicted. */
+  void forget(String key) {
+    if (key.length() != 2 * FINGERPRINT_SIZE) return; // Not a chain.
+    synchronized (decoded) {
+      decoded.remove(ByteString.decodeHex(key));
+    }
+  }
+
+  /** Forgets all decoded chains. Call this after the cache has been deleted. */
+  void clear() {
+    synchronized (decoded) {
+      decoded.clear();
+    }
+  }
+
+  private static List<Certificate> decode(DiskLruCache.Snapshot snapshot) throws IOException {
+    InputStream in = snapshot.getInputStream(0);
+    byte[] encodedChain = new byte[(int) snapshot.getLength(0)];
+    Util.readFully(in, encodedChain);
+    OkBuffer source = new OkBuffer().write(encodedChain);
+    try {
+      CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+      source.require(4);
+      int count = source.readInt();
+      List<Certificate> result = new ArrayList<Certificate>(count);
+      for (int i = 0; i < count; i++) {
+        source.require(4);
+        int length = source.readInt();
+        source.require(length);
+        byte[] encoded = source.readByteString(length).toByteArray();
+        result.add(certificateFactory.generateCertificate(new ByteArrayInputStream(encoded)));
+      }
+      return Collections.unmodifiableList(result);
+    } catch (CertificateException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+  /** A least recently used map of decoded chains, by fingerprint. */
+  private static final class DecodedChains extends LinkedHashMap<ByteString, List<Certificate>> {
+    private static final long serialVersionUID = 1L;
+
+    DecodedChains() {
+      super(0, 0.75f, true);
+    }
+
+    @Override protected boolean removeEldestEntry(
+        Map.Entry<ByteString, List<Certificate>> eldest) {
+      return size() > MAX_DECODED_CHAINS;
+    }
+  }
+
+  private static ByteString sha256(ByteString data) {
+    try {
+      return ByteString.of(MessageDigest.getInstance("SHA-256").digest(data.toByteArray()));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
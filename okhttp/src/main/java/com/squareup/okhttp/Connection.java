@@ -27,6 +27,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.net.Proxy;
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.SSLSocket;
 import okio.ByteString;
 
@@ -71,6 +72,7 @@ public final class Connection implements Closeable {
   private long idleStartTimeNs;
   private Handshake handshake;
   private int recycleCount;
+  private boolean prewarmed;
 
   public Connection(ConnectionPool pool, Route route) {
     this.pool = pool;
@@ -79,6 +81,19 @@ public final class Connection implements Closeable {
 
   public void connect(int connectTimeout, int readTimeout, TunnelRequest tunnelRequest)
       throws IOException {
+    connect(connectTimeout, readTimeout, tunnelRequest, null);
+  }
+
+  /**
+   * Connects using {@code client}'s timeouts. SPDY and HTTP/2 connections are
+   * configured with the client's write coalescing and receive window tuning.
+   */
+  public void connect(OkHttpClient client, TunnelRequest tunnelRequest) throws IOException {
+    connect(client.getConnectTimeout(), client.getReadTimeout(), tunnelRequest, client);
+  }
+
+  private void connect(int connectTimeout, int readTimeout, TunnelRequest tunnelRequest,
+      OkHttpClient client) throws IOException {
     if (connected) throw new IllegalStateException("already connected");
 
     socket = (route.proxy.type() != Proxy.Type.HTTP) ? new Socket(route.proxy) : new Socket();
@@ -86,7 +101,7 @@ public final class Connection implements Closeable {
     socket.setSoTimeout(readTimeout);
 
     if (route.address.sslSocketFactory != null) {
-      upgradeToTls(tunnelRequest);
+      upgradeToTls(tunnelRequest, client);
     } else {
       httpConnection = new HttpConnection(pool, this, socket);
     }
@@ -97,7 +112,8 @@ public final class Connection implements Closeable {
    * Create an {@code SSLSocket} and perform the TLS handshake and certificate
    * validation.
    */
-  private void upgradeToTls(TunnelRequest tunnelRequest) throws IOException {
+  private void upgradeToTls(TunnelRequest tunnelRequest, OkHttpClient client)
+      throws IOException {
     Platform platform = Platform.get();
 
     // Make an SSL Tunnel on the first message pair of each SSL + proxy connection.
@@ -149,8 +165,18 @@ public final class Connection implements Closeable {
 
     if (selectedProtocol.spdyVariant) {
       sslSocket.setSoTimeout(0); // SPDY timeouts are set per-stream.
-      spdyConnection = new SpdyConnection.Builder(route.address.getUriHost(), true, socket)
-          .protocol(selectedProtocol).build();
+      String host = route.address.getUriHost();
+      SpdyConnection.Builder builder = new SpdyConnection.Builder(host, true, socket)
+          .protocol(selectedProtocol);
+      if (client != null && client.getSpdyMaxBatchBytes() > 0) {
+        builder.coalesceWrites(client.getSpdyMaxBatchBytes(), client.getSpdyMaxBatchDelay(),
+            TimeUnit.NANOSECONDS);
+      }
+      if (client != null && client.getSpdyMaxConnectionWindow() > 0) {
+        builder.autoTuneReceiveWindows(client.getSpdyMaxConnectionWindow(),
+            client.getSpdyMaxStreamWindow());
+      }
+      spdyConnection = builder.build();
       spdyConnection.sendConnectionHeader();
     } else {
       httpConnection = new HttpConnection(pool, this, socket);
@@ -239,6 +265,15 @@ public final class Connection implements Closeable {
     return spdyConnection != null;
   }
 
+  /**
+   * Permits HTTP/1.1 requests without bodies to be written on this connection
+   * before the responses to earlier requests have been read.
+   */
+  public void pipelineRequests() {
+    if (httpConnection == null) throw new IllegalStateException("not an HTTP/1.1 connection");
+    httpConnection.pipelineRequests();
+  }
+
   /**
    * Returns the minor HTTP version that should be used for future requests on
    * this connection. Either 0 for HTTP/1.0, or 1 for HTTP/1.1. The default
@@ -278,6 +313,18 @@ public final class Connection implements Closeable {
     return recycleCount;
   }
 
+  public void markPrewarmed() {
+    prewarmed = true;
+  }
+
+  /**
+   * Returns true if this connection was given to the connection pool before
+   * its first use.
+   */
+  public boolean isPrewarmed() {
+    return prewarmed;
+  }
+
   /**
    * To make an HTTPS connection over an HTTP proxy, send an unencrypted
    * CONNECT request to create the proxy connection. This may need to be
@@ -19,14 +19,23 @@ package com.squareup.okhttp;
 import com.squareup.okhttp.internal.Platform;
 import com.squareup.okhttp.internal.Util;
 import java.net.SocketException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages reuse of HTTP and SPDY connections for reduced network latency. HTTP
@@ -46,13 +55,22 @@ import java.util.concurrent.TimeUnit;
  *         This property isn't used by {@code HttpURLConnection}.
  * </ul>
  *
+ * <p>Pooled connections are indexed by their address, so finding a connection
+ * doesn't scan the connections to other addresses. Each address's connections
+ * are guarded by their own lock; threads using different addresses don't
+ * contend.
+ *
+ * <p>A single background thread closes connections as they expire. It sleeps
+ * until the next pooled connection's keep alive deadline, and is woken early
+ * only when there are more idle connections than the pool permits. The thread
+ * exits when the pool is empty.
+ *
  * <p>The default instance <i>doesn't</i> adjust its configuration as system
  * properties are changed. This assumes that the applications that set these
  * parameters do so before making HTTP connections, and that this class is
  * initialized lazily.
  */
 public class ConnectionPool {
-  private static final int MAX_CONNECTIONS_TO_CLEANUP = 2;
   private static final long DEFAULT_KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000; // 5 min
 
   private static final ConnectionPool systemDefault;
@@ -72,46 +90,67 @@ public class ConnectionPool {
     }
   }
 
+  /** Orders entries from most recently to least recently pooled. */
+  private static final Comparator<Entry> NEWEST_FIRST = new Comparator<Entry>() {
+    @Override public int compare(Entry a, Entry b) {
+      return a.sequence > b.sequence ? -1 : a.sequence < b.sequence ? 1 : 0;
+    }
+  };
+
   /** The maximum number of idle connections for each address. */
   private final int maxIdleConnections;
   private final long keepAliveDurationNs;
 
-  private final LinkedList<Connection> connections = new LinkedList<Connection>();
+  /**
+   * Pooled connections by address. Each deque is ordered from newest to
+   * oldest, and is guarded by its own monitor. A deque that has been removed
+   * from this map must not be used.
+   */
+  private final ConcurrentMap<Address, Deque<Entry>> connections
+      = new ConcurrentHashMap<Address, Deque<Entry>>();
+
+  /** The total number of connections in all deques. */
+  private final AtomicInteger connectionCount = new AtomicInteger();
+
+  /** Increments each time a connection is added to the front of a deque. */
+  private final AtomicLong poolSequence = new AtomicLong();
+
+  /**
+   * True if {@link #cleanupLoop} has been submitted to the executor and hasn't
+   * yet exited. The loop exits when the pool is empty.
+   */
+  private final AtomicBoolean cleanupRunning = new AtomicBoolean();
+
+  /** True if the cleanup loop should run again without waiting. Guarded by this. */
+  private boolean cleanupRequested;
 
   /** We use a single background thread to cleanup expired connections. */
   private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
       60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
       Util.threadFactory("OkHttp ConnectionPool", true));
-  private final Runnable connectionsCleanupRunnable = new Runnable() {
+  private final Runnable cleanupLoop = new Runnable() {
     @Override public void run() {
-      List<Connection> expiredConnections = new ArrayList<Connection>(MAX_CONNECTIONS_TO_CLEANUP);
-      int idleConnectionCount = 0;
-      synchronized (ConnectionPool.this) {
-        for (ListIterator<Connection> i = connections.listIterator(connections.size());
-            i.hasPrevious(); ) {
-          Connection connection = i.previous();
-          if (!connection.isAlive() || connection.isExpired(keepAliveDurationNs)) {
-            i.remove();
-            expiredConnections.add(connection);
-            if (expiredConnections.size() == MAX_CONNECTIONS_TO_CLEANUP) break;
-          } else if (connection.isIdle()) {
-            idleConnectionCount++;
+      while (true) {
+        long waitNanos = cleanup();
+        synchronized (ConnectionPool.this) {
+          if (cleanupRequested) {
+            cleanupRequested = false;
+            continue;
           }
-        }
-
-        for (ListIterator<Connection> i = connections.listIterator(connections.size());
-            i.hasPrevious() && idleConnectionCount > maxIdleConnections; ) {
-          Connection connection = i.previous();
-          if (connection.isIdle()) {
-            expiredConnections.add(connection);
-            i.remove();
-            --idleConnectionCount;
+          if (waitNanos == -1) {
+            // The pool is empty. Exit, unless a connection was added concurrently.
+            cleanupRunning.set(false);
+            if (connectionCount.get() == 0 || !cleanupRunning.compareAndSet(false, true)) return;
+            continue;
+          }
+          if (waitNanos > 0) {
+            try {
+              ConnectionPool.this.wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+            } catch (InterruptedException ignored) {
+            }
           }
         }
       }
-      for (Connection expiredConnection : expiredConnections) {
-        Util.closeQuietly(expiredConnection);
-      }
     }
   };
 
@@ -122,28 +161,76 @@ public class ConnectionPool {
 
   /**
    * Returns a snapshot of the connections in this pool, ordered from newest to
-   * oldest. Waits for the cleanup callable to run if it is currently scheduled.
+   * oldest. Runs a cleanup first so that expired and excess idle connections
+   * are not included.
    */
   List<Connection> getConnections() {
-    waitForCleanupCallableToRun();
-    synchronized (this) {
-      return new ArrayList<Connection>(connections);
+    cleanup();
+    List<Entry> entries = new ArrayList<Entry>();
+    for (Deque<Entry> deque : connections.values()) {
+      synchronized (deque) {
+        entries.addAll(deque);
+      }
     }
+    Collections.sort(entries, NEWEST_FIRST);
+    List<Connection> result = new ArrayList<Connection>(entries.size());
+    for (Entry entry : entries) {
+      result.add(entry.connection);
+    }
+    return result;
   }
 
   /**
-   * Blocks until the executor service has processed all currently enqueued
-   * jobs.
+   * Closes and removes all connections that are dead or have been idle for
+   * longer than the keep alive duration, and evicts the least recently pooled
+   * idle connections in excess of {@code maxIdleConnections}.
+   *
+   * <p>Returns the number of nanoseconds until the next connection expires, or
+   * -1 if the pool is empty.
    */
-  private void waitForCleanupCallableToRun() {
-    try {
-      executorService.submit(new Runnable() {
-        @Override public void run() {
+  long cleanup() {
+    List<Connection> expiredConnections = new ArrayList<Connection>();
+    List<Entry> idleEntries = new ArrayList<Entry>();
+    long now = System.nanoTime();
+    long nextDeadline = Long.MAX_VALUE;
+    for (Map.Entry<Address, Deque<Entry>> mapEntry : connections.entrySet()) {
+      Deque<Entry> deque = mapEntry.getValue();
+      synchronized (deque) {
+        for (Iterator<Entry> i = deque.iterator(); i.hasNext(); ) {
+          Entry entry = i.next();
+          Connection connection = entry.connection;
+          if (!connection.isAlive() || connection.isExpired(keepAliveDurationNs)) {
+            i.remove();
+            connectionCount.decrementAndGet();
+            expiredConnections.add(connection);
+          } else if (connection.isIdle()) {
+            idleEntries.add(entry);
+            nextDeadline = Math.min(nextDeadline,
+                connection.getIdleStartTimeNs() + keepAliveDurationNs);
+          } else {
+            // A busy connection can't expire until it has been idle for the full duration.
+            nextDeadline = Math.min(nextDeadline, now + keepAliveDurationNs);
+          }
         }
-      }).get();
-    } catch (Exception e) {
-      throw new AssertionError();
+        removeIfEmpty(mapEntry.getKey(), deque);
+      }
+    }
+
+    // Evict the oldest idle connections until we're within the limit.
+    if (idleEntries.size() > maxIdleConnections) {
+      Collections.sort(idleEntries, NEWEST_FIRST);
+      for (int i = maxIdleConnections, size = idleEntries.size(); i < size; i++) {
+        Entry entry = idleEntries.get(i);
+        if (remove(entry)) expiredConnections.add(entry.connection);
+      }
+    }
+
+    for (int i = 0, size = expiredConnections.size(); i < size; i++) {
+      Util.closeQuietly(expiredConnections.get(i));
     }
+
+    if (nextDeadline == Long.MAX_VALUE) return -1;
+    return Math.max(0, nextDeadline - now);
   }
 
   public static ConnectionPool getDefault() {
@@ -151,59 +238,84 @@ public class ConnectionPool {
   }
 
   /** Returns total number of connections in the pool. */
-  public synchronized int getConnectionCount() {
-    return connections.size();
+  public int getConnectionCount() {
+    return connectionCount.get();
   }
 
   /** Returns total number of spdy connections in the pool. */
-  public synchronized int getSpdyConnectionCount() {
+  public int getSpdyConnectionCount() {
     int total = 0;
-    for (Connection connection : connections) {
-      if (connection.isSpdy()) total++;
+    for (Deque<Entry> deque : connections.values()) {
+      synchronized (deque) {
+        for (Entry entry : deque) {
+          if (entry.connection.isSpdy()) total++;
+        }
+      }
     }
     return total;
   }
 
   /** Returns total number of http connections in the pool. */
-  public synchronized int getHttpConnectionCount() {
+  public int getHttpConnectionCount() {
     int total = 0;
-    for (Connection connection : connections) {
-      if (!connection.isSpdy()) total++;
+    for (Deque<Entry> deque : connections.values()) {
+      synchronized (deque) {
+        for (Entry entry : deque) {
+          if (!entry.connection.isSpdy()) total++;
+        }
+      }
     }
     return total;
   }
 
   /** Returns a recycled connection to {@code address}, or null if no such connection exists. */
-  public synchronized Connection get(Address address) {
+  public Connection get(Address address) {
     Connection foundConnection = null;
-    for (ListIterator<Connection> i = connections.listIterator(connections.size());
-        i.hasPrevious(); ) {
-      Connection connection = i.previous();
-      if (!connection.getRoute().getAddress().equals(address)
-          || !connection.isAlive()
-          || System.nanoTime() - connection.getIdleStartTimeNs() >= keepAliveDurationNs) {
-        continue;
-      }
-      i.remove();
-      if (!connection.isSpdy()) {
-        try {
-          Platform.get().tagSocket(connection.getSocket());
-        } catch (SocketException e) {
-          Util.closeQuietly(connection);
-          // When unable to tag, skip recycling and close
-          Platform.get().logW("Unable to tagSocket(): " + e);
-          continue;
+    List<Connection> expiredConnections = null;
+
+    Deque<Entry> deque = connections.get(address);
+    if (deque != null) {
+      synchronized (deque) {
+        for (Iterator<Entry> i = deque.descendingIterator(); i.hasNext(); ) {
+          Connection connection = i.next().connection;
+          i.remove();
+          connectionCount.decrementAndGet();
+
+          if (!connection.isAlive()
+              || System.nanoTime() - connection.getIdleStartTimeNs() >= keepAliveDurationNs) {
+            if (expiredConnections == null) expiredConnections = new ArrayList<Connection>();
+            expiredConnections.add(connection);
+            continue;
+          }
+
+          if (!connection.isSpdy()) {
+            try {
+              Platform.get().tagSocket(connection.getSocket());
+            } catch (SocketException e) {
+              // When unable to tag, skip recycling and close
+              Platform.get().logW("Unable to tagSocket(): " + e);
+              if (expiredConnections == null) expiredConnections = new ArrayList<Connection>();
+              expiredConnections.add(connection);
+              continue;
+            }
+          }
+          foundConnection = connection;
+          break;
+        }
+
+        if (foundConnection != null && foundConnection.isSpdy()) {
+          addFirst(deque, foundConnection); // Add it back after iteration.
         }
+        removeIfEmpty(address, deque);
       }
-      foundConnection = connection;
-      break;
     }
 
-    if (foundConnection != null && foundConnection.isSpdy()) {
-      connections.addFirst(foundConnection); // Add it back after iteration.
+    if (expiredConnections != null) {
+      for (Connection expiredConnection : expiredConnections) {
+        Util.closeQuietly(expiredConnection);
+      }
     }
 
-    executorService.execute(connectionsCleanupRunnable);
     return foundConnection;
   }
 
@@ -217,7 +329,23 @@ public class ConnectionPool {
     if (connection.isSpdy()) {
       return;
     }
+    addIdle(connection, true);
+  }
 
+  /**
+   * Gives the newly connected HTTP {@code connection} to the pool, without
+   * counting it as recycled. The pool may store the connection, or close it,
+   * as its policy describes.
+   *
+   * <p>It is an error to use {@code connection} after calling this method.
+   */
+  public void prewarm(Connection connection) {
+    if (connection.isSpdy()) throw new IllegalArgumentException();
+    addIdle(connection, false);
+  }
+
+  /** Adds the idle HTTP {@code connection} to the pool, or closes it. */
+  private void addIdle(Connection connection, boolean recycled) {
     if (!connection.isAlive()) {
       Util.closeQuietly(connection);
       return;
@@ -232,13 +360,13 @@ public class ConnectionPool {
       return;
     }
 
-    synchronized (this) {
-      connections.addFirst(connection);
+    if (recycled) {
       connection.incrementRecycleCount();
-      connection.resetIdleStartTime();
+    } else {
+      connection.markPrewarmed();
     }
-
-    executorService.execute(connectionsCleanupRunnable);
+    connection.resetIdleStartTime();
+    add(connection);
   }
 
   /**
@@ -247,24 +375,92 @@ public class ConnectionPool {
    */
   public void share(Connection connection) {
     if (!connection.isSpdy()) throw new IllegalArgumentException();
-    executorService.execute(connectionsCleanupRunnable);
     if (connection.isAlive()) {
-      synchronized (this) {
-        connections.addFirst(connection);
-      }
+      add(connection);
     }
   }
 
   /** Close and remove all connections in the pool. */
   public void evictAll() {
-    List<Connection> connections;
-    synchronized (this) {
-      connections = new ArrayList<Connection>(this.connections);
-      this.connections.clear();
+    List<Connection> connections = new ArrayList<Connection>();
+    for (Map.Entry<Address, Deque<Entry>> mapEntry : this.connections.entrySet()) {
+      Deque<Entry> deque = mapEntry.getValue();
+      synchronized (deque) {
+        connectionCount.addAndGet(-deque.size());
+        for (Entry entry : deque) {
+          connections.add(entry.connection);
+        }
+        deque.clear();
+        removeIfEmpty(mapEntry.getKey(), deque);
+      }
     }
 
     for (int i = 0, size = connections.size(); i < size; i++) {
       Util.closeQuietly(connections.get(i));
     }
   }
+
+  /** Adds {@code connection} to the front of the deque for its address. */
+  private void add(Connection connection) {
+    Address address = connection.getRoute().getAddress();
+    while (true) {
+      Deque<Entry> deque = connections.get(address);
+      if (deque == null) {
+        Deque<Entry> newDeque = new ArrayDeque<Entry>();
+        deque = connections.putIfAbsent(address, newDeque);
+        if (deque == null) deque = newDeque;
+      }
+      synchronized (deque) {
+        if (connections.get(address) != deque) continue; // Raced with removeIfEmpty(); retry.
+        addFirst(deque, connection);
+        break;
+      }
+    }
+
+    if (cleanupRunning.compareAndSet(false, true)) {
+      executorService.execute(cleanupLoop);
+    } else if (connectionCount.get() > maxIdleConnections) {
+      // Connections expire in the order they're added, so the cleanup loop's
+      // deadline only needs to change when there are too many idle connections.
+      synchronized (this) {
+        cleanupRequested = true;
+        notifyAll();
+      }
+    }
+  }
+
+  /** Removes {@code entry} from the pool. Returns false if it isn't pooled. */
+  private boolean remove(Entry entry) {
+    Address address = entry.connection.getRoute().getAddress();
+    Deque<Entry> deque = connections.get(address);
+    if (deque == null) return false;
+    synchronized (deque) {
+      if (!deque.remove(entry)) return false;
+      connectionCount.decrementAndGet();
+      removeIfEmpty(address, deque);
+      return true;
+    }
+  }
+
+  /** Call this while holding the lock on {@code deque}. */
+  private void addFirst(Deque<Entry> deque, Connection connection) {
+    deque.addFirst(new Entry(connection, poolSequence.incrementAndGet()));
+    connectionCount.incrementAndGet();
+  }
+
+  /** Call this while holding the lock on {@code deque}. */
+  private void removeIfEmpty(Address address, Deque<Entry> deque) {
+    if (deque.isEmpty()) connections.remove(address, deque);
+  }
+
+  /** A pooled connection and the order in which it was pooled. */
+  private static final class Entry {
+    final Connection connection;
+    final long sequence;
+
+    Entry(Connection connection, long sequence) {
+      this.connection = connection;
+      this.sequence = sequence;
+    }
+  }
 }
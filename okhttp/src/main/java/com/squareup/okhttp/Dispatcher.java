@@ -16,9 +16,15 @@
 package com.squareup.okhttp;
 
 import com.squareup.okhttp.internal.Util;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -30,19 +36,96 @@ import java.util.concurrent.TimeUnit;
  * <p>Each dispatcher uses an {@link ExecutorService} to run jobs internally. If you
  * supply your own executor, it should be able to run {@link #getMaxRequests the
  * configured maximum} number of jobs concurrently.
+ *
+ * <p>The default executor runs each job on a new virtual thread if the {@code
+ * okhttp.virtualThreads} system property is true and the JVM supports virtual
+ * threads.
+ *
+ * <p>Jobs that wait for capacity fail as soon as their request's deadline is
+ * reached. A single background thread sleeps until the earliest deadline of a
+ * waiting job, and exits when no waiting job has a deadline.
+ *
+ * <p>Dispatchers can optionally {@link #setNonBlocking run jobs without
+ * blocking}. In that mode plain HTTP requests are sent and received on
+ * non-blocking socket channels, so slow servers don't hold threads.
  */
 public final class Dispatcher {
   private int maxRequests = 64;
   private int maxRequestsPerHost = 5;
+  private boolean nonBlocking;
 
   /** Executes jobs. Created lazily. */
   private ExecutorService executorService;
 
-  /** Ready jobs in the order they'll be run. */
-  private final Deque<Job> readyJobs = new ArrayDeque<Job>();
+  /** Orders jobs by descending priority, then in the order they were enqueued. */
+  private static final Comparator<Job> JOB_ORDER = new Comparator<Job>() {
+    @Override public int compare(Job a, Job b) {
+      if (a.priority != b.priority) return a.priority > b.priority ? -1 : 1;
+      return a.sequence < b.sequence ? -1 : a.sequence > b.sequence ? 1 : 0;
+    }
+  };
+
+  /** Orders jobs by their deadline, then in the order they were enqueued. */
+  private static final Comparator<Job> DEADLINE_ORDER = new Comparator<Job>() {
+    @Override public int compare(Job a, Job b) {
+      long delta = a.deadlineNanoTime - b.deadlineNanoTime; // Subtract to avoid overflow!
+      if (delta != 0) return delta < 0 ? -1 : 1;
+      return a.sequence < b.sequence ? -1 : a.sequence > b.sequence ? 1 : 0;
+    }
+  };
+
+  /** Orders hosts by the descending priority of their next job, then by turn. */
+  private static final Comparator<HostJobs> HOST_ORDER = new Comparator<HostJobs>() {
+    @Override public int compare(HostJobs a, HostJobs b) {
+      if (a.readyPriority != b.readyPriority) return a.readyPriority > b.readyPriority ? -1 : 1;
+      return a.turn < b.turn ? -1 : a.turn > b.turn ? 1 : 0;
+    }
+  };
+
+  /** Jobs by host. Hosts with neither running nor ready jobs are removed. */
+  private final Map<String, HostJobs> hostJobs = new HashMap<String, HostJobs>();
+
+  /**
+   * Hosts whose next ready job may run as soon as there's capacity. A host's
+   * {@code readyPriority} and {@code turn} must not change while it's in this
+   * set.
+   */
+  private final TreeSet<HostJobs> readyHosts = new TreeSet<HostJobs>(HOST_ORDER);
+
+  /** Ready jobs whose requests have deadlines, earliest first. */
+  private final TreeSet<Job> readyDeadlines = new TreeSet<Job>(DEADLINE_ORDER);
+
+  /** Fails ready jobs as their deadlines are reached. Created lazily. */
+  private ExecutorService deadlineExecutor;
+
+  /** True if {@link #deadlineLoop} has been submitted and hasn't yet exited. */
+  private boolean deadlineLoopRunning;
+  private final Runnable deadlineLoop = new Runnable() {
+    @Override public void run() {
+      synchronized (Dispatcher.this) {
+        while (true) {
+          long waitNanos = failReachedDeadlines();
+          if (waitNanos == -1) {
+            deadlineLoopRunning = false;
+            return; // No ready job has a deadline.
+          }
+          try {
+            Dispatcher.this.wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+          } catch (InterruptedException ignored) {
+          }
+        }
+      }
+    }
+  };
 
   /** Running jobs. Includes canceled jobs that haven't finished yet. */
-  private final Deque<Job> runningJobs = new ArrayDeque<Job>();
+  private final Set<Job> runningJobs = new LinkedHashSet<Job>();
+
+  /** Increments for each enqueued job. */
+  private long nextSequence;
+
+  /** Increments each time a host is added to {@code readyHosts}. */
+  private long nextTurn;
 
   public Dispatcher(ExecutorService executorService) {
     this.executorService = executorService;
@@ -53,8 +136,10 @@ public final class Dispatcher {
 
   public synchronized ExecutorService getExecutorService() {
     if (executorService == null) {
-      executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
-          new LinkedBlockingQueue<Runnable>(), Util.threadFactory("OkHttp Dispatcher", false));
+      executorService = Util.VIRTUAL_THREADS
+          ? Util.newVirtualThreadExecutor("OkHttp Dispatcher")
+          : new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(), Util.threadFactory("OkHttp Dispatcher", false));
     }
     return executorService;
   }
@@ -92,6 +177,9 @@ public final class Dispatcher {
       throw new IllegalArgumentException("max < 1: " + maxRequestsPerHost);
     }
     this.maxRequestsPerHost = maxRequestsPerHost;
+    for (HostJobs host : hostJobs.values()) {
+      enqueueIfReady(host);
+    }
     promoteJobs();
   }
 
@@ -99,63 +187,227 @@ public final class Dispatcher {
     return maxRequestsPerHost;
   }
 
+  /**
+   * Set whether requests that don't need a proxy, TLS, the response cache or
+   * the cookie handler are executed on non-blocking socket channels. Those
+   * requests don't hold a thread while waiting for the server; the executor
+   * service is only used to call back receivers. They honor the client's
+   * connect and read timeouts, but don't follow redirects or authentication
+   * challenges.
+   *
+   * <p>Non-blocking requests don't use the connection pool. Each one opens a
+   * connection and closes it when the response is complete, so every request
+   * pays for a TCP handshake and leaves a socket in {@code TIME_WAIT}. That
+   * limits the request rate to a single server to what its ephemeral ports
+   * permit.
+   *
+   * <p>Receivers of these requests are called back as the response body
+   * arrives: the response body is {@link Response.Body#ready ready} only when
+   * bytes have been received. Raise {@link #setMaxRequests} and {@link
+   * #setMaxRequestsPerHost} to hold many slow requests concurrently.
+   */
+  public synchronized void setNonBlocking(boolean nonBlocking) {
+    this.nonBlocking = nonBlocking;
+  }
+
+  public synchronized boolean isNonBlocking() {
+    return nonBlocking;
+  }
+
   synchronized void enqueue(OkHttpClient client, Request request, Response.Receiver receiver) {
     // Copy the client. Otherwise changes (socket factory, redirect policy,
     // etc.) may incorrectly be reflected in the request when it is executed.
     client = client.copyWithDefaults();
     Job job = new Job(this, client, request, receiver);
+    job.sequence = nextSequence++;
+    job.enqueuedAtNanos = System.nanoTime();
+
+    if (request.deadline().reached()) {
+      getExecutorService().execute(job.deadlineReached());
+      return;
+    }
+    if (request.deadline().hasDeadline()) {
+      job.deadlineNanoTime = request.deadline().deadlineNanoTime();
+    }
+
+    HostJobs host = hostJobs.get(job.host());
+    if (host == null) {
+      host = new HostJobs(job.host());
+      hostJobs.put(host.host, host);
+    }
 
-    if (runningJobs.size() < maxRequests && runningJobsForHost(job) < maxRequestsPerHost) {
-      runningJobs.add(job);
-      getExecutorService().execute(job);
+    if (runningJobs.size() < maxRequests && host.runningCount < maxRequestsPerHost) {
+      run(host, job);
     } else {
-      readyJobs.add(job);
+      host.readyJobs.add(job);
+      if (host.isReady && job.priority > host.readyPriority) {
+        // This job is the host's new head. Reorder the host by its priority.
+        readyHosts.remove(host);
+        host.readyPriority = job.priority;
+        readyHosts.add(host);
+      }
+      enqueueIfReady(host);
+      if (request.deadline().hasDeadline()) watchDeadline(job);
+    }
+  }
+
+  /** Fails {@code job} when its deadline is reached, unless it runs first. */
+  private void watchDeadline(Job job) {
+    readyDeadlines.add(job);
+    if (!deadlineLoopRunning) {
+      deadlineLoopRunning = true;
+      if (deadlineExecutor == null) {
+        deadlineExecutor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            Util.threadFactory("OkHttp Dispatcher Deadlines", true));
+      }
+      deadlineExecutor.execute(deadlineLoop);
+    } else if (readyDeadlines.first() == job) {
+      notifyAll(); // Wake the deadline loop to wait for this earlier deadline.
     }
   }
 
+  /**
+   * Fails ready jobs whose deadlines have been reached. Returns the number of
+   * nanoseconds until the next deadline, or -1 if no ready job has a deadline.
+   */
+  private long failReachedDeadlines() {
+    while (!readyDeadlines.isEmpty()) {
+      Job job = readyDeadlines.first();
+      long waitNanos = job.deadlineNanoTime - System.nanoTime();
+      if (waitNanos > 0 && !job.request().deadline().reached()) return waitNanos;
+
+      readyDeadlines.pollFirst();
+      HostJobs host = hostJobs.get(job.host());
+      boolean wasHead = host.readyJobs.first() == job;
+      if (wasHead && host.isReady) {
+        readyHosts.remove(host);
+        host.isReady = false;
+      }
+      host.readyJobs.remove(job);
+      getExecutorService().execute(job.deadlineReached());
+      if (host.runningCount == 0 && host.readyJobs.isEmpty()) {
+        hostJobs.remove(host.host);
+      } else if (wasHead) {
+        enqueueIfReady(host);
+      }
+    }
+    return -1;
+  }
+
   /**
    * Cancel all jobs with the tag {@code tag}. If a canceled job is running it
    * may continue running until it reaches a safe point to finish.
    */
   public synchronized void cancel(Object tag) {
-    for (Iterator<Job> i = readyJobs.iterator(); i.hasNext(); ) {
-      if (Util.equal(tag, i.next().tag())) i.remove();
+    for (Iterator<HostJobs> h = hostJobs.values().iterator(); h.hasNext(); ) {
+      HostJobs host = h.next();
+      for (Iterator<Job> i = host.readyJobs.iterator(); i.hasNext(); ) {
+        Job job = i.next();
+        if (Util.equal(tag, job.tag())) {
+          i.remove();
+          readyDeadlines.remove(job);
+        }
+      }
+      if (host.runningCount == 0 && host.readyJobs.isEmpty()) h.remove();
+    }
+
+    // Removing jobs may have changed each host's next job. Requeue the hosts.
+    List<HostJobs> hosts = new ArrayList<HostJobs>(readyHosts);
+    readyHosts.clear();
+    for (HostJobs host : hosts) {
+      if (host.readyJobs.isEmpty()) {
+        host.isReady = false;
+      } else {
+        host.readyPriority = host.readyJobs.first().priority;
+        readyHosts.add(host);
+      }
     }
 
     for (Job job : runningJobs) {
-      if (Util.equal(tag, job.tag())) job.canceled = true;
+      if (Util.equal(tag, job.tag())) {
+        job.canceled = true;
+        if (job.exchange != null) job.exchange.cancel();
+      }
     }
   }
 
   /** Used by {@code Job#run} to signal completion. */
   synchronized void finished(Job job) {
     if (!runningJobs.remove(job)) throw new AssertionError("Job wasn't running!");
+    HostJobs host = hostJobs.get(job.host());
+    host.runningCount--;
+    if (host.runningCount == 0 && host.readyJobs.isEmpty()) {
+      hostJobs.remove(host.host);
+    } else {
+      enqueueIfReady(host);
+    }
     promoteJobs();
   }
 
+  /**
+   * Runs ready jobs until we're at capacity. This takes the ready host whose
+   * next job has the greatest priority. Hosts whose next jobs have equal
+   * priority take turns, so that a host with many ready jobs can't starve the
+   * others. Jobs whose deadline has been reached fail without running.
+   */
   private void promoteJobs() {
-    if (runningJobs.size() >= maxRequests) return; // Already running max capacity.
-    if (readyJobs.isEmpty()) return; // No ready jobs to promote.
-
-    for (Iterator<Job> i = readyJobs.iterator(); i.hasNext(); ) {
-      Job job = i.next();
+    while (runningJobs.size() < maxRequests && !readyHosts.isEmpty()) {
+      HostJobs host = readyHosts.pollFirst();
+      host.isReady = false;
+      if (host.runningCount >= maxRequestsPerHost) continue; // The per-host limit was lowered.
 
-      if (runningJobsForHost(job) < maxRequestsPerHost) {
-        i.remove();
-        runningJobs.add(job);
-        getExecutorService().execute(job);
+      Job job = host.readyJobs.pollFirst();
+      readyDeadlines.remove(job);
+      if (job.request().deadline().reached()) {
+        getExecutorService().execute(job.deadlineReached());
+        if (host.runningCount == 0 && host.readyJobs.isEmpty()) hostJobs.remove(host.host);
+      } else {
+        run(host, job);
       }
+      enqueueIfReady(host);
+    }
+  }
 
-      if (runningJobs.size() >= maxRequests) return; // Reached max capacity.
+  /** Adds {@code host} to the ready hosts if it has a job that may run. */
+  private void enqueueIfReady(HostJobs host) {
+    if (!host.isReady && !host.readyJobs.isEmpty() && host.runningCount < maxRequestsPerHost) {
+      host.readyPriority = host.readyJobs.first().priority;
+      host.turn = nextTurn++;
+      readyHosts.add(host);
+      host.isReady = true;
     }
   }
 
-  /** Returns the number of running jobs that share a host with {@code job}. */
-  private int runningJobsForHost(Job job) {
-    int result = 0;
-    for (Job j : runningJobs) {
-      if (j.host().equals(job.host())) result++;
+  private void run(HostJobs host, Job job) {
+    host.runningCount++;
+    runningJobs.add(job);
+    job.startedAtNanos = System.nanoTime();
+    job.nonBlocking = nonBlocking;
+    getExecutorService().execute(job);
+  }
+
+  /** The running count and ready jobs of a single host. */
+  private static final class HostJobs {
+    final String host;
+
+    /** Ready jobs for this host in the order they'll be run. */
+    final TreeSet<Job> readyJobs = new TreeSet<Job>(JOB_ORDER);
+
+    /** The number of running jobs for this host. */
+    int runningCount;
+
+    /** True if this is in {@code readyHosts}. */
+    boolean isReady;
+
+    /** The priority of the next job when this host was added to {@code readyHosts}. */
+    int readyPriority;
+
+    /** The order in which this host was added to {@code readyHosts}. */
+    long turn;
+
+    HostJobs(String host) {
+      this.host = host;
     }
-    return result;
   }
 }
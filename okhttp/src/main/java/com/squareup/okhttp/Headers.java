@@ -17,6 +17,7 @@
 
 package com.squareup.okhttp;
 
+import com.squareup.okhttp.internal.HeaderNames;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -39,19 +40,33 @@ import java.util.TreeSet;
  * <p>This class trims whitespace from values. It never returns values with
  * leading or trailing whitespace.
  *
+ * <p>Well-known field names like "Content-Type" are interned. Lookups of
+ * well-known names compare their indexes instead of the names.
+ *
  * <p>Instances of this class are immutable. Use {@link Builder} to create
  * instances.
  */
 public final class Headers {
   private final String[] namesAndValues;
 
+  /** The {@link HeaderNames} index of each field's name, or -1 if it isn't well-known. */
+  private final int[] nameIndexes;
+
   private Headers(Builder builder) {
     this.namesAndValues = builder.namesAndValues.toArray(new String[builder.namesAndValues.size()]);
+    this.nameIndexes = new int[namesAndValues.length / 2];
+    for (int i = 0; i < nameIndexes.length; i++) {
+      nameIndexes[i] = HeaderNames.indexOf(namesAndValues[i * 2]);
+    }
   }
 
   /** Returns the last value corresponding to the specified field, or null. */
   public String get(String fieldName) {
-    return get(namesAndValues, fieldName);
+    int nameIndex = HeaderNames.indexOf(fieldName);
+    for (int i = nameIndexes.length - 1; i >= 0; i--) {
+      if (matches(i, fieldName, nameIndex)) return namesAndValues[i * 2 + 1];
+    }
+    return null;
   }
 
   /** Returns the number of field values. */
@@ -88,9 +103,10 @@ public final class Headers {
 
   /** Returns an immutable list of the header values for {@code name}. */
   public List<String> values(String name) {
+    int nameIndex = HeaderNames.indexOf(name);
     List<String> result = null;
     for (int i = 0; i < size(); i++) {
-      if (name.equalsIgnoreCase(name(i))) {
+      if (matches(i, name, nameIndex)) {
         if (result == null) result = new ArrayList<String>(2);
         result.add(value(i));
       }
@@ -127,13 +143,13 @@ public final class Headers {
     return result.toString();
   }
 
-  private static String get(String[] namesAndValues, String fieldName) {
-    for (int i = namesAndValues.length - 2; i >= 0; i -= 2) {
-      if (fieldName.equalsIgnoreCase(namesAndValues[i])) {
-        return namesAndValues[i + 1];
-      }
-    }
-    return null;
+  /**
+   * Returns true if field {@code i} is named {@code fieldName}, whose index in
+   * {@link HeaderNames} is {@code nameIndex}.
+   */
+  private boolean matches(int i, String fieldName, int nameIndex) {
+    if (nameIndex != -1) return nameIndexes[i] == nameIndex;
+    return nameIndexes[i] == -1 && fieldName.equalsIgnoreCase(namesAndValues[i * 2]);
   }
 
   public static class Builder {
@@ -141,9 +157,16 @@ public final class Headers {
 
     /** Add an header line containing a field name, a literal colon, and a value. */
     public Builder addLine(String line) {
-      int index = line.indexOf(":", 1);
+      int index = line.indexOf(':', 1);
       if (index != -1) {
-        return addLenient(line.substring(0, index), line.substring(index + 1));
+        // Share the name if it's well-known, and trim the value without an intermediate string.
+        int valueStart = index + 1;
+        int valueEnd = line.length();
+        while (valueStart < valueEnd && line.charAt(valueStart) <= ' ') valueStart++;
+        while (valueEnd > valueStart && line.charAt(valueEnd - 1) <= ' ') valueEnd--;
+        namesAndValues.add(HeaderNames.intern(line, 0, index));
+        namesAndValues.add(line.substring(valueStart, valueEnd));
+        return this;
       } else if (line.startsWith(":")) {
         // Work around empty header names and header names that start with a
         // colon (created by old broken SPDY versions of the response cache).
@@ -167,7 +190,7 @@ public final class Headers {
      * Add a field with the specified value without any validation. Only
      * appropriate for headers from the remote peer.
      */
-    private Builder addLenient(String fieldName, String value) {
+    Builder addLenient(String fieldName, String value) {
       namesAndValues.add(fieldName);
       namesAndValues.add(value.trim());
       return this;
@@ -17,9 +17,10 @@
 package com.squareup.okhttp;
 
 import com.squareup.okhttp.internal.DiskLruCache;
+import com.squareup.okhttp.internal.HeaderNames;
+import com.squareup.okhttp.internal.ShardedDiskLruCache;
 import com.squareup.okhttp.internal.Util;
 import com.squareup.okhttp.internal.http.HttpMethod;
-import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FilterInputStream;
@@ -27,27 +28,26 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.net.CacheRequest;
 import java.net.CacheResponse;
 import java.net.ResponseCache;
 import java.net.URI;
 import java.net.URLConnection;
 import java.security.cert.Certificate;
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.ByteString;
+import okio.OkBuffer;
 import okio.Okio;
 
-import static com.squareup.okhttp.internal.Util.UTF_8;
-
 /**
  * Caches HTTP and HTTPS responses to the filesystem so they may be reused,
  * saving time and bandwidth.
@@ -68,6 +68,16 @@ import static com.squareup.okhttp.internal.Util.UTF_8;
  * changed, or a short 'not modified' response if the client's copy is still
  * valid. Such responses increment both the network count and hit count.
  *
+ * <h3>Memory Tier</h3>
+ * A cache may keep recently used entries in memory, in front of the
+ * filesystem. The memory tier holds parsed metadata, and the bodies of
+ * responses up to 64 KiB, so hits on small responses don't open any files. It
+ * is bounded by the bytes its entries take on disk, and evicts the least
+ * recently used entries first. Memory hits still count as uses on disk, and
+ * entries evicted from disk are dropped from memory, so the two tiers agree on
+ * which entries are hot. {@link #getMemoryHitCount()} and {@link
+ * #getDiskHitCount()} count the lookups that each tier answered.
+ *
  * <p>The best way to improve the cache hit rate is by configuring the web
  * server to return cacheable responses. Although this client honors all <a
  * href="http://www.ietf.org/rfc/rfc2616.txt">HTTP/1.1 (RFC 2068)</a> cache
@@ -112,7 +122,22 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
   private static final int ENTRY_BODY = 1;
   private static final int ENTRY_COUNT = 2;
 
-  private final DiskLruCache cache;
+  /**
+   * The first four bytes of entries in the binary format. Entries in the older
+   * text format start with their URL, so they never start with a zero byte.
+   */
+  private static final int BINARY_ENTRY_MAGIC = 0x004f4b01;
+
+  /** Bodies larger than this are read from disk, even if their metadata is in memory. */
+  private static final int MAX_MEMORY_BODY_SIZE = 64 * 1024;
+
+  private final ShardedDiskLruCache cache;
+
+  /** Certificate chains that HTTPS entries refer to by fingerprint. */
+  private final CertificateChainStore certificates;
+
+  /** Recently used entries, or null if this cache has no memory tier. */
+  private final MemoryCache memoryCache;
 
   /* read and write statistics, all guarded by 'this' */
   private int writeSuccessCount;
@@ -120,9 +145,41 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
   private int networkCount;
   private int hitCount;
   private int requestCount;
+  private int memoryHitCount;
+  private int diskHitCount;
 
   public HttpResponseCache(File directory, long maxSize) throws IOException {
-    cache = DiskLruCache.open(directory, VERSION, ENTRY_COUNT, maxSize);
+    this(directory, maxSize, 0);
+  }
+
+  /**
+   * Creates a cache that keeps up to {@code maxMemorySize} bytes of recently
+   * used entries in memory, in front of up to {@code maxSize} bytes on disk.
+   */
+  public HttpResponseCache(File directory, long maxSize, long maxMemorySize) throws IOException {
+    this(directory, maxSize, maxMemorySize, 1);
+  }
+
+  /**
+   * Creates a cache whose disk entries are split by key into {@code shardCount}
+   * subdirectories, each with its own journal. Shards are opened in parallel
+   * and on demand, so a large cache doesn't delay the first request by
+   * replaying one journal of every entry. Changing the shard count of an
+   * existing cache discards its entries.
+   */
+  public HttpResponseCache(File directory, long maxSize, long maxMemorySize, int shardCount)
+      throws IOException {
+    if (maxMemorySize < 0) throw new IllegalArgumentException("maxMemorySize < 0");
+    cache = ShardedDiskLruCache.open(directory, VERSION, ENTRY_COUNT, maxSize, shardCount);
+    certificates = new CertificateChainStore(cache);
+    new File(directory, "certificates").delete(); // Chains were once stored in this file.
+    memoryCache = maxMemorySize > 0 ? new MemoryCache(maxMemorySize) : null;
+    cache.setEvictionListener(new DiskLruCache.EvictionListener() {
+      @Override public void evicted(String key) {
+        certificates.forget(key);
+        if (memoryCache != null) memoryCache.remove(key);
+      }
+    });
   }
 
   @Override public CacheResponse get(URI uri, String s, Map<String, List<String>> stringListMap)
@@ -140,26 +197,77 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
 
   @Override public Response get(Request request) {
     String key = urlToKey(request);
-    DiskLruCache.Snapshot snapshot;
+    MemoryEntry memoryEntry = memoryCache != null ? memoryCache.get(key) : null;
+    DiskLruCache.Snapshot snapshot = null;
     Entry entry;
+    byte[] body = null;
     try {
-      snapshot = cache.get(key);
-      if (snapshot == null) {
-        return null;
+      if (memoryEntry != null) {
+        entry = memoryEntry.entry;
+        body = memoryEntry.body;
+        if (body == null) {
+          snapshot = cache.get(key); // The body is only on disk.
+          if (snapshot == null) {
+            memoryCache.remove(key);
+            return null;
+          }
+        } else if (!cache.touch(key)) {
+          // Keep the disk's LRU order current, so hot entries aren't evicted there first.
+          memoryCache.remove(key);
+          return null;
+        }
+        certificates.touch(entry.fingerprints);
+      } else {
+        long generation = memoryCache != null ? memoryCache.generation() : 0;
+        snapshot = cache.get(key);
+        if (snapshot == null) {
+          return null;
+        }
+        entry = Entry.read(snapshot, certificates);
+        if (entry == null) {
+          // A certificate chain of this entry was evicted. Without it the entry is unusable.
+          snapshot.close();
+          snapshot = null;
+          cache.remove(key);
+          return null;
+        }
+        if (entry.legacy) {
+          snapshot = migrate(key, snapshot, entry);
+          if (snapshot == null) return null;
+        }
+        if (memoryCache != null) {
+          long bodySize = snapshot.getLength(ENTRY_BODY);
+          long weight = snapshot.getLength(ENTRY_METADATA);
+          if (bodySize <= MAX_MEMORY_BODY_SIZE) {
+            body = new byte[(int) bodySize];
+            Util.readFully(snapshot.getInputStream(ENTRY_BODY), body);
+            snapshot.close();
+            snapshot = null;
+            weight += bodySize;
+          }
+          memoryCache.put(key, new MemoryEntry(entry, body, weight), generation);
+        }
       }
-      entry = new Entry(snapshot.getInputStream(ENTRY_METADATA));
     } catch (IOException e) {
       // Give up because the cache cannot be read.
+      Util.closeQuietly(snapshot);
       return null;
     }
 
-    Response response = entry.response(request, snapshot);
+    Response response = entry.response(request, key, snapshot, body);
 
     if (!entry.matches(request, response)) {
       Util.closeQuietly(response.body());
       return null;
     }
 
+    synchronized (this) {
+      if (memoryEntry != null) {
+        memoryHitCount++;
+      } else {
+        diskHitCount++;
+      }
+    }
     return response;
   }
 
@@ -181,14 +289,15 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
     }
 
     Entry entry = new Entry(response);
+    String key = urlToKey(response.request());
     DiskLruCache.Editor editor = null;
     try {
-      editor = cache.edit(urlToKey(response.request()));
+      editor = cache.edit(key);
       if (editor == null) {
         return null;
       }
-      entry.writeTo(editor);
-      return new CacheRequestImpl(editor);
+      entry.writeTo(editor, certificates);
+      return new CacheRequestImpl(key, editor);
     } catch (IOException e) {
       abortQuietly(editor);
       return null;
@@ -197,11 +306,13 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
 
   @Override public boolean maybeRemove(Request request) {
     if (HttpMethod.invalidatesCache(request.method())) {
+      String key = urlToKey(request);
       try {
-        cache.remove(urlToKey(request));
+        cache.remove(key);
       } catch (IOException ignored) {
         // The cache cannot be written.
       }
+      if (memoryCache != null) memoryCache.remove(key);
       return true;
     }
     return false;
@@ -209,17 +320,48 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
 
   @Override public void update(Response cached, Response network) {
     Entry entry = new Entry(network);
-    DiskLruCache.Snapshot snapshot = ((CacheResponseBody) cached.body()).snapshot;
+    CacheResponseBody body = (CacheResponseBody) cached.body();
     DiskLruCache.Editor editor = null;
     try {
-      editor = snapshot.edit(); // Returns null if snapshot is not current.
+      if (body.snapshot != null) {
+        editor = body.snapshot.edit(); // Returns null if snapshot is not current.
+      } else {
+        // The body was served from memory. Update the entry that's on disk now.
+        DiskLruCache.Snapshot snapshot = cache.get(body.key);
+        if (snapshot != null) {
+          editor = snapshot.edit();
+          snapshot.close();
+        }
+      }
       if (editor != null) {
-        entry.writeTo(editor);
+        entry.writeTo(editor, certificates);
         editor.commit();
       }
     } catch (IOException e) {
       abortQuietly(editor);
     }
+    if (memoryCache != null) memoryCache.remove(body.key);
+  }
+
+  /**
+   * Rewrites the text-format {@code entry} in the binary format, and returns a
+   * snapshot of the rewritten entry, or null if it was removed meanwhile. If
+   * the entry can't be edited now, {@code snapshot} is returned as-is.
+   */
+  private DiskLruCache.Snapshot migrate(String key, DiskLruCache.Snapshot snapshot, Entry entry)
+      throws IOException {
+    DiskLruCache.Editor editor = snapshot.edit();
+    if (editor == null) return snapshot;
+    snapshot.close();
+    try {
+      entry.writeTo(editor, certificates);
+      editor.commit();
+    } catch (IOException e) {
+      abortQuietly(editor);
+      throw e;
+    }
+    // Committing made the old snapshot stale; take a new one so it can be updated later.
+    return cache.get(key);
   }
 
   private void abortQuietly(DiskLruCache.Editor editor) {
@@ -238,7 +380,9 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
    * the cache.
    */
   public void delete() throws IOException {
+    if (memoryCache != null) memoryCache.evictAll();
     cache.delete();
+    certificates.clear();
   }
 
   public synchronized int getWriteAbortCount() {
@@ -249,6 +393,10 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
     return writeSuccessCount;
   }
 
+  /**
+   * Returns the number of bytes used by cached responses and the certificate
+   * chains they share. This doesn't include the journal.
+   */
   public long getSize() {
     return cache.size();
   }
@@ -262,6 +410,7 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
   }
 
   public void close() throws IOException {
+    if (memoryCache != null) memoryCache.evictAll();
     cache.close();
   }
 
@@ -303,13 +452,29 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
     return requestCount;
   }
 
+  /** Returns the number of cache lookups whose entry was found in memory. */
+  public synchronized int getMemoryHitCount() {
+    return memoryHitCount;
+  }
+
+  /** Returns the number of cache lookups whose entry was read from disk. */
+  public synchronized int getDiskHitCount() {
+    return diskHitCount;
+  }
+
+  /** Returns the number of bytes of entries held in memory. */
+  public long getMemorySize() {
+    return memoryCache != null ? memoryCache.size() : 0;
+  }
+
   private final class CacheRequestImpl extends CacheRequest {
     private final DiskLruCache.Editor editor;
     private OutputStream cacheOut;
     private boolean done;
     private OutputStream body;
 
-    public CacheRequestImpl(final DiskLruCache.Editor editor) throws IOException {
+    public CacheRequestImpl(final String key, final DiskLruCache.Editor editor)
+        throws IOException {
       this.editor = editor;
       this.cacheOut = editor.newOutputStream(ENTRY_BODY);
       this.body = new FilterOutputStream(cacheOut) {
@@ -323,6 +488,7 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
           }
           super.close();
           editor.commit();
+          if (memoryCache != null) memoryCache.remove(key);
         }
 
         @Override public void write(byte[] buffer, int offset, int length) throws IOException {
@@ -360,9 +526,57 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
     private final String statusLine;
     private final Headers responseHeaders;
     private final Handshake handshake;
+    /** True if this entry was read from the text format, and should be rewritten. */
+    private final boolean legacy;
+    /** Fingerprints of the stored certificate chains that this entry refers to. */
+    private final List<ByteString> fingerprints;
+    /** True if a certificate chain that this entry refers to is no longer stored. */
+    private final boolean missingCertificates;
+
+    /**
+     * Reads the entry in {@code snapshot} with a single read of its metadata.
+     * Entries in the binary format are length-prefixed fields: <pre>{@code
+     *   int      0x004f4b01, the binary format's magic and version
+     *   string   URL
+     *   string   request method
+     *   headers  Vary request headers
+     *   string   response status line
+     *   headers  response headers
+     *   byte     1 if the response was received over TLS, 0 otherwise
+     *   string   cipher suite                          (TLS only)
+     *   chain    peer certificates                     (TLS only)
+     *   chain    local certificates                    (TLS only)
+     * }</pre>
+     * A string is a 4-byte length followed by that many bytes of UTF-8. A
+     * header list is a 4-byte count followed by that many name and value
+     * strings. A certificate chain is a zero byte if it is empty, or a one byte
+     * followed by the 32-byte fingerprint of the chain in {@code certificates}.
+     *
+     * <p>Entries written by earlier versions are in a text format, which is
+     * described at {@link #Entry(BufferedSource)}.
+     *
+     * <p>Returns null if the entry refers to a certificate chain that is no
+     * longer stored.
+     */
+    public static Entry read(DiskLruCache.Snapshot snapshot, CertificateChainStore certificates)
+        throws IOException {
+      InputStream in = snapshot.getInputStream(ENTRY_METADATA);
+      try {
+        byte[] metadata = new byte[(int) snapshot.getLength(ENTRY_METADATA)];
+        Util.readFully(in, metadata);
+        OkBuffer source = new OkBuffer().write(metadata);
+        if (metadata.length > 0 && metadata[0] == 0) {
+          Entry entry = new Entry(source, certificates);
+          return entry.missingCertificates ? null : entry;
+        }
+        return new Entry(source);
+      } finally {
+        in.close();
+      }
+    }
 
     /**
-     * Reads an entry from an input stream. A typical entry looks like this:
+     * Reads an entry in the text format. A typical entry looks like this:
      * <pre>{@code
      *   http://google.com/foo
      *   GET
@@ -410,41 +624,70 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
      * certificates are also base64-encoded and appear each on their own
      * line. A length of -1 is used to encode a null array.
      */
-    public Entry(InputStream in) throws IOException {
-      try {
-        BufferedSource source = Okio.buffer(Okio.source(in));
-        url = source.readUtf8LineStrict();
-        requestMethod = source.readUtf8LineStrict();
-        Headers.Builder varyHeadersBuilder = new Headers.Builder();
-        int varyRequestHeaderLineCount = readInt(source);
-        for (int i = 0; i < varyRequestHeaderLineCount; i++) {
-          varyHeadersBuilder.addLine(source.readUtf8LineStrict());
-        }
-        varyHeaders = varyHeadersBuilder.build();
+    private Entry(BufferedSource source) throws IOException {
+      url = source.readUtf8LineStrict();
+      requestMethod = source.readUtf8LineStrict();
+      Headers.Builder varyHeadersBuilder = new Headers.Builder();
+      int varyRequestHeaderLineCount = readInt(source);
+      for (int i = 0; i < varyRequestHeaderLineCount; i++) {
+        varyHeadersBuilder.addLine(source.readUtf8LineStrict());
+      }
+      varyHeaders = varyHeadersBuilder.build();
 
-        statusLine = source.readUtf8LineStrict();
-        Headers.Builder responseHeadersBuilder = new Headers.Builder();
-        int responseHeaderLineCount = readInt(source);
-        for (int i = 0; i < responseHeaderLineCount; i++) {
-          responseHeadersBuilder.addLine(source.readUtf8LineStrict());
-        }
-        responseHeaders = responseHeadersBuilder.build();
+      statusLine = source.readUtf8LineStrict();
+      Headers.Builder responseHeadersBuilder = new Headers.Builder();
+      int responseHeaderLineCount = readInt(source);
+      for (int i = 0; i < responseHeaderLineCount; i++) {
+        responseHeadersBuilder.addLine(source.readUtf8LineStrict());
+      }
+      responseHeaders = responseHeadersBuilder.build();
 
-        if (isHttps()) {
-          String blank = source.readUtf8LineStrict();
-          if (blank.length() > 0) {
-            throw new IOException("expected \"\" but was \"" + blank + "\"");
-          }
-          String cipherSuite = source.readUtf8LineStrict();
-          List<Certificate> peerCertificates = readCertificateList(source);
-          List<Certificate> localCertificates = readCertificateList(source);
-          handshake = Handshake.get(cipherSuite, peerCertificates, localCertificates);
-        } else {
-          handshake = null;
+      if (isHttps()) {
+        String blank = source.readUtf8LineStrict();
+        if (blank.length() > 0) {
+          throw new IOException("expected \"\" but was \"" + blank + "\"");
         }
-      } finally {
-        in.close();
+        String cipherSuite = source.readUtf8LineStrict();
+        List<Certificate> peerCertificates = readCertificateList(source);
+        List<Certificate> localCertificates = readCertificateList(source);
+        handshake = Handshake.get(cipherSuite, peerCertificates, localCertificates);
+      } else {
+        handshake = null;
       }
+      legacy = true;
+      fingerprints = Collections.emptyList();
+      missingCertificates = false;
+    }
+
+    private Entry(OkBuffer source, CertificateChainStore certificates) throws IOException {
+      source.require(4);
+      int magic = source.readInt();
+      if (magic != BINARY_ENTRY_MAGIC) {
+        throw new IOException("Unexpected entry format " + Integer.toHexString(magic));
+      }
+      url = readString(source).utf8();
+      requestMethod = readString(source).utf8();
+      varyHeaders = readHeaders(source);
+      statusLine = readString(source).utf8();
+      responseHeaders = readHeaders(source);
+
+      fingerprints = new ArrayList<ByteString>(2);
+      source.require(1);
+      if (source.readByte() != 0) {
+        String cipherSuite = readString(source).utf8();
+        List<Certificate> peerCertificates
+            = readCertificateChain(source, certificates, fingerprints);
+        List<Certificate> localCertificates
+            = readCertificateChain(source, certificates, fingerprints);
+        missingCertificates = peerCertificates == null || localCertificates == null;
+        handshake = !missingCertificates
+            ? Handshake.get(cipherSuite, peerCertificates, localCertificates)
+            : null;
+      } else {
+        handshake = null;
+        missingCertificates = false;
+      }
+      legacy = false;
     }
 
     public Entry(Response response) {
@@ -454,32 +697,34 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
       this.statusLine = response.statusLine();
       this.responseHeaders = response.headers();
       this.handshake = response.handshake();
+      this.legacy = false;
+      this.fingerprints = Collections.emptyList();
+      this.missingCertificates = false;
     }
 
-    public void writeTo(DiskLruCache.Editor editor) throws IOException {
-      OutputStream out = editor.newOutputStream(ENTRY_METADATA);
-      Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
-
-      writer.write(url + '\n');
-      writer.write(requestMethod + '\n');
-      writer.write(Integer.toString(varyHeaders.size()) + '\n');
-      for (int i = 0; i < varyHeaders.size(); i++) {
-        writer.write(varyHeaders.name(i) + ": " + varyHeaders.value(i) + '\n');
-      }
-
-      writer.write(statusLine + '\n');
-      writer.write(Integer.toString(responseHeaders.size()) + '\n');
-      for (int i = 0; i < responseHeaders.size(); i++) {
-        writer.write(responseHeaders.name(i) + ": " + responseHeaders.value(i) + '\n');
-      }
-
-      if (isHttps()) {
-        writer.write('\n');
-        writer.write(handshake.cipherSuite() + '\n');
-        writeCertArray(writer, handshake.peerCertificates());
-        writeCertArray(writer, handshake.localCertificates());
+    /** Writes this entry in the binary format. */
+    public void writeTo(DiskLruCache.Editor editor, CertificateChainStore certificates)
+        throws IOException {
+      BufferedSink sink = Okio.buffer(Okio.sink(editor.newOutputStream(ENTRY_METADATA)));
+      try {
+        sink.writeInt(BINARY_ENTRY_MAGIC);
+        writeString(sink, url);
+        writeString(sink, requestMethod);
+        writeHeaders(sink, varyHeaders);
+        writeString(sink, statusLine);
+        writeHeaders(sink, responseHeaders);
+
+        if (handshake != null) {
+          sink.writeByte(1);
+          writeString(sink, handshake.cipherSuite());
+          writeCertificateChain(sink, handshake.peerCertificates(), certificates);
+          writeCertificateChain(sink, handshake.localCertificates(), certificates);
+        } else {
+          sink.writeByte(0);
+        }
+      } finally {
+        sink.close();
       }
-      writer.close();
     }
 
     private boolean isHttps() {
@@ -504,16 +749,25 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
       }
     }
 
-    private void writeCertArray(Writer writer, List<Certificate> certificates) throws IOException {
-      try {
-        writer.write(Integer.toString(certificates.size()) + '\n');
-        for (int i = 0, size = certificates.size(); i < size; i++) {
-          byte[] bytes = certificates.get(i).getEncoded();
-          String line = ByteString.of(bytes).base64();
-          writer.write(line + '\n');
-        }
-      } catch (CertificateEncodingException e) {
-        throw new IOException(e.getMessage());
+    private static List<Certificate> readCertificateChain(OkBuffer source,
+        CertificateChainStore certificates, List<ByteString> fingerprints) throws IOException {
+      source.require(1);
+      if (source.readByte() == 0) return Collections.emptyList();
+      source.require(32);
+      ByteString fingerprint = source.readByteString(32);
+      List<Certificate> result = certificates.get(fingerprint);
+      if (result == null) return null; // The chain was evicted.
+      fingerprints.add(fingerprint);
+      return result;
+    }
+
+    private static void writeCertificateChain(BufferedSink sink, List<Certificate> chain,
+        CertificateChainStore certificates) throws IOException {
+      if (chain.isEmpty()) {
+        sink.writeByte(0);
+      } else {
+        sink.writeByte(1);
+        sink.write(certificates.put(chain));
       }
     }
 
@@ -523,14 +777,19 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
           && response.varyMatches(varyHeaders, request);
     }
 
-    public Response response(Request request, DiskLruCache.Snapshot snapshot) {
+    /**
+     * Returns a response with the body in {@code snapshot}, or in {@code body}
+     * if it was read into memory.
+     */
+    public Response response(Request request, String key, DiskLruCache.Snapshot snapshot,
+        byte[] body) {
       String contentType = responseHeaders.get("Content-Type");
       String contentLength = responseHeaders.get("Content-Length");
       return new Response.Builder()
           .request(request)
           .statusLine(statusLine)
           .headers(responseHeaders)
-          .body(new CacheResponseBody(snapshot, contentType, contentLength))
+          .body(new CacheResponseBody(key, snapshot, body, contentType, contentLength))
           .handshake(handshake)
           .build();
     }
@@ -545,18 +804,59 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
     }
   }
 
+  private static ByteString readString(OkBuffer source) throws IOException {
+    source.require(4);
+    int byteCount = source.readInt();
+    if (byteCount < 0) throw new IOException("Expected a length but was " + byteCount);
+    source.require(byteCount);
+    return source.readByteString(byteCount);
+  }
+
+  private static void writeString(BufferedSink sink, String s) throws IOException {
+    ByteString utf8 = ByteString.encodeUtf8(s);
+    sink.writeInt(utf8.size());
+    sink.write(utf8);
+  }
+
+  private static Headers readHeaders(OkBuffer source) throws IOException {
+    source.require(4);
+    int count = source.readInt();
+    Headers.Builder result = new Headers.Builder();
+    for (int i = 0; i < count; i++) {
+      String name = HeaderNames.intern(readString(source));
+      result.addLenient(name, readString(source).utf8());
+    }
+    return result.build();
+  }
+
+  private static void writeHeaders(BufferedSink sink, Headers headers) throws IOException {
+    sink.writeInt(headers.size());
+    for (int i = 0; i < headers.size(); i++) {
+      writeString(sink, headers.name(i));
+      writeString(sink, headers.value(i));
+    }
+  }
+
   private static class CacheResponseBody extends Response.Body {
+    private final String key;
+    /** The entry on disk, or null if the body was served from memory. */
     private final DiskLruCache.Snapshot snapshot;
     private final InputStream bodyIn;
     private final String contentType;
     private final String contentLength;
 
-    public CacheResponseBody(final DiskLruCache.Snapshot snapshot,
+    public CacheResponseBody(String key, final DiskLruCache.Snapshot snapshot, byte[] body,
         String contentType, String contentLength) {
+      this.key = key;
       this.snapshot = snapshot;
       this.contentType = contentType;
       this.contentLength = contentLength;
 
+      if (snapshot == null) {
+        this.bodyIn = new ByteArrayInputStream(body);
+        return;
+      }
+
       // This input stream closes the snapshot when the stream is closed.
       this.bodyIn = new FilterInputStream(snapshot.getInputStream(ENTRY_BODY)) {
         @Override public void close() throws IOException {
@@ -586,4 +886,75 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
       return bodyIn;
     }
   }
+
+  /** A cache entry held in memory. */
+  private static final class MemoryEntry {
+    private final Entry entry;
+    /** The response body, or null if it's too large to hold in memory. */
+    private final byte[] body;
+    /** The size of this entry on disk. */
+    private final long weight;
+
+    MemoryEntry(Entry entry, byte[] body, long weight) {
+      this.entry = entry;
+      this.body = body;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * Holds entries up to a total weight, evicting the least recently used first.
+   * Entries read from disk are only added if no entry was invalidated while
+   * they were read, so a concurrent write can't be shadowed by the entry it
+   * replaced.
+   */
+  private static final class MemoryCache {
+    private final LinkedHashMap<String, MemoryEntry> entries
+        = new LinkedHashMap<String, MemoryEntry>(0, 0.75f, true);
+    private final long maxSize;
+    private long size;
+    /** Incremented each time an entry is invalidated. */
+    private long generation;
+
+    MemoryCache(long maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    synchronized MemoryEntry get(String key) {
+      return entries.get(key);
+    }
+
+    synchronized long generation() {
+      return generation;
+    }
+
+    /** Adds {@code entry} unless an entry was invalidated since {@code generation}. */
+    synchronized void put(String key, MemoryEntry entry, long generation) {
+      if (generation != this.generation || entry.weight > maxSize) return;
+      MemoryEntry previous = entries.put(key, entry);
+      size += entry.weight;
+      if (previous != null) size -= previous.weight;
+
+      for (Iterator<MemoryEntry> i = entries.values().iterator(); size > maxSize; ) {
+        size -= i.next().weight;
+        i.remove();
+      }
+    }
+
+    synchronized void remove(String key) {
+      generation++;
+      MemoryEntry previous = entries.remove(key);
+      if (previous != null) size -= previous.weight;
+    }
+
+    synchronized void evictAll() {
+      generation++;
+      entries.clear();
+      size = 0;
+    }
+
+    synchronized long size() {
+      return size;
+    }
+  }
 }
@@ -19,12 +19,16 @@ import com.squareup.okhttp.internal.NamedRunnable;
 import com.squareup.okhttp.internal.http.HttpAuthenticator;
 import com.squareup.okhttp.internal.http.HttpEngine;
 import com.squareup.okhttp.internal.http.HttpURLConnectionImpl;
+import com.squareup.okhttp.internal.http.NioHttpExchange;
 import com.squareup.okhttp.internal.http.OkHeaders;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ProtocolException;
 import java.net.Proxy;
+import java.net.ProxySelector;
 import java.net.URL;
+import java.util.List;
+import java.util.concurrent.Executor;
 import okio.BufferedSink;
 import okio.Okio;
 import okio.Source;
@@ -37,6 +41,7 @@ import static com.squareup.okhttp.internal.http.HttpURLConnectionImpl.HTTP_PROXY
 import static com.squareup.okhttp.internal.http.HttpURLConnectionImpl.HTTP_SEE_OTHER;
 import static com.squareup.okhttp.internal.http.HttpURLConnectionImpl.HTTP_UNAUTHORIZED;
 import static com.squareup.okhttp.internal.http.StatusLine.HTTP_TEMP_REDIRECT;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 final class Job extends NamedRunnable {
   private final Dispatcher dispatcher;
@@ -46,10 +51,35 @@ final class Job extends NamedRunnable {
 
   volatile boolean canceled;
 
+  /** The request's priority when it was enqueued. */
+  final int priority;
+
+  /** The order in which this job was enqueued. Guarded by the dispatcher. */
+  long sequence;
+
+  /**
+   * The request's deadline when this job was enqueued, as a {@link
+   * System#nanoTime} value. Unused if the request has no deadline.
+   */
+  long deadlineNanoTime;
+
+  /** The times at which this job was enqueued and started. Guarded by the dispatcher. */
+  long enqueuedAtNanos;
+  long startedAtNanos;
+
   /** The request; possibly a consequence of redirects or auth headers. */
   private Request request;
   HttpEngine engine;
 
+  /**
+   * True if this job may run on a non-blocking channel. Whether it does is
+   * decided when it runs, because selecting a proxy may be slow.
+   */
+  boolean nonBlocking;
+
+  /** Non-null if this job is running on a non-blocking channel. Guarded by the dispatcher. */
+  NioHttpExchange exchange;
+
   public Job(Dispatcher dispatcher, OkHttpClient client, Request request,
       Response.Receiver responseReceiver) {
     super("OkHttp %s", request.urlString());
@@ -57,6 +87,7 @@ final class Job extends NamedRunnable {
     this.client = client;
     this.request = request;
     this.responseReceiver = responseReceiver;
+    this.priority = request.priority();
   }
 
   String host() {
@@ -72,10 +103,15 @@ final class Job extends NamedRunnable {
   }
 
   @Override protected void execute() {
+    if (nonBlocking && canExecuteNonBlocking()) {
+      executeNonBlocking(dispatcher.getExecutorService());
+      return;
+    }
+
     try {
       Response response = getResponse();
       if (response != null && !canceled) {
-        responseReceiver.onResponse(response);
+        responseReceiver.onResponse(withQueueWait(response));
       }
     } catch (IOException e) {
       responseReceiver.onFailure(new Failure.Builder()
@@ -88,6 +124,82 @@ final class Job extends NamedRunnable {
     }
   }
 
+  private Response withQueueWait(Response response) {
+    long queueWaitMillis = NANOSECONDS.toMillis(startedAtNanos - enqueuedAtNanos);
+    return response.newBuilder()
+        .header(OkHeaders.QUEUE_WAIT_MILLIS, Long.toString(queueWaitMillis))
+        .build();
+  }
+
+  /**
+   * Returns true if this job can run on a non-blocking channel. That transport
+   * only supports direct HTTP connections and doesn't consult the response
+   * cache or cookie handler.
+   */
+  boolean canExecuteNonBlocking() {
+    if (!request.url().getProtocol().equals("http")) return false;
+    if (client.getOkResponseCache() != null || client.getCookieHandler() != null) return false;
+
+    Proxy proxy = client.getProxy();
+    if (proxy != null) return proxy.type() == Proxy.Type.DIRECT;
+
+    ProxySelector proxySelector = client.getProxySelector();
+    if (proxySelector == null) return true;
+    try {
+      List<Proxy> proxies = proxySelector.select(request.uri());
+      return proxies == null || proxies.isEmpty() || proxies.get(0).type() == Proxy.Type.DIRECT;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Runs this job on a non-blocking channel. The receiver is called back on
+   * {@code executor}, but no thread waits while the server responds.
+   */
+  void executeNonBlocking(Executor executor) {
+    Response.Receiver receiver = new Response.Receiver() {
+      /** The response as delivered, so every callback gets the same instance. */
+      private Response delivered;
+
+      @Override public void onFailure(Failure failure) {
+        responseReceiver.onFailure(failure);
+      }
+
+      @Override public boolean onResponse(Response response) throws IOException {
+        if (delivered == null) delivered = withQueueWait(response);
+        return responseReceiver.onResponse(delivered);
+      }
+    };
+    NioHttpExchange exchange = new NioHttpExchange(request, receiver, executor,
+        client.getConnectTimeout(), client.getReadTimeout(), new Runnable() {
+          @Override public void run() {
+            dispatcher.finished(Job.this);
+          }
+        });
+    synchronized (dispatcher) {
+      this.exchange = exchange;
+    }
+    exchange.start();
+    if (canceled) exchange.cancel(); // Canceled before the exchange was visible.
+  }
+
+  /**
+   * Returns a task that reports this job's failure to its receiver. The
+   * dispatcher runs it instead of this job if the request's deadline is
+   * reached before the job starts.
+   */
+  Runnable deadlineReached() {
+    return new NamedRunnable("OkHttp %s", request.urlString()) {
+      @Override protected void execute() {
+        responseReceiver.onFailure(new Failure.Builder()
+            .request(request)
+            .exception(new IOException("Deadline reached"))
+            .build());
+      }
+    };
+  }
+
   /**
    * Performs the request and returns the response. May return null if this job
    * was canceled.
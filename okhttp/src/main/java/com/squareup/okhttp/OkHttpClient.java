@@ -17,6 +17,7 @@ package com.squareup.okhttp;
 
 import com.squareup.okhttp.internal.Util;
 import com.squareup.okhttp.internal.http.HttpAuthenticator;
+import com.squareup.okhttp.internal.http.HttpEngine;
 import com.squareup.okhttp.internal.http.HttpURLConnectionImpl;
 import com.squareup.okhttp.internal.http.HttpsURLConnectionImpl;
 import com.squareup.okhttp.internal.http.ResponseCacheAdapter;
@@ -67,6 +68,10 @@ public final class OkHttpClient implements URLStreamHandlerFactory, Cloneable {
   private boolean followProtocolRedirects = true;
   private int connectTimeout;
   private int readTimeout;
+  private long spdyMaxBatchBytes;
+  private long spdyMaxBatchDelayNanos;
+  private long spdyMaxConnectionWindow;
+  private long spdyMaxStreamWindow;
 
   public OkHttpClient() {
     routeDatabase = new RouteDatabase();
@@ -121,6 +126,70 @@ public final class OkHttpClient implements URLStreamHandlerFactory, Cloneable {
     return readTimeout;
   }
 
+  /**
+   * Configures new SPDY and HTTP/2 connections to gather the frames of
+   * concurrent requests into batches of up to {@code maxBatchBytes}, and to
+   * write each batch to the socket at once. A batch is written {@code
+   * maxDelay} after its first frame is ready, or sooner if it fills up. This
+   * trades a little latency for fewer socket writes.
+   *
+   * <p>A {@code maxBatchBytes} of 0 disables coalescing, which is the default:
+   * each frame is written as soon as it's ready.
+   */
+  public OkHttpClient setSpdyWriteCoalescing(long maxBatchBytes, long maxDelay, TimeUnit unit) {
+    if (maxBatchBytes < 0) throw new IllegalArgumentException("maxBatchBytes < 0");
+    if (maxDelay < 0) throw new IllegalArgumentException("maxDelay < 0");
+    if (unit == null) throw new IllegalArgumentException("unit == null");
+    this.spdyMaxBatchBytes = maxBatchBytes;
+    this.spdyMaxBatchDelayNanos = unit.toNanos(maxDelay);
+    return this;
+  }
+
+  /** Maximum size of a batch of SPDY frames, or 0 if writes aren't coalesced. */
+  public long getSpdyMaxBatchBytes() {
+    return spdyMaxBatchBytes;
+  }
+
+  /** Maximum time that a batch of SPDY frames waits to be written (in nanoseconds). */
+  public long getSpdyMaxBatchDelay() {
+    return spdyMaxBatchDelayNanos;
+  }
+
+  /**
+   * Configures new SPDY and HTTP/2 connections to grow their receive windows
+   * to fit the bandwidth-delay product of the link, up to {@code
+   * maxConnectionWindow} bytes for the connection and {@code maxStreamWindow}
+   * bytes for each stream. Windows grow only as fast as the application reads
+   * response bodies.
+   *
+   * <p>Maximums of 0 disable tuning, which is the default: connections use
+   * fixed windows.
+   */
+  public OkHttpClient setSpdyReceiveWindowAutoTuning(long maxConnectionWindow,
+      long maxStreamWindow) {
+    if (maxConnectionWindow < 0) throw new IllegalArgumentException("maxConnectionWindow < 0");
+    if (maxStreamWindow < 0) throw new IllegalArgumentException("maxStreamWindow < 0");
+    if ((maxConnectionWindow == 0) != (maxStreamWindow == 0)) {
+      throw new IllegalArgumentException("maximums must both be 0 or both be positive");
+    }
+    if (maxConnectionWindow > Integer.MAX_VALUE || maxStreamWindow > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("windows must fit in 31 bits");
+    }
+    this.spdyMaxConnectionWindow = maxConnectionWindow;
+    this.spdyMaxStreamWindow = maxStreamWindow;
+    return this;
+  }
+
+  /** Maximum tuned receive window of a SPDY connection, or 0 if windows aren't tuned. */
+  public long getSpdyMaxConnectionWindow() {
+    return spdyMaxConnectionWindow;
+  }
+
+  /** Maximum tuned receive window of a SPDY stream, or 0 if windows aren't tuned. */
+  public long getSpdyMaxStreamWindow() {
+    return spdyMaxStreamWindow;
+  }
+
   /**
    * Sets the HTTP proxy that will be used by connections created by this
    * client. This takes precedence over {@link #setProxySelector}, which is
@@ -405,6 +474,29 @@ public final class OkHttpClient implements URLStreamHandlerFactory, Cloneable {
     return result;
   }
 
+  /**
+   * Invokes {@code requests} on a single connection and blocks until every
+   * response has been read. On an HTTP/1.1 connection the requests are
+   * pipelined: each request is written before any response is read, saving a
+   * round trip per request. Only use this with servers that are known to
+   * support pipelining.
+   *
+   * <p>Every request must be a {@code GET} or {@code HEAD} to the same scheme,
+   * host and port. The responses are returned in order with their bodies
+   * buffered in memory. Unlike {@link #execute}, this doesn't follow redirects
+   * or authentication challenges and doesn't use the response cache.
+   *
+   * <p>If the server closes the connection before answering every request,
+   * the unanswered requests are retried on another connection.
+   *
+   * @throws IOException when the requests could not be executed due to a
+   * connectivity problem or timeout.
+   */
+  public List<Response> executePipelined(List<Request> requests) throws IOException {
+    OkHttpClient client = copyWithDefaults().setOkResponseCache(null);
+    return new Pipeline(client, requests).execute();
+  }
+
   /**
    * Schedules {@code request} to be executed at some point in the future. The
    * {@link #getDispatcher dispatcher} defines when the request will run:
@@ -427,6 +519,32 @@ public final class OkHttpClient implements URLStreamHandlerFactory, Cloneable {
     dispatcher.cancel(tag);
   }
 
+  /**
+   * Opens up to {@code connectionCount} connections to the origin server of
+   * {@code url} and adds them to the connection pool. Use this to make DNS,
+   * TCP and TLS handshakes ahead of the first requests to a server. This blocks
+   * until the connections are established.
+   *
+   * <p>A SPDY or HTTP/2 connection is shared by all requests to its server, so
+   * this opens only one connection if the server negotiates either protocol.
+   * Prewarmed connections are subject to the pool's keep alive duration and
+   * idle connection limit.
+   *
+   * @return the number of connections opened.
+   * @throws IOException if a connection could not be established.
+   */
+  public int prewarm(URL url, int connectionCount) throws IOException {
+    if (connectionCount < 0) throw new IllegalArgumentException("connectionCount < 0");
+    OkHttpClient client = copyWithDefaults();
+    Request request = new Request.Builder().url(url).build();
+    for (int i = 0; i < connectionCount; i++) {
+      // Use a new engine for each connection so that each starts on the preferred route.
+      HttpEngine engine = new HttpEngine(client, request, false, null, null, null);
+      if (engine.prewarmConnection().isSpdy()) return i + 1;
+    }
+    return connectionCount;
+  }
+
   public HttpURLConnection open(URL url) {
     return open(url, proxy);
   }
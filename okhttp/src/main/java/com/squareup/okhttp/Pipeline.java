@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import com.squareup.okhttp.internal.http.HttpEngine;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+import okio.OkBuffer;
+import okio.Source;
+
+/**
+ * Executes a batch of requests to one server on a single connection. On an
+ * HTTP/1.1 connection every request is written before any response is read;
+ * on a SPDY or HTTP/2 connection the requests are multiplexed.
+ *
+ * <p>If the server closes the connection before it has answered every request,
+ * the unanswered requests are retried on another connection. The batch fails if
+ * an attempt on a fresh connection answers none of them.
+ */
+final class Pipeline {
+  private final OkHttpClient client;
+  private final List<Request> requests;
+
+  Pipeline(OkHttpClient client, List<Request> requests) {
+    if (requests.isEmpty()) throw new IllegalArgumentException("requests.isEmpty()");
+    Request first = requests.get(0);
+    for (Request request : requests) {
+      String method = request.method();
+      if (!method.equals("GET") && !method.equals("HEAD")) {
+        throw new IllegalArgumentException("Cannot pipeline " + method + " " + request.url());
+      }
+      if (!Job.sameConnection(first, request)) {
+        throw new IllegalArgumentException(
+            "Cannot pipeline " + request.url() + " with " + first.url());
+      }
+    }
+    this.client = client;
+    this.requests = new ArrayList<Request>(requests);
+  }
+
+  /** Returns the responses to the requests, in order. */
+  List<Response> execute() throws IOException {
+    List<Response> responses = new ArrayList<Response>(requests.size());
+    boolean retried = false;
+    while (responses.size() < requests.size()) {
+      int answered = responses.size();
+      try {
+        executeOnce(requests.subList(answered, requests.size()), responses);
+      } catch (ProtocolException e) {
+        throw e;
+      } catch (IOException e) {
+        // Retry once without progress, in case a pooled connection was stale.
+        if (responses.size() == answered && retried) throw e;
+        retried = responses.size() == answered;
+      }
+    }
+    return responses;
+  }
+
+  /**
+   * Writes {@code batch} on one connection and adds the responses to {@code
+   * responses} as they're read. Throws if the connection fails before every
+   * request has been answered.
+   */
+  private void executeOnce(List<Request> batch, List<Response> responses) throws IOException {
+    List<HttpEngine> engines = new ArrayList<HttpEngine>(batch.size());
+    try {
+      Connection connection = null;
+      for (Request request : batch) {
+        // HTTP/1.1 engines share the first engine's connection. SPDY engines
+        // each get the shared connection from the pool.
+        HttpEngine engine = new HttpEngine(client, request, false, connection, null, null);
+        engines.add(engine);
+        engine.sendRequest();
+        if (connection == null && !engine.getConnection().isSpdy()) {
+          connection = engine.getConnection();
+          connection.pipelineRequests();
+        }
+        engine.writeRequestHeaders();
+      }
+
+      for (HttpEngine engine : engines) {
+        engine.readResponse();
+        engine.releaseConnection();
+        Response response = engine.getResponse();
+        OkBuffer body = new OkBuffer();
+        Source source = engine.getResponseBody();
+        while (source.read(body, 2048) != -1) {
+        }
+        source.close();
+        responses.add(response.newBuilder()
+            .body(new Job.RealResponseBody(response, body))
+            .build());
+      }
+    } finally {
+      for (HttpEngine engine : engines) {
+        engine.close();
+      }
+    }
+  }
+}
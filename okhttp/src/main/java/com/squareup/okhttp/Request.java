@@ -20,7 +20,6 @@ import com.squareup.okhttp.internal.Util;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -28,6 +27,8 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.List;
 import okio.BufferedSink;
+import okio.Deadline;
+import okio.Okio;
 
 /**
  * An HTTP request. Instances of this class are immutable if their {@link #body}
@@ -39,6 +40,8 @@ public final class Request {
   private final Headers headers;
   private final Body body;
   private final Object tag;
+  private final int priority;
+  private final Deadline deadline;
 
   private volatile ParsedHeaders parsedHeaders; // Lazily initialized.
   private volatile URI uri; // Lazily initialized.
@@ -50,6 +53,8 @@ public final class Request {
     this.headers = builder.headers.build();
     this.body = builder.body;
     this.tag = builder.tag != null ? builder.tag : this;
+    this.priority = builder.priority;
+    this.deadline = builder.deadline;
   }
 
   public URL url() {
@@ -93,6 +98,14 @@ public final class Request {
     return tag;
   }
 
+  public int priority() {
+    return priority;
+  }
+
+  public Deadline deadline() {
+    return deadline;
+  }
+
   public Builder newBuilder() {
     return new Builder(this);
   }
@@ -214,13 +227,10 @@ public final class Request {
           long length = contentLength();
           if (length == 0) return;
 
-          InputStream in = null;
+          FileInputStream in = null;
           try {
             in = new FileInputStream(file);
-            byte[] buffer = new byte[(int) Math.min(8192, length)];
-            for (int c; (c = in.read(buffer)) != -1; ) {
-              sink.write(buffer, 0, c);
-            }
+            Okio.transfer(in.getChannel(), 0, length, sink);
           } finally {
             Util.closeQuietly(in);
           }
@@ -235,6 +245,8 @@ public final class Request {
     private Headers.Builder headers;
     private Body body;
     private Object tag;
+    private int priority;
+    private Deadline deadline = Deadline.NONE;
 
     public Builder() {
       this.method = "GET";
@@ -246,6 +258,8 @@ public final class Request {
       this.method = request.method;
       this.body = request.body;
       this.tag = request.tag;
+      this.priority = request.priority;
+      this.deadline = request.deadline;
       this.headers = request.headers.newBuilder();
     }
 
@@ -331,6 +345,27 @@ public final class Request {
       return this;
     }
 
+    /**
+     * Sets the priority of this request when it waits for an asynchronous
+     * dispatcher. Requests with a greater priority are executed first. The
+     * default priority is 0.
+     */
+    public Builder priority(int priority) {
+      this.priority = priority;
+      return this;
+    }
+
+    /**
+     * Sets the time by which an asynchronous dispatcher must execute this
+     * request. If the deadline is reached while the request is waiting, it
+     * fails without being executed.
+     */
+    public Builder deadline(Deadline deadline) {
+      if (deadline == null) throw new IllegalArgumentException("deadline == null");
+      this.deadline = deadline;
+      return this;
+    }
+
     public Request build() {
       if (url == null) throw new IllegalStateException("url == null");
       return new Request(this);
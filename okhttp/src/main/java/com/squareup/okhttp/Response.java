@@ -196,8 +196,9 @@ public final class Response {
 
     /**
      * Returns true if further data from this response body should be read at
-     * this time. For asynchronous protocols like SPDY and HTTP/2, this will
-     * return false once all locally-available body bytes have been read.
+     * this time. For asynchronous protocols like SPDY and HTTP/2, and for
+     * HTTP/1 requests on a non-blocking dispatcher, this will return false
+     * once all locally-available body bytes have been read.
      *
      * <p>Clients with many concurrent downloads can use this method to reduce
      * the number of idle threads blocking on reads. See {@link
@@ -347,10 +348,11 @@ public final class Response {
      * <p>When the response body has been fully consumed the returned value is
      * undefined.
      *
-     * <p>The current implementation of {@link Body#ready} always returns true
-     * when the underlying transport is HTTP/1. This results in blocking on that
-     * transport. For effective non-blocking your server must support SPDY or
-     * HTTP/2.
+     * <p>{@link Body#ready} always returns true for HTTP/1 responses to
+     * requests that run on a blocking connection. Reading those bodies blocks.
+     * For effective non-blocking, your server must support SPDY or HTTP/2, or
+     * the request must run on a {@link Dispatcher#setNonBlocking non-blocking}
+     * dispatcher.
      */
     boolean onResponse(Response response) throws IOException;
   }
@@ -25,13 +25,20 @@ import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import okio.BufferedSink;
@@ -82,6 +89,13 @@ import okio.Okio;
  * an error occurs while writing a cache value, the edit will fail silently.
  * Callers should handle other problems by catching {@code IOException} and
  * responding appropriately.
+ *
+ * <p>This class is safe for concurrent use. Operations on an entry hold a lock
+ * that is shared by a fraction of the keys, and files are opened without any
+ * lock held, so operations on different keys don't wait for each other.
+ * Journal records are queued and appended by one thread at a time. See
+ * {@link #setJournalGroupCommit} and {@link #setReadRecordInterval} to reduce
+ * the journal's writes under load.
  */
 public final class DiskLruCache implements Closeable {
   static final String JOURNAL_FILE = "journal";
@@ -96,6 +110,9 @@ public final class DiskLruCache implements Closeable {
   private static final String REMOVE = "REMOVE";
   private static final String READ = "READ";
 
+  /** The number of locks that keys are spread across. Must be a power of two. */
+  private static final int LOCK_STRIPES = 64;
+
     /*
      * This cache uses a journal file named "journal". A typical journal file
      * looks like this:
@@ -127,11 +144,13 @@ public final class DiskLruCache implements Closeable {
      *   o CLEAN lines track a cache entry that has been successfully published
      *     and may be read. A publish line is followed by the lengths of each of
      *     its values.
-     *   o READ lines track accesses for LRU.
+     *   o READ lines track accesses for LRU. They may record only a sample
+     *     of accesses, or none; see setReadRecordInterval().
      *   o REMOVE lines track entries that have been deleted.
      *
      * The journal file is appended to as cache operations occur. The journal may
-     * occasionally be compacted by dropping redundant lines. A temporary file named
+     * occasionally be compacted by dropping redundant lines. Compaction runs in the
+     * background while lines continue to be appended. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
      */
@@ -141,39 +160,55 @@ public final class DiskLruCache implements Closeable {
   private final File journalFileTmp;
   private final File journalFileBackup;
   private final int appVersion;
-  private long maxSize;
+  private volatile long maxSize;
   private final int valueCount;
-  private long size = 0;
-  private BufferedSink journalWriter;
-  private final LinkedHashMap<String, Entry> lruEntries =
-      new LinkedHashMap<String, Entry>(0, 0.75f, true);
-  private int redundantOpCount;
+  private final AtomicLong size = new AtomicLong();
+  private final Journal journal = new Journal();
+  private volatile boolean closed;
+
+  /** Entries by key. Entries are added, changed and removed holding their key's lock. */
+  private final ConcurrentHashMap<String, Entry> lruEntries =
+      new ConcurrentHashMap<String, Entry>();
+
+  /** Entries by the order of their last access, least recently used first. */
+  private final ConcurrentSkipListMap<Long, Entry> lruOrder =
+      new ConcurrentSkipListMap<Long, Entry>();
+  private final AtomicLong nextAccessOrder = new AtomicLong();
+  private final AtomicInteger redundantOpCount = new AtomicInteger();
+
+  /** One in this many reads is recorded in the journal, or none if this is 0. */
+  private volatile int readRecordInterval = 1;
+  private final AtomicInteger readCount = new AtomicInteger();
+
+  /** Notified of entries evicted to stay within the maximum size, or null. */
+  private volatile EvictionListener evictionListener;
+
+  /** Guards the entries whose keys hash to each stripe. */
+  private final Object[] locks = new Object[LOCK_STRIPES];
 
   /**
    * To differentiate between old and current snapshots, each entry is given
    * a sequence number each time an edit is committed. A snapshot is stale if
-   * its sequence number is not equal to its entry's sequence number.
+   * its sequence number is not equal to its entry's sequence number. Entries
+   * read from the journal have sequence number 0.
    */
-  private long nextSequenceNumber = 0;
+  private final AtomicLong nextSequenceNumber = new AtomicLong(1);
 
   /** This cache uses a single background thread to evict entries. */
   final ThreadPoolExecutor executorService = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
       new LinkedBlockingQueue<Runnable>(), Util.threadFactory("OkHttp DiskLruCache", true));
   private final Runnable cleanupRunnable = new Runnable() {
     public void run() {
-      synchronized (DiskLruCache.this) {
-        if (journalWriter == null) {
-          return; // Closed.
-        }
-        try {
-          trimToSize();
-          if (journalRebuildRequired()) {
-            rebuildJournal();
-            redundantOpCount = 0;
-          }
-        } catch (IOException e) {
-          throw new RuntimeException(e);
+      if (closed) {
+        return;
+      }
+      try {
+        trimToSize(false);
+        if (journalRebuildRequired()) {
+          rebuildJournal();
         }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
       }
     }
   };
@@ -186,6 +221,9 @@ public final class DiskLruCache implements Closeable {
     this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
     this.valueCount = valueCount;
     this.maxSize = maxSize;
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
   }
 
   /**
@@ -224,7 +262,7 @@ public final class DiskLruCache implements Closeable {
       try {
         cache.readJournal();
         cache.processJournal();
-        cache.journalWriter = Okio.buffer(Okio.sink(new FileOutputStream(cache.journalFile, true)));
+        cache.journal.open(Okio.buffer(Okio.sink(new FileOutputStream(cache.journalFile, true))));
         return cache;
       } catch (IOException journalIsCorrupt) {
         Platform.get().logW("DiskLruCache " + directory + " is corrupt: "
@@ -266,7 +304,7 @@ public final class DiskLruCache implements Closeable {
           break;
         }
       }
-      redundantOpCount = lineCount - lruEntries.size();
+      redundantOpCount.set(lineCount - lruEntries.size());
     } finally {
       Util.closeQuietly(source);
     }
@@ -284,7 +322,8 @@ public final class DiskLruCache implements Closeable {
     if (secondSpace == -1) {
       key = line.substring(keyBegin);
       if (firstSpace == REMOVE.length() && line.startsWith(REMOVE)) {
-        lruEntries.remove(key);
+        Entry removed = lruEntries.remove(key);
+        if (removed != null) lruOrder.remove(removed.accessOrder);
         return;
       }
     } else {
@@ -296,6 +335,7 @@ public final class DiskLruCache implements Closeable {
       entry = new Entry(key);
       lruEntries.put(key, entry);
     }
+    touch(entry);
 
     if (secondSpace != -1 && firstSpace == CLEAN.length() && line.startsWith(CLEAN)) {
       String[] parts = line.substring(secondSpace + 1).split(" ");
@@ -305,7 +345,7 @@ public final class DiskLruCache implements Closeable {
     } else if (secondSpace == -1 && firstSpace == DIRTY.length() && line.startsWith(DIRTY)) {
       entry.currentEditor = new Editor(entry);
     } else if (secondSpace == -1 && firstSpace == READ.length() && line.startsWith(READ)) {
-      // This work was already done by calling lruEntries.get().
+      // This work was already done by calling touch().
     } else {
       throw new IOException("unexpected journal line: " + line);
     }
@@ -321,7 +361,7 @@ public final class DiskLruCache implements Closeable {
       Entry entry = i.next();
       if (entry.currentEditor == null) {
         for (int t = 0; t < valueCount; t++) {
-          size += entry.lengths[t];
+          size.addAndGet(entry.lengths[t]);
         }
       } else {
         entry.currentEditor = null;
@@ -330,21 +370,48 @@ public final class DiskLruCache implements Closeable {
           deleteIfExists(entry.getDirtyFile(t));
         }
         i.remove();
+        lruOrder.remove(entry.accessOrder);
       }
     }
   }
 
   /**
    * Creates a new journal that omits redundant information. This replaces the
-   * current journal if it exists.
+   * current journal if it exists. The new journal is written without holding
+   * the writer lock, so operations and their journal writes continue; records
+   * written meanwhile are appended to the new journal before it replaces the
+   * old one.
    */
-  private synchronized void rebuildJournal() throws IOException {
-    if (journalWriter != null) {
-      journalWriter.close();
+  private void rebuildJournal() throws IOException {
+    journal.writerLock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      // Records queued before the entries are read belong in the old journal.
+      journal.writePending();
+      journal.rebuildTail = new ArrayList<String>();
+    } finally {
+      journal.writerLock.unlock();
     }
 
-    BufferedSink writer = Okio.buffer(Okio.sink(new FileOutputStream(journalFileTmp)));
+    BufferedSink writer = null;
     try {
+      TreeMap<Long, String> records = new TreeMap<Long, String>();
+      for (Entry entry : lruEntries.values()) {
+        synchronized (lockFor(entry.key)) {
+          if (lruEntries.get(entry.key) != entry) {
+            continue; // Removed since we started.
+          }
+          if (entry.currentEditor != null) {
+            records.put(entry.accessOrder, DIRTY + ' ' + entry.key + '\n');
+          } else {
+            records.put(entry.accessOrder, CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+          }
+        }
+      }
+
+      writer = Okio.buffer(Okio.sink(new FileOutputStream(journalFileTmp)));
       writer.writeUtf8(MAGIC);
       writer.writeUtf8("\n");
       writer.writeUtf8(VERSION_1);
@@ -354,25 +421,46 @@ public final class DiskLruCache implements Closeable {
       writer.writeUtf8(Integer.toString(valueCount));
       writer.writeUtf8("\n");
       writer.writeUtf8("\n");
+      for (String record : records.values()) {
+        writer.writeUtf8(record);
+      }
 
-      for (Entry entry : lruEntries.values()) {
-        if (entry.currentEditor != null) {
-          writer.writeUtf8(DIRTY + ' ' + entry.key + '\n');
-        } else {
-          writer.writeUtf8(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+      journal.writerLock.lock();
+      try {
+        if (closed) {
+          return;
         }
+        journal.writePending();
+        for (String record : journal.rebuildTail) {
+          writer.writeUtf8(record);
+        }
+        writer.close();
+        writer = null;
+
+        if (journal.writer != null) {
+          journal.writer.close();
+        }
+        if (journalFile.exists()) {
+          renameTo(journalFile, journalFileBackup, true);
+        }
+        renameTo(journalFileTmp, journalFile, false);
+        journalFileBackup.delete();
+
+        journal.writer = Okio.buffer(Okio.sink(new FileOutputStream(journalFile, true)));
+        redundantOpCount.set(0);
+      } finally {
+        journal.writerLock.unlock();
       }
     } finally {
-      writer.close();
-    }
-
-    if (journalFile.exists()) {
-      renameTo(journalFile, journalFileBackup, true);
+      Util.closeQuietly(writer);
+      journal.writerLock.lock();
+      try {
+        journal.rebuildTail = null;
+      } finally {
+        journal.writerLock.unlock();
+      }
     }
-    renameTo(journalFileTmp, journalFile, false);
-    journalFileBackup.delete();
-
-    journalWriter = Okio.buffer(Okio.sink(new FileOutputStream(journalFile, true)));
+    journal.write();
   }
 
   private static void deleteIfExists(File file) throws IOException {
@@ -396,45 +484,110 @@ public final class DiskLruCache implements Closeable {
    * exist is not currently readable. If a value is returned, it is moved to
    * the head of the LRU queue.
    */
-  public synchronized Snapshot get(String key) throws IOException {
+  public Snapshot get(String key) throws IOException {
     checkNotClosed();
     validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (entry == null) {
-      return null;
-    }
 
-    if (!entry.readable) {
-      return null;
-    }
+    Snapshot snapshot;
+    boolean readRecorded;
+    while (true) {
+      Entry entry;
+      long sequenceNumber;
+      synchronized (lockFor(key)) {
+        entry = lruEntries.get(key);
+        if (entry == null || !entry.readable) {
+          return null;
+        }
+        sequenceNumber = entry.sequenceNumber;
+      }
 
-    // Open all streams eagerly to guarantee that we see a single published
-    // snapshot. If we opened streams lazily then the streams could come
-    // from different edits.
-    InputStream[] ins = new InputStream[valueCount];
-    try {
-      for (int i = 0; i < valueCount; i++) {
-        ins[i] = new FileInputStream(entry.getCleanFile(i));
+      // Open all streams eagerly to guarantee that we see a single published
+      // snapshot. If we opened streams lazily then the streams could come
+      // from different edits. Opening them without the lock, an edit may be
+      // committed meanwhile; that's detected below and the streams reopened.
+      InputStream[] ins = new InputStream[valueCount];
+      try {
+        for (int i = 0; i < valueCount; i++) {
+          ins[i] = new FileInputStream(entry.getCleanFile(i));
+        }
+      } catch (FileNotFoundException e) {
+        // A file must have been deleted manually, or the entry was removed.
+        closeAll(ins);
+        synchronized (lockFor(key)) {
+          if (lruEntries.get(key) == entry && entry.sequenceNumber == sequenceNumber) {
+            return null;
+          }
+        }
+        continue;
       }
-    } catch (FileNotFoundException e) {
-      // A file must have been deleted manually!
-      for (int i = 0; i < valueCount; i++) {
-        if (ins[i] != null) {
-          Util.closeQuietly(ins[i]);
-        } else {
+
+      synchronized (lockFor(key)) {
+        if (lruEntries.get(key) == entry && entry.sequenceNumber == sequenceNumber) {
+          touch(entry);
+          readRecorded = recordRead(key);
+          snapshot = new Snapshot(key, sequenceNumber, ins, entry.lengths.clone());
           break;
         }
       }
-      return null;
+      closeAll(ins); // An edit was committed while we opened the streams.
+    }
+
+    if (readRecorded) {
+      try {
+        writeReadRecord();
+      } catch (IOException e) {
+        snapshot.close();
+        throw e;
+      }
+    }
+
+    return snapshot;
+  }
+
+  /**
+   * Moves the entry named {@code key} to the head of the LRU queue, as if it
+   * had been read, without opening its files. Returns false if the entry
+   * doesn't exist or is not currently readable.
+   */
+  public boolean touch(String key) throws IOException {
+    checkNotClosed();
+    validateKey(key);
+
+    boolean readRecorded;
+    synchronized (lockFor(key)) {
+      Entry entry = lruEntries.get(key);
+      if (entry == null || !entry.readable) {
+        return false;
+      }
+      touch(entry);
+      readRecorded = recordRead(key);
+    }
+
+    if (readRecorded) {
+      writeReadRecord();
+    }
+    return true;
+  }
+
+  /**
+   * Queues a READ record for {@code key} if this read is sampled. Returns true
+   * if a record was queued. Call with the key's lock held.
+   */
+  private boolean recordRead(String key) {
+    if (readRecordInterval == 0 || closed
+        || readCount.incrementAndGet() % readRecordInterval != 0) {
+      return false;
     }
+    journal.add(READ + ' ' + key + '\n');
+    return true;
+  }
 
-    redundantOpCount++;
-    journalWriter.writeUtf8(READ + ' ' + key + '\n');
+  private void writeReadRecord() throws IOException {
+    redundantOpCount.incrementAndGet();
+    journal.write();
     if (journalRebuildRequired()) {
       executorService.execute(cleanupRunnable);
     }
-
-    return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths);
   }
 
   /**
@@ -445,27 +598,33 @@ public final class DiskLruCache implements Closeable {
     return edit(key, ANY_SEQUENCE_NUMBER);
   }
 
-  private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+  private Editor edit(String key, long expectedSequenceNumber) throws IOException {
     checkNotClosed();
     validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
-        || entry.sequenceNumber != expectedSequenceNumber)) {
-      return null; // Snapshot is stale.
-    }
-    if (entry == null) {
-      entry = new Entry(key);
-      lruEntries.put(key, entry);
-    } else if (entry.currentEditor != null) {
-      return null; // Another edit is in progress.
-    }
+    Editor editor;
+    long record;
+    synchronized (lockFor(key)) {
+      checkNotClosed(); // Again, in case close() ran while we waited for the lock.
+      Entry entry = lruEntries.get(key);
+      if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
+          || entry.sequenceNumber != expectedSequenceNumber)) {
+        return null; // Snapshot is stale.
+      }
+      if (entry == null) {
+        entry = new Entry(key);
+        lruEntries.put(key, entry);
+      } else if (entry.currentEditor != null) {
+        return null; // Another edit is in progress.
+      }
+      touch(entry);
 
-    Editor editor = new Editor(entry);
-    entry.currentEditor = editor;
+      editor = new Editor(entry);
+      entry.currentEditor = editor;
+      record = journal.add(DIRTY + ' ' + key + '\n');
+    }
 
     // Flush the journal before creating files to prevent file leaks.
-    journalWriter.writeUtf8(DIRTY + ' ' + key + '\n');
-    journalWriter.flush();
+    journal.commit(record);
     return editor;
   }
 
@@ -478,7 +637,7 @@ public final class DiskLruCache implements Closeable {
    * Returns the maximum number of bytes that this cache should use to store
    * its data.
    */
-  public synchronized long getMaxSize() {
+  public long getMaxSize() {
     return maxSize;
   }
 
@@ -486,71 +645,123 @@ public final class DiskLruCache implements Closeable {
    * Changes the maximum number of bytes the cache can store and queues a job
    * to trim the existing store, if necessary.
    */
-  public synchronized void setMaxSize(long maxSize) {
+  public void setMaxSize(long maxSize) {
     this.maxSize = maxSize;
     executorService.execute(cleanupRunnable);
   }
 
+  /**
+   * Batches the journal's records. Records are written together with a single
+   * flush up to {@code delay} after the first of them is queued, or as soon as
+   * {@code maxRecords} are queued. Edits wait for their batch to be flushed,
+   * so concurrent edits share flushes. A delay of 0, the default, flushes each
+   * edit's records immediately.
+   */
+  public void setJournalGroupCommit(long delay, TimeUnit unit, int maxRecords) {
+    if (delay < 0) throw new IllegalArgumentException("delay < 0");
+    if (maxRecords <= 0) throw new IllegalArgumentException("maxRecords <= 0");
+    journal.setGroupCommit(unit.toNanos(delay), maxRecords);
+  }
+
+  /**
+   * Records only one in {@code interval} reads in the journal, or no reads if
+   * {@code interval} is 0. The order of recent use is always tracked in
+   * memory; the journal only preserves it for when the cache is next opened.
+   * By default every read is recorded.
+   */
+  public void setReadRecordInterval(int interval) {
+    if (interval < 0) throw new IllegalArgumentException("interval < 0");
+    this.readRecordInterval = interval;
+  }
+
+  /**
+   * Sets the listener notified after entries are evicted to keep the cache
+   * within its maximum size. It is called on the thread that evicts, which
+   * may be a background thread. Null removes the listener.
+   */
+  public void setEvictionListener(EvictionListener evictionListener) {
+    this.evictionListener = evictionListener;
+  }
+
   /**
    * Returns the number of bytes currently being used to store the values in
    * this cache. This may be greater than the max size if a background
    * deletion is pending.
    */
-  public synchronized long size() {
-    return size;
+  public long size() {
+    return size.get();
   }
 
-  private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+  /** Returns the number of times the journal has been flushed. */
+  int journalFlushCount() {
+    return journal.flushCount();
+  }
+
+  private void completeEdit(Editor editor, boolean success) throws IOException {
     Entry entry = editor.entry;
-    if (entry.currentEditor != editor) {
-      throw new IllegalStateException();
-    }
+    long record;
+    boolean closedDuringEdit = false;
+    synchronized (lockFor(entry.key)) {
+      if (entry.currentEditor != editor) {
+        throw new IllegalStateException();
+      }
+      if (success && closed) {
+        // Abort rather than publish files that the closing journal may not record.
+        success = false;
+        closedDuringEdit = true;
+      }
 
-    // If this edit is creating the entry for the first time, every index must have a value.
-    if (success && !entry.readable) {
-      for (int i = 0; i < valueCount; i++) {
-        if (!editor.written[i]) {
-          editor.abort();
-          throw new IllegalStateException("Newly created entry didn't create value for index " + i);
+      // If this edit is creating the entry for the first time, every index must have a value.
+      if (success && !entry.readable) {
+        for (int i = 0; i < valueCount; i++) {
+          if (!editor.written[i]) {
+            editor.abort();
+            throw new IllegalStateException(
+                "Newly created entry didn't create value for index " + i);
+          }
+          if (!entry.getDirtyFile(i).exists()) {
+            editor.abort();
+            return;
+          }
         }
-        if (!entry.getDirtyFile(i).exists()) {
-          editor.abort();
-          return;
+      }
+
+      for (int i = 0; i < valueCount; i++) {
+        File dirty = entry.getDirtyFile(i);
+        if (success) {
+          if (dirty.exists()) {
+            File clean = entry.getCleanFile(i);
+            dirty.renameTo(clean);
+            long oldLength = entry.lengths[i];
+            long newLength = clean.length();
+            entry.lengths[i] = newLength;
+            size.addAndGet(newLength - oldLength);
+          }
+        } else {
+          deleteIfExists(dirty);
         }
       }
-    }
 
-    for (int i = 0; i < valueCount; i++) {
-      File dirty = entry.getDirtyFile(i);
-      if (success) {
-        if (dirty.exists()) {
-          File clean = entry.getCleanFile(i);
-          dirty.renameTo(clean);
-          long oldLength = entry.lengths[i];
-          long newLength = clean.length();
-          entry.lengths[i] = newLength;
-          size = size - oldLength + newLength;
+      redundantOpCount.incrementAndGet();
+      entry.currentEditor = null;
+      if (entry.readable | success) {
+        entry.readable = true;
+        record = journal.add(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+        if (success) {
+          entry.sequenceNumber = nextSequenceNumber.getAndIncrement();
         }
       } else {
-        deleteIfExists(dirty);
+        lruEntries.remove(entry.key);
+        lruOrder.remove(entry.accessOrder);
+        record = journal.add(REMOVE + ' ' + entry.key + '\n');
       }
     }
-
-    redundantOpCount++;
-    entry.currentEditor = null;
-    if (entry.readable | success) {
-      entry.readable = true;
-      journalWriter.writeUtf8(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-      if (success) {
-        entry.sequenceNumber = nextSequenceNumber++;
-      }
-    } else {
-      lruEntries.remove(entry.key);
-      journalWriter.writeUtf8(REMOVE + ' ' + entry.key + '\n');
+    journal.commit(record);
+    if (closedDuringEdit) {
+      throw new IllegalStateException("cache is closed");
     }
-    journalWriter.flush();
 
-    if (size > maxSize || journalRebuildRequired()) {
+    if (size.get() > maxSize || journalRebuildRequired()) {
       executorService.execute(cleanupRunnable);
     }
   }
@@ -561,6 +772,7 @@ public final class DiskLruCache implements Closeable {
    */
   private boolean journalRebuildRequired() {
     final int redundantOpCompactThreshold = 2000;
+    int redundantOpCount = this.redundantOpCount.get();
     return redundantOpCount >= redundantOpCompactThreshold
         && redundantOpCount >= lruEntries.size();
   }
@@ -571,24 +783,39 @@ public final class DiskLruCache implements Closeable {
    *
    * @return true if an entry was removed.
    */
-  public synchronized boolean remove(String key) throws IOException {
+  public boolean remove(String key) throws IOException {
     checkNotClosed();
     validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (entry == null || entry.currentEditor != null) {
-      return false;
-    }
+    return removeEntry(key, false);
+  }
 
-    for (int i = 0; i < valueCount; i++) {
-      File file = entry.getCleanFile(i);
-      deleteIfExists(file);
-      size -= entry.lengths[i];
-      entry.lengths[i] = 0;
-    }
+  /**
+   * Removes the entry for {@code key}. Unless {@code closing} is true, which
+   * only {@link #close} may pass, this does nothing once the cache is closed.
+   */
+  private boolean removeEntry(String key, boolean closing) throws IOException {
+    synchronized (lockFor(key)) {
+      if (closed && !closing) {
+        return false;
+      }
+      Entry entry = lruEntries.get(key);
+      if (entry == null || entry.currentEditor != null) {
+        return false;
+      }
 
-    redundantOpCount++;
-    journalWriter.writeUtf8(REMOVE + ' ' + key + '\n');
-    lruEntries.remove(key);
+      for (int i = 0; i < valueCount; i++) {
+        File file = entry.getCleanFile(i);
+        deleteIfExists(file);
+        size.addAndGet(-entry.lengths[i]);
+        entry.lengths[i] = 0;
+      }
+
+      redundantOpCount.incrementAndGet();
+      journal.add(REMOVE + ' ' + key + '\n');
+      lruEntries.remove(key);
+      lruOrder.remove(entry.accessOrder);
+    }
+    journal.write();
 
     if (journalRebuildRequired()) {
       executorService.execute(cleanupRunnable);
@@ -599,43 +826,83 @@ public final class DiskLruCache implements Closeable {
 
   /** Returns true if this cache has been closed. */
   public boolean isClosed() {
-    return journalWriter == null;
+    return closed;
   }
 
   private void checkNotClosed() {
-    if (journalWriter == null) {
+    if (closed) {
       throw new IllegalStateException("cache is closed");
     }
   }
 
   /** Force buffered operations to the filesystem. */
-  public synchronized void flush() throws IOException {
+  public void flush() throws IOException {
     checkNotClosed();
-    trimToSize();
-    journalWriter.flush();
+    trimToSize(false);
+    journal.flush();
   }
 
   /** Closes this cache. Stored values will remain on the filesystem. */
   public synchronized void close() throws IOException {
-    if (journalWriter == null) {
+    if (closed) {
       return; // Already closed.
     }
-    // Copying for safe iteration.
-    for (Object next : lruEntries.values().toArray()) {
-      Entry entry = (Entry) next;
-      if (entry.currentEditor != null) {
-        entry.currentEditor.abort();
+    closed = true;
+
+    // Operations check whether the cache is closed while holding their key's
+    // lock. Take each lock once so that operations that didn't see the flag
+    // finish, and their records are queued, before the journal is closed.
+    for (Object lock : locks) {
+      synchronized (lock) {
+        // Wait for the lock's holder.
+      }
+    }
+
+    for (Entry entry : lruEntries.values()) {
+      Editor editor = entry.currentEditor;
+      if (editor != null) {
+        try {
+          editor.abort();
+        } catch (IllegalStateException ignored) {
+          // The edit completed concurrently.
+        }
+      }
+    }
+    trimToSize(true);
+    journal.close();
+  }
+
+  private void trimToSize(boolean closing) throws IOException {
+    for (Iterator<Entry> i = lruOrder.values().iterator(); size.get() > maxSize && i.hasNext(); ) {
+      String key = i.next().key;
+      if (removeEntry(key, closing)) {
+        EvictionListener evictionListener = this.evictionListener;
+        if (evictionListener != null) evictionListener.evicted(key);
       }
     }
-    trimToSize();
-    journalWriter.close();
-    journalWriter = null;
   }
 
-  private void trimToSize() throws IOException {
-    while (size > maxSize) {
-      Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-      remove(toEvict.getKey());
+  /** Moves {@code entry} to the head of the LRU queue. Call with the entry's lock held. */
+  private void touch(Entry entry) {
+    if (entry.accessOrder != 0) {
+      lruOrder.remove(entry.accessOrder);
+    }
+    entry.accessOrder = nextAccessOrder.incrementAndGet();
+    lruOrder.put(entry.accessOrder, entry);
+  }
+
+  private Object lockFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12) ^ (h >>> 7) ^ (h >>> 4);
+    return locks[h & (LOCK_STRIPES - 1)];
+  }
+
+  private static void closeAll(InputStream[] ins) {
+    for (InputStream in : ins) {
+      if (in == null) {
+        break;
+      }
+      Util.closeQuietly(in);
     }
   }
 
@@ -661,6 +928,12 @@ public final class DiskLruCache implements Closeable {
     return buffer.readUtf8(buffer.size());
   }
 
+  /** Notified when entries are evicted to keep a cache within its maximum size. */
+  public interface EvictionListener {
+    /** Called after the entry for {@code key} has been evicted. */
+    void evicted(String key);
+  }
+
   /** A snapshot of the values for an entry. */
   public final class Snapshot implements Closeable {
     private final String key;
@@ -730,7 +1003,7 @@ public final class DiskLruCache implements Closeable {
      * or null if no value has been committed.
      */
     public InputStream newInputStream(int index) throws IOException {
-      synchronized (DiskLruCache.this) {
+      synchronized (lockFor(entry.key)) {
         if (entry.currentEditor != this) {
           throw new IllegalStateException();
         }
@@ -762,7 +1035,7 @@ public final class DiskLruCache implements Closeable {
      * IOExceptions.
      */
     public OutputStream newOutputStream(int index) throws IOException {
-      synchronized (DiskLruCache.this) {
+      synchronized (lockFor(entry.key)) {
         if (entry.currentEditor != this) {
           throw new IllegalStateException();
         }
@@ -864,6 +1137,185 @@ public final class DiskLruCache implements Closeable {
     }
   }
 
+  /**
+   * Appends records to the journal. Operations queue their records while
+   * holding their entry's lock, so the records for each entry are in order.
+   * Whichever thread holds the writer lock writes every queued record; threads
+   * that find it held leave their records to that thread.
+   *
+   * <p>With group commit, the first thread that must wait for its record to be
+   * flushed waits for more records to be queued, then writes and flushes them
+   * all. Threads that queue records meanwhile wait for that flush.
+   *
+   * <p>Never acquire the writer lock while holding an entry's lock. Rebuilding
+   * the journal acquires entry locks while holding the writer lock.
+   */
+  private static final class Journal {
+    final ReentrantLock writerLock = new ReentrantLock();
+    /** The journal's sink, or null if the cache is closed. Guarded by writerLock. */
+    BufferedSink writer;
+    /** Records written while the journal is rebuilt, or null. Guarded by writerLock. */
+    List<String> rebuildTail;
+
+    // Guarded by this.
+    private List<String> pending = new ArrayList<String>();
+    /** The number of records queued since the cache was opened. */
+    private long queuedCount;
+    /** The number of those records that have been flushed. */
+    private long flushedCount;
+    /** True while a thread is gathering records to flush. */
+    private boolean committing;
+    private long groupCommitNanos;
+    private int groupCommitMaxRecords = Integer.MAX_VALUE;
+    private int flushCount;
+
+    void open(BufferedSink writer) {
+      writerLock.lock();
+      try {
+        this.writer = writer;
+      } finally {
+        writerLock.unlock();
+      }
+    }
+
+    synchronized void setGroupCommit(long nanos, int maxRecords) {
+      this.groupCommitNanos = nanos;
+      this.groupCommitMaxRecords = maxRecords;
+    }
+
+    /** Queues {@code record} and returns its number, for {@link #commit}. */
+    synchronized long add(String record) {
+      pending.add(record);
+      if (pending.size() >= groupCommitMaxRecords) {
+        notifyAll(); // Cut the committing thread's wait short.
+      }
+      return ++queuedCount;
+    }
+
+    /**
+     * Writes the queued records, unless another thread is already writing
+     * them. With group commit, records are left for the next batch unless
+     * enough are queued to fill it.
+     */
+    void write() throws IOException {
+      // Check again after unlocking, in case another thread queued a record
+      // and found the lock held just before we released it.
+      while (shouldWrite() && writerLock.tryLock()) {
+        try {
+          writePending();
+        } finally {
+          writerLock.unlock();
+        }
+      }
+    }
+
+    private synchronized boolean shouldWrite() {
+      return groupCommitNanos == 0 ? !pending.isEmpty() : pending.size() >= groupCommitMaxRecords;
+    }
+
+    /** Returns once the record numbered {@code record} has been flushed. */
+    void commit(long record) throws IOException {
+      synchronized (this) {
+        while (committing && flushedCount < record) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+          }
+        }
+        if (flushedCount >= record) {
+          return;
+        }
+
+        // Gather records from other threads before flushing.
+        committing = true;
+        long deadline = System.nanoTime() + groupCommitNanos;
+        try {
+          for (long remaining = groupCommitNanos; remaining > 0
+              && pending.size() < groupCommitMaxRecords; remaining = deadline - System.nanoTime()) {
+            wait(remaining / 1000000L, (int) (remaining % 1000000L));
+          }
+        } catch (InterruptedException e) {
+          committing = false;
+          notifyAll();
+          throw new InterruptedIOException();
+        }
+      }
+
+      try {
+        flush();
+      } finally {
+        synchronized (this) {
+          committing = false;
+          notifyAll();
+        }
+      }
+    }
+
+    /** Writes the queued records and flushes the journal to the filesystem. */
+    void flush() throws IOException {
+      writerLock.lock();
+      try {
+        long written = writePending();
+        if (writer != null) {
+          writer.flush();
+        }
+        synchronized (this) {
+          flushCount++;
+          flushedCount = Math.max(flushedCount, written);
+          notifyAll();
+        }
+      } finally {
+        writerLock.unlock();
+      }
+      write();
+    }
+
+    void close() throws IOException {
+      writerLock.lock();
+      try {
+        writePending();
+        if (writer != null) {
+          writer.close();
+          writer = null;
+        }
+      } finally {
+        writerLock.unlock();
+      }
+    }
+
+    /**
+     * Writes the queued records and returns the number of records queued so
+     * far. Call with the writer lock held.
+     */
+    long writePending() throws IOException {
+      List<String> records;
+      long result;
+      synchronized (this) {
+        records = pending;
+        pending = new ArrayList<String>();
+        result = queuedCount;
+      }
+      if (rebuildTail != null) {
+        rebuildTail.addAll(records);
+      }
+      if (writer == null) {
+        // Records are only queued while the cache is open. Dropping one would
+        // orphan the files it describes.
+        if (!records.isEmpty()) throw new IllegalStateException("journal is closed");
+        return result;
+      }
+      for (int i = 0, size = records.size(); i < size; i++) {
+        writer.writeUtf8(records.get(i));
+      }
+      return result;
+    }
+
+    synchronized int flushCount() {
+      return flushCount;
+    }
+  }
+
   private final class Entry {
     private final String key;
 
@@ -874,11 +1326,14 @@ public final class DiskLruCache implements Closeable {
     private boolean readable;
 
     /** The ongoing edit or null if this entry is not being edited. */
-    private Editor currentEditor;
+    private volatile Editor currentEditor;
 
     /** The sequence number of the most recently committed edit to this entry. */
     private long sequenceNumber;
 
+    /** This entry's key in {@code lruOrder}, or 0 if it hasn't been accessed. */
+    private long accessOrder;
+
     private Entry(String key) {
       this.key = key;
       this.lengths = new long[valueCount];
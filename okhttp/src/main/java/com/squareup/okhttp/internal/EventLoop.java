@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread that multiplexes many non-blocking channels with a single selector.
+ * Handlers are called on the loop's thread and must not block.
+ *
+ * <p>Loops are shared: {@link #next} returns one of a small fixed set of loops,
+ * in turn. The number of loops defaults to the number of available processors
+ * and may be configured with the {@code okhttp.eventLoopCount} system property.
+ * Loop threads are daemon threads that are started on first use.
+ */
+public final class EventLoop {
+  private static final int LOOP_COUNT = Integer.getInteger("okhttp.eventLoopCount",
+      Runtime.getRuntime().availableProcessors());
+
+  /** Registered channels are failed after this many consecutive selector failures. */
+  private static final int MAX_SELECT_FAILURES = 5;
+
+  private static final EventLoop[] loops = new EventLoop[Math.max(1, LOOP_COUNT)];
+  private static final AtomicInteger nextLoop = new AtomicInteger();
+
+  /** Orders scheduled tasks by when they're due, then in the order they were scheduled. */
+  private static final Comparator<ScheduledTask> DUE_ORDER = new Comparator<ScheduledTask>() {
+    @Override public int compare(ScheduledTask a, ScheduledTask b) {
+      long delta = a.dueNanoTime - b.dueNanoTime; // Subtract to avoid overflow!
+      if (delta != 0) return delta < 0 ? -1 : 1;
+      return a.sequence < b.sequence ? -1 : a.sequence > b.sequence ? 1 : 0;
+    }
+  };
+
+  /** Called on the loop thread when a registered channel is ready. */
+  public interface Handler {
+    /**
+     * Performs the operations that {@code key} is ready for. If this throws an
+     * IOException or a RuntimeException, the key is canceled, its channel is
+     * closed and {@link #failed} is called.
+     */
+    void ready(SelectionKey key) throws IOException;
+
+    /** Called after the channel has been closed because of {@code e}. */
+    void failed(IOException e);
+  }
+
+  private final Selector selector;
+  private final Thread thread;
+
+  /** Tasks to run on the loop thread. Guarded by this. */
+  private final Deque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+  /** Tasks to run on the loop thread when they're due, earliest first. Guarded by this. */
+  private final PriorityQueue<ScheduledTask> scheduledTasks
+      = new PriorityQueue<ScheduledTask>(11, DUE_ORDER);
+
+  /** Increments for each scheduled task. Guarded by this. */
+  private long nextSequence;
+
+  /**
+   * A buffer for handlers to read into. Handlers must copy the bytes they read
+   * before returning.
+   */
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+
+  private EventLoop(String name) throws IOException {
+    this.selector = Selector.open();
+    this.thread = new Thread(new NamedRunnable(name) {
+      @Override protected void execute() {
+        loop();
+      }
+    });
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /** Returns the next shared event loop, starting it if necessary. */
+  public static EventLoop next() throws IOException {
+    int index = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+    synchronized (loops) {
+      EventLoop result = loops[index];
+      if (result == null) {
+        result = loops[index] = new EventLoop("OkHttp EventLoop " + index);
+      }
+      return result;
+    }
+  }
+
+  /** Returns true if the calling thread is this loop's thread. */
+  public boolean inLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Returns this loop's shared read buffer, cleared. Only call this on the loop
+   * thread.
+   */
+  public ByteBuffer readBuffer() {
+    if (!inLoop()) throw new IllegalStateException();
+    readBuffer.clear();
+    return readBuffer;
+  }
+
+  /** Runs {@code task} on this loop's thread. */
+  public void execute(Runnable task) {
+    synchronized (this) {
+      tasks.add(task);
+    }
+    selector.wakeup();
+  }
+
+  /** Runs {@code task} on this loop's thread after {@code delayNanos}. */
+  public void schedule(Runnable task, long delayNanos) {
+    boolean wakeup;
+    synchronized (this) {
+      ScheduledTask scheduledTask
+          = new ScheduledTask(System.nanoTime() + delayNanos, nextSequence++, task);
+      scheduledTasks.add(scheduledTask);
+      wakeup = scheduledTasks.peek() == scheduledTask && !inLoop();
+    }
+    if (wakeup) selector.wakeup(); // Select again with a shorter timeout.
+  }
+
+  /**
+   * Registers {@code channel} with this loop for the operations in {@code
+   * interestOps}. The channel is configured as non-blocking.
+   */
+  public void register(final SelectableChannel channel, final int interestOps,
+      final Handler handler) {
+    execute(new Runnable() {
+      @Override public void run() {
+        try {
+          channel.configureBlocking(false);
+          channel.register(selector, interestOps, handler);
+        } catch (ClosedChannelException e) {
+          handler.failed(e);
+        } catch (IOException e) {
+          Util.closeQuietly(channel);
+          handler.failed(e);
+        }
+      }
+    });
+  }
+
+  /** Changes the operations that {@code channel}'s handler is waiting for. */
+  public void interestOps(final SelectableChannel channel, final int interestOps) {
+    if (inLoop()) {
+      setInterestOps(channel, interestOps);
+      return;
+    }
+    execute(new Runnable() {
+      @Override public void run() {
+        setInterestOps(channel, interestOps);
+      }
+    });
+  }
+
+  private void setInterestOps(SelectableChannel channel, int interestOps) {
+    SelectionKey key = channel.keyFor(selector);
+    if (key == null || !key.isValid()) return; // The channel has been closed.
+    key.interestOps(interestOps);
+  }
+
+  private void loop() {
+    int selectFailures = 0;
+    while (true) {
+      try {
+        selector.select(selectTimeoutMillis());
+        selectFailures = 0;
+      } catch (IOException e) {
+        Platform.get().logW("Unexpected selector failure: " + e);
+        if (++selectFailures >= MAX_SELECT_FAILURES) {
+          failAll(e);
+        }
+        backOff(selectFailures);
+      }
+
+      runTasks();
+
+      for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext(); ) {
+        SelectionKey key = i.next();
+        i.remove();
+        Handler handler = (Handler) key.attachment();
+        try {
+          handler.ready(key);
+        } catch (CancelledKeyException ignored) {
+          // The handler closed its channel.
+        } catch (IOException e) {
+          fail(key, e);
+        } catch (RuntimeException e) {
+          fail(key, new IOException(e));
+        }
+      }
+    }
+  }
+
+  /** Fails every registered channel, after the selector has failed repeatedly. */
+  private void failAll(IOException e) {
+    for (SelectionKey key : selector.keys()) {
+      if (key.isValid()) fail(key, e);
+    }
+  }
+
+  /** Cancels {@code key}, closes its channel, and tells its handler. */
+  private void fail(SelectionKey key, IOException e) {
+    key.cancel();
+    Util.closeQuietly(key.channel());
+    try {
+      ((Handler) key.attachment()).failed(e);
+    } catch (RuntimeException failure) {
+      Platform.get().logW("Handler failure: " + failure);
+    }
+  }
+
+  /** Sleeps before selecting again, longer after each consecutive failure. */
+  private void backOff(int selectFailures) {
+    long sleepMillis = Math.min(1000L, 10L << Math.min(selectFailures, 10));
+    try {
+      Thread.sleep(sleepMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Returns how long to wait for the next scheduled task, or 0 to wait indefinitely. */
+  private synchronized long selectTimeoutMillis() {
+    ScheduledTask next = scheduledTasks.peek();
+    if (next == null) return 0;
+    long waitNanos = next.dueNanoTime - System.nanoTime();
+    return Math.max(1L, (waitNanos + 999999L) / 1000000L);
+  }
+
+  /** Runs pending tasks, then scheduled tasks that are due. */
+  private void runTasks() {
+    while (true) {
+      Runnable task;
+      synchronized (this) {
+        task = tasks.poll();
+        if (task == null) {
+          ScheduledTask next = scheduledTasks.peek();
+          if (next != null && next.dueNanoTime - System.nanoTime() <= 0) {
+            task = scheduledTasks.remove().task;
+          }
+        }
+      }
+      if (task == null) return;
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        Platform.get().logW("Event loop task failure: " + e);
+      }
+    }
+  }
+
+  private static final class ScheduledTask {
+    final long dueNanoTime;
+    final long sequence;
+    final Runnable task;
+
+    ScheduledTask(long dueNanoTime, long sequence, Runnable task) {
+      this.dueNanoTime = dueNanoTime;
+      this.sequence = sequence;
+      this.task = task;
+    }
+  }
+}
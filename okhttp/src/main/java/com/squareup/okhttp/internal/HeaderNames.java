@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+import java.io.IOException;
+import java.util.Locale;
+import okio.BufferedSink;
+import okio.ByteString;
+
+/**
+ * Interned names of well-known header fields. Each name has an index, a
+ * canonical spelling like "Content-Type" and a lowercase spelling like
+ * "content-type", both as strings and as UTF-8 bytes.
+ *
+ * <p>Parsers use this to share name instances instead of allocating a string
+ * per field, and {@link com.squareup.okhttp.Headers} uses the indexes to look up
+ * well-known fields without comparing strings. Lookups ignore ASCII case and
+ * don't allocate.
+ */
+public final class HeaderNames {
+  private static final String[] CANONICAL = {
+      "Accept",
+      "Accept-Charset",
+      "Accept-Encoding",
+      "Accept-Language",
+      "Accept-Ranges",
+      "Access-Control-Allow-Origin",
+      "Age",
+      "Allow",
+      "Authorization",
+      "Cache-Control",
+      "Connection",
+      "Content-Disposition",
+      "Content-Encoding",
+      "Content-Language",
+      "Content-Length",
+      "Content-Location",
+      "Content-Range",
+      "Content-Type",
+      "Cookie",
+      "Date",
+      "ETag",
+      "Expect",
+      "Expires",
+      "Host",
+      "If-Match",
+      "If-Modified-Since",
+      "If-None-Match",
+      "If-Range",
+      "If-Unmodified-Since",
+      "Keep-Alive",
+      "Last-Modified",
+      "Link",
+      "Location",
+      "Pragma",
+      "Proxy-Authenticate",
+      "Proxy-Authorization",
+      "Proxy-Connection",
+      "Range",
+      "Referer",
+      "Retry-After",
+      "Server",
+      "Set-Cookie",
+      "Strict-Transport-Security",
+      "TE",
+      "Trailer",
+      "Transfer-Encoding",
+      "Upgrade",
+      "User-Agent",
+      "Vary",
+      "Via",
+      "Warning",
+      "WWW-Authenticate",
+      "X-Content-Type-Options",
+      "X-Frame-Options",
+      "X-XSS-Protection",
+      // OkHttp's synthetic headers. See OkHeaders.
+      Platform.get().getPrefix() + "-Sent-Millis",
+      Platform.get().getPrefix() + "-Received-Millis",
+      Platform.get().getPrefix() + "-Queue-Wait-Millis",
+      Platform.get().getPrefix() + "-Response-Source",
+      Platform.get().getPrefix() + "-Selected-Protocol",
+  };
+
+  private static final String[] LOWERCASE = new String[CANONICAL.length];
+  private static final ByteString[] CANONICAL_UTF8 = new ByteString[CANONICAL.length];
+  private static final ByteString[] LOWERCASE_UTF8 = new ByteString[CANONICAL.length];
+
+  /**
+   * An open addressing hash table of name indexes plus one. Zero marks an
+   * empty slot.
+   */
+  private static final int[] TABLE = new int[256];
+
+  static {
+    for (int i = 0; i < CANONICAL.length; i++) {
+      LOWERCASE[i] = CANONICAL[i].toLowerCase(Locale.US);
+      CANONICAL_UTF8[i] = ByteString.encodeUtf8(CANONICAL[i]);
+      LOWERCASE_UTF8[i] = ByteString.encodeUtf8(LOWERCASE[i]);
+      int slot = spread(LOWERCASE[i].hashCode());
+      while (TABLE[slot] != 0) slot = (slot + 1) & (TABLE.length - 1);
+      TABLE[slot] = i + 1;
+    }
+  }
+
+  private HeaderNames() {
+  }
+
+  /** Returns the index of the well-known name equal to {@code name} ignoring case, or -1. */
+  public static int indexOf(String name) {
+    return indexOf(name, 0, name.length());
+  }
+
+  /**
+   * Returns the index of the well-known name equal to {@code s[start..end)}
+   * ignoring case, or -1.
+   */
+  public static int indexOf(String s, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + lowercase(s.charAt(i));
+    }
+    for (int slot = spread(h); TABLE[slot] != 0; slot = (slot + 1) & (TABLE.length - 1)) {
+      int index = TABLE[slot] - 1;
+      String lowercase = LOWERCASE[index];
+      if (lowercase.length() == end - start && equalsIgnoreCase(lowercase, s, start)) {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the index of the well-known name equal to {@code name} ignoring case, or -1. */
+  public static int indexOf(ByteString name) {
+    int size = name.size();
+    int h = 0;
+    for (int i = 0; i < size; i++) {
+      h = 31 * h + lowercase(name.getByte(i));
+    }
+    for (int slot = spread(h); TABLE[slot] != 0; slot = (slot + 1) & (TABLE.length - 1)) {
+      int index = TABLE[slot] - 1;
+      ByteString lowercase = LOWERCASE_UTF8[index];
+      if (lowercase.size() == size && equalsIgnoreCase(lowercase, name)) {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns {@code s[start..end)} as a string. If it is a well-known name in
+   * its canonical or lowercase spelling, the shared instance is returned.
+   */
+  public static String intern(String s, int start, int end) {
+    int index = indexOf(s, start, end);
+    if (index != -1) {
+      if (CANONICAL[index].regionMatches(0, s, start, end - start)) return CANONICAL[index];
+      if (LOWERCASE[index].regionMatches(0, s, start, end - start)) return LOWERCASE[index];
+    }
+    return s.substring(start, end);
+  }
+
+  /**
+   * Returns {@code data[start..end)} decoded as UTF-8. If it is a well-known
+   * name in its canonical or lowercase spelling, the shared instance is
+   * returned.
+   */
+  public static String intern(byte[] data, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + lowercase(data[i]);
+    }
+    for (int slot = spread(h); TABLE[slot] != 0; slot = (slot + 1) & (TABLE.length - 1)) {
+      int index = TABLE[slot] - 1;
+      if (LOWERCASE[index].length() != end - start) continue;
+      if (equals(LOWERCASE[index], data, start)) return LOWERCASE[index];
+      if (equals(CANONICAL[index], data, start)) return CANONICAL[index];
+    }
+    return new String(data, start, end - start, Util.UTF_8);
+  }
+
+  /**
+   * Returns {@code name} decoded as UTF-8. If it is a well-known name in its
+   * canonical or lowercase spelling, the shared instance is returned.
+   */
+  public static String intern(ByteString name) {
+    int index = indexOf(name);
+    if (index != -1) {
+      if (LOWERCASE_UTF8[index].equals(name)) return LOWERCASE[index];
+      if (CANONICAL_UTF8[index].equals(name)) return CANONICAL[index];
+    }
+    return name.utf8();
+  }
+
+  /**
+   * Returns {@code name}, or the shared instance of it if it is a well-known
+   * lowercase name. Use this to share the names of retained headers.
+   */
+  public static ByteString internLowercase(ByteString name) {
+    int index = indexOf(name);
+    if (index != -1 && LOWERCASE_UTF8[index].equals(name)) return LOWERCASE_UTF8[index];
+    return name;
+  }
+
+  /** Returns {@code name} in lowercase as UTF-8 bytes, as SPDY and HTTP/2 require. */
+  public static ByteString lowercaseUtf8(String name) {
+    int index = indexOf(name);
+    if (index != -1) return LOWERCASE_UTF8[index];
+    return ByteString.encodeUtf8(name.toLowerCase(Locale.US));
+  }
+
+  /** Writes {@code name} to {@code sink} as UTF-8, preserving its case. */
+  public static void writeUtf8(BufferedSink sink, String name) throws IOException {
+    int index = indexOf(name);
+    if (index != -1) {
+      if (name.equals(CANONICAL[index])) {
+        sink.write(CANONICAL_UTF8[index]);
+        return;
+      }
+      if (name.equals(LOWERCASE[index])) {
+        sink.write(LOWERCASE_UTF8[index]);
+        return;
+      }
+    }
+    sink.writeUtf8(name);
+  }
+
+  private static int spread(int h) {
+    return (h ^ (h >>> 8) ^ (h >>> 16)) & (TABLE.length - 1);
+  }
+
+  private static int lowercase(int c) {
+    return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+  }
+
+  /** Returns true if {@code s} at {@code start} equals {@code lowercase}, ignoring ASCII case. */
+  private static boolean equalsIgnoreCase(String lowercase, String s, int start) {
+    for (int i = 0, length = lowercase.length(); i < length; i++) {
+      if (lowercase.charAt(i) != lowercase(s.charAt(start + i))) return false;
+    }
+    return true;
+  }
+
+  private static boolean equalsIgnoreCase(ByteString lowercase, ByteString name) {
+    for (int i = 0, size = lowercase.size(); i < size; i++) {
+      if (lowercase.getByte(i) != lowercase(name.getByte(i))) return false;
+    }
+    return true;
+  }
+
+  /** Returns true if {@code data} at {@code start} holds the ASCII string {@code s}. */
+  private static boolean equals(String s, byte[] data, int start) {
+    for (int i = 0, length = s.length(); i < length; i++) {
+      if (s.charAt(i) != data[start + i]) return false;
+    }
+    return true;
+  }
+}
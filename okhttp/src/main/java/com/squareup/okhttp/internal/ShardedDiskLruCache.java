@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * A {@link DiskLruCache} split into shards by key. Each shard is a cache of
+ * its own in a subdirectory, with its own journal and LRU order, so opening
+ * the cache doesn't replay one journal of every entry, and no directory holds
+ * every entry's files.
+ *
+ * <p>Shards are opened in parallel on background threads, starting when the
+ * cache is opened. An operation on a shard that isn't open yet opens it
+ * immediately, or waits for the thread that's opening it. A shard that fails to
+ * open is logged, and operations on it throw the failure. A cache with one
+ * shard is opened before {@link #open} returns.
+ *
+ * <p>Each shard may hold an equal part of the cache's maximum size, and evicts
+ * its own least recently used entries. Keys should be spread uniformly, like
+ * the hashes that {@code HttpResponseCache} uses. The size of the cache is
+ * the sum of its shards, which opens every shard.
+ *
+ * <p>A cache with one shard keeps its entries in its directory, the same as
+ * a {@link DiskLruCache}. A cache with {@code n} shards keeps them in
+ * subdirectories named {@code shard0ofn} through {@code shard(n-1)ofn}. The
+ * shard count is recorded in a file named {@code layout}. When a cache is
+ * opened with a different shard count, the entries of the recorded layout are
+ * deleted. Only files of that layout are deleted: a directory without a
+ * layout file is assumed to hold an unsharded cache if it has a journal, and
+ * no cache otherwise.
+ */
+public final class ShardedDiskLruCache implements Closeable {
+  static final String LAYOUT_FILE = "layout";
+  static final String LAYOUT_FILE_TEMP = "layout.tmp";
+  static final String LAYOUT_MAGIC = "com.squareup.okhttp.ShardedDiskLruCache";
+  private static final Pattern UNSHARDED_FILE
+      = Pattern.compile("journal(\\.tmp|\\.bkp)?|[a-z0-9_-]{1,64}\\.\\d+(\\.tmp)?");
+
+  private final File directory;
+  private final int appVersion;
+  private final int valueCount;
+  private volatile long maxSize;
+  private final FutureTask<DiskLruCache>[] shards;
+  private final ThreadPoolExecutor executor;
+  private volatile boolean closed;
+
+  /** Shards that have been opened, for {@link #setEvictionListener}. Guarded by itself. */
+  private final DiskLruCache[] openShards;
+  private DiskLruCache.EvictionListener evictionListener;
+
+  @SuppressWarnings("unchecked") // Generic array creation.
+  private ShardedDiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+      int shardCount) {
+    this.directory = directory;
+    this.appVersion = appVersion;
+    this.valueCount = valueCount;
+    this.maxSize = maxSize;
+    this.shards = new FutureTask[shardCount];
+    this.openShards = new DiskLruCache[shardCount];
+    int threadCount = Math.min(shardCount, Runtime.getRuntime().availableProcessors());
+    this.executor = new ThreadPoolExecutor(threadCount, threadCount, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        Util.threadFactory("OkHttp DiskLruCache Opener", true));
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Opens the cache in {@code directory}, creating a cache if none exists
+   * there. If the cache has several shards, this returns before they have
+   * been opened.
+   *
+   * @param directory a writable directory
+   * @param valueCount the number of values per cache entry. Must be positive.
+   * @param maxSize the maximum number of bytes this cache should use to store
+   * @param shardCount the number of shards. Must be positive.
+   * @throws IOException if reading or writing the cache directory fails
+   */
+  public static ShardedDiskLruCache open(File directory, int appVersion, int valueCount,
+      long maxSize, int shardCount) throws IOException {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    if (valueCount <= 0) {
+      throw new IllegalArgumentException("valueCount <= 0");
+    }
+    if (shardCount <= 0) {
+      throw new IllegalArgumentException("shardCount <= 0");
+    }
+
+    directory.mkdirs();
+    ShardedDiskLruCache cache
+        = new ShardedDiskLruCache(directory, appVersion, valueCount, maxSize, shardCount);
+    cache.deleteOtherLayouts();
+    for (int i = 0; i < shardCount; i++) {
+      cache.shards[i] = new FutureTask<DiskLruCache>(cache.opener(i));
+    }
+    if (shardCount == 1) {
+      cache.shard(0); // Open the only shard now, so the caller sees failures.
+    } else {
+      for (int i = 0; i < shardCount; i++) {
+        cache.executor.execute(cache.shards[i]);
+      }
+    }
+    return cache;
+  }
+
+  private Callable<DiskLruCache> opener(final int index) {
+    return new Callable<DiskLruCache>() {
+      @Override public DiskLruCache call() throws IOException {
+        File shardDirectory = shardDirectory(index, shards.length);
+        DiskLruCache shard;
+        try {
+          shard = DiskLruCache.open(shardDirectory, appVersion, valueCount, shardMaxSize(maxSize));
+        } catch (IOException e) {
+          if (shards.length > 1) {
+            Platform.get().logW("Failed to open cache shard " + shardDirectory + ": " + e);
+          }
+          throw e;
+        }
+        synchronized (openShards) {
+          shard.setEvictionListener(evictionListener);
+          openShards[index] = shard;
+        }
+        return shard;
+      }
+    };
+  }
+
+  private File shardDirectory(int index, int shardCount) {
+    return shardCount == 1 ? directory : new File(directory, "shard" + index + "of" + shardCount);
+  }
+
+  /**
+   * Deletes the entries of the layout recorded in the directory if it has a
+   * different shard count, and records this cache's layout.
+   */
+  private void deleteOtherLayouts() throws IOException {
+    int previousShardCount = readLayout();
+    if (previousShardCount == shards.length) return;
+
+    if (previousShardCount == 1) {
+      File[] files = directory.listFiles();
+      if (files == null) {
+        throw new IOException("failed to list " + directory);
+      }
+      for (File file : files) {
+        if (file.isFile() && UNSHARDED_FILE.matcher(file.getName()).matches()) {
+          file.delete();
+        }
+      }
+    } else {
+      for (int i = 0; i < previousShardCount; i++) {
+        File shardDirectory = shardDirectory(i, previousShardCount);
+        if (shardDirectory.isDirectory()) {
+          Util.deleteContents(shardDirectory);
+          shardDirectory.delete();
+        }
+      }
+    }
+    writeLayout();
+  }
+
+  /**
+   * Returns the shard count of the cache stored in the directory, or 0 if the
+   * directory doesn't hold a cache that can be identified.
+   */
+  private int readLayout() throws IOException {
+    BufferedSource source;
+    try {
+      source = Okio.buffer(Okio.source(new FileInputStream(new File(directory, LAYOUT_FILE))));
+    } catch (FileNotFoundException e) {
+      // Caches that predate layout files are unsharded DiskLruCaches.
+      return isJournal(new File(directory, DiskLruCache.JOURNAL_FILE))
+          || isJournal(new File(directory, DiskLruCache.JOURNAL_FILE_BACKUP)) ? 1 : 0;
+    }
+    try {
+      String magic = source.readUtf8LineStrict();
+      String shardCount = source.readUtf8LineStrict();
+      if (!LAYOUT_MAGIC.equals(magic)) return 0;
+      int result = Integer.parseInt(shardCount);
+      return result > 0 ? result : 0;
+    } catch (NumberFormatException e) {
+      return 0;
+    } catch (IOException e) {
+      return 0; // The layout file is truncated.
+    } finally {
+      source.close();
+    }
+  }
+
+  private static boolean isJournal(File file) throws IOException {
+    BufferedSource source;
+    try {
+      source = Okio.buffer(Okio.source(new FileInputStream(file)));
+    } catch (FileNotFoundException e) {
+      return false;
+    }
+    try {
+      return DiskLruCache.MAGIC.equals(source.readUtf8LineStrict());
+    } catch (IOException e) {
+      return false;
+    } finally {
+      source.close();
+    }
+  }
+
+  /** Records this cache's shard count in the layout file. */
+  private void writeLayout() throws IOException {
+    File layoutFileTemp = new File(directory, LAYOUT_FILE_TEMP);
+    BufferedSink sink = Okio.buffer(Okio.sink(new FileOutputStream(layoutFileTemp)));
+    try {
+      sink.writeUtf8(LAYOUT_MAGIC).writeUtf8("\n");
+      sink.writeUtf8(Integer.toString(shards.length)).writeUtf8("\n");
+    } finally {
+      sink.close();
+    }
+    File layoutFile = new File(directory, LAYOUT_FILE);
+    if (layoutFile.exists() && !layoutFile.delete()) {
+      throw new IOException("failed to delete " + layoutFile);
+    }
+    if (!layoutFileTemp.renameTo(layoutFile)) {
+      throw new IOException("failed to rename " + layoutFileTemp);
+    }
+  }
+
+  private long shardMaxSize(long maxSize) {
+    return Math.max(1, maxSize / shards.length);
+  }
+
+  /** Returns the shard for {@code key}, opening it if necessary. */
+  private DiskLruCache shard(String key) throws IOException {
+    int h = key.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12) ^ (h >>> 7) ^ (h >>> 4);
+    return shard((h & Integer.MAX_VALUE) % shards.length);
+  }
+
+  private DiskLruCache shard(int index) throws IOException {
+    checkNotClosed();
+    FutureTask<DiskLruCache> shard = shards[index];
+    shard.run(); // Does nothing if the shard is being opened or is open.
+    try {
+      return shard.get();
+    } catch (CancellationException e) {
+      throw new IllegalStateException("cache is closed");
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new AssertionError(cause);
+    }
+  }
+
+  /**
+   * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+   * exist or is not currently readable.
+   */
+  public DiskLruCache.Snapshot get(String key) throws IOException {
+    return shard(key).get(key);
+  }
+
+  /**
+   * Returns an editor for the entry named {@code key}, or null if another
+   * edit is in progress.
+   */
+  public DiskLruCache.Editor edit(String key) throws IOException {
+    return shard(key).edit(key);
+  }
+
+  /**
+   * Drops the entry for {@code key} if it exists and can be removed.
+   *
+   * @return true if an entry was removed.
+   */
+  public boolean remove(String key) throws IOException {
+    return shard(key).remove(key);
+  }
+
+  /**
+   * Moves the entry named {@code key} to the head of its shard's LRU queue
+   * without reading it. Returns false if it doesn't exist or is not currently
+   * readable.
+   */
+  public boolean touch(String key) throws IOException {
+    return shard(key).touch(key);
+  }
+
+  /**
+   * Sets the listener notified after entries are evicted to keep shards within
+   * their maximum sizes. Null removes the listener.
+   */
+  public void setEvictionListener(DiskLruCache.EvictionListener evictionListener) {
+    synchronized (openShards) {
+      this.evictionListener = evictionListener;
+      for (DiskLruCache shard : openShards) {
+        if (shard != null) shard.setEvictionListener(evictionListener);
+      }
+    }
+  }
+
+  /** Returns the directory where this cache stores its data. */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Returns the maximum number of bytes that this cache should use to store
+   * its data.
+   */
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Changes the maximum number of bytes the cache can store and queues jobs
+   * to trim the existing store, if necessary.
+   */
+  public void setMaxSize(long maxSize) throws IOException {
+    this.maxSize = maxSize;
+    for (int i = 0; i < shards.length; i++) {
+      shard(i).setMaxSize(shardMaxSize(maxSize));
+    }
+  }
+
+  /**
+   * Returns the number of bytes currently being used to store the values in
+   * this cache. This opens every shard; shards that fail to open are empty.
+   */
+  public long size() {
+    long result = 0;
+    for (FutureTask<DiskLruCache> shard : shards) {
+      shard.run();
+      DiskLruCache cache = openedShard(shard);
+      if (cache != null) result += cache.size();
+    }
+    return result;
+  }
+
+  /** Returns true if this cache has been closed. */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  private void checkNotClosed() {
+    if (closed) {
+      throw new IllegalStateException("cache is closed");
+    }
+  }
+
+  /** Force buffered operations of open shards to the filesystem. */
+  public void flush() throws IOException {
+    checkNotClosed();
+    for (FutureTask<DiskLruCache> shard : shards) {
+      if (shard.isDone() && !shard.isCancelled()) {
+        DiskLruCache cache = openedShard(shard);
+        if (cache != null) cache.flush();
+      }
+    }
+  }
+
+  /** Closes this cache. Stored values will remain on the filesystem. */
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return; // Already closed.
+    }
+    closed = true;
+    IOException thrown = null;
+    for (FutureTask<DiskLruCache> shard : shards) {
+      shard.cancel(false); // Unless it's already being opened.
+      DiskLruCache cache = openedShard(shard);
+      try {
+        if (cache != null) cache.close();
+      } catch (IOException e) {
+        if (thrown == null) thrown = e;
+      }
+    }
+    executor.shutdown();
+    if (thrown != null) throw thrown;
+  }
+
+  /** Returns the shard opened by {@code shard}, or null if it wasn't opened. */
+  private DiskLruCache openedShard(FutureTask<DiskLruCache> shard) {
+    try {
+      return shard.get();
+    } catch (CancellationException e) {
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      return null; // The shard failed to open.
+    }
+  }
+
+  /**
+   * Closes the cache and deletes all of its stored values. This will delete
+   * all files in the cache directory including files that weren't created by
+   * the cache.
+   */
+  public void delete() throws IOException {
+    close();
+    if (directory.exists()) {
+      Util.deleteContents(directory);
+    }
+  }
+}
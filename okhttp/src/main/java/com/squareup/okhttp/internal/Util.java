@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URI;
@@ -36,6 +37,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import okio.ByteString;
 import okio.OkBuffer;
@@ -55,6 +58,16 @@ public final class Util {
   /** A cheap and type-safe constant for the UTF-8 Charset. */
   public static final Charset UTF_8 = Charset.forName("UTF-8");
 
+  /**
+   * True if OkHttp's dispatcher and SPDY connections run their work on virtual
+   * threads. Enable this with the {@code okhttp.virtualThreads} system property.
+   * It is ignored before Java 24: earlier JVMs pin a virtual thread to its
+   * carrier while it holds a monitor, and SPDY connections write frames and
+   * wait for flow control while holding theirs.
+   */
+  public static final boolean VIRTUAL_THREADS
+      = Boolean.getBoolean("okhttp.virtualThreads") && supportsVirtualThreads();
+
   private Util() {
   }
 
@@ -279,6 +292,72 @@ public final class Util {
     };
   }
 
+  /**
+   * Returns true if this JVM can create virtual threads that don't pin their
+   * carrier threads in {@code synchronized} blocks. That's Java 24 and newer
+   * (JEP 491).
+   */
+  public static boolean supportsVirtualThreads() {
+    return javaSpecificationVersion() >= 24;
+  }
+
+  /** Returns the major Java version, like 8 or 24. */
+  private static int javaSpecificationVersion() {
+    String version = System.getProperty("java.specification.version", "");
+    if (version.startsWith("1.")) version = version.substring(2);
+    try {
+      return Integer.parseInt(version);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Returns a factory of virtual threads named {@code name}. Virtual threads
+   * are always daemon threads.
+   *
+   * @throws UnsupportedOperationException if this JVM doesn't support virtual
+   *     threads.
+   */
+  public static ThreadFactory virtualThreadFactory(String name) {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ClassNotFoundException e) {
+      throw new UnsupportedOperationException("virtual threads are not supported");
+    } catch (NoSuchMethodException e) {
+      throw new UnsupportedOperationException("virtual threads are not supported");
+    } catch (IllegalAccessException e) {
+      throw new AssertionError(e);
+    } catch (InvocationTargetException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Returns an executor that runs each task on a new virtual thread named
+   * {@code name}.
+   *
+   * @throws UnsupportedOperationException if this JVM doesn't support virtual
+   *     threads.
+   */
+  public static ExecutorService newVirtualThreadExecutor(String name) {
+    ThreadFactory threadFactory = virtualThreadFactory(name);
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+          .invoke(null, threadFactory);
+    } catch (NoSuchMethodException e) {
+      throw new UnsupportedOperationException("virtual threads are not supported");
+    } catch (IllegalAccessException e) {
+      throw new AssertionError(e);
+    } catch (InvocationTargetException e) {
+      throw new AssertionError(e);
+    }
+  }
+
   public static List<Header> headerEntries(String... elements) {
     List<Header> result = new ArrayList<Header>(elements.length / 2);
     for (int i = 0; i < elements.length; i += 2) {
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.http;
+
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.internal.HeaderNames;
+import com.squareup.okhttp.internal.Util;
+import java.io.IOException;
+import java.net.ProtocolException;
+import okio.BufferedSource;
+import okio.OkBuffer;
+
+/**
+ * Reads the status line and headers of HTTP/1.1 responses from the bytes of a
+ * buffer. Each line is found with {@link OkBuffer#indexOf} and copied once
+ * into a reused array, where the colon and whitespace are found without
+ * decoding the line. Well-known names are shared with {@link HeaderNames}, so
+ * most headers cost only their value string.
+ *
+ * <p>The bytes of a head, from its status line through the blank line that
+ * ends its headers, are limited to {@code maxHeadBytes}. Trailers are a head of
+ * their own. Instances are not thread safe.
+ */
+public final class HeaderReader {
+  /** The default limit on the bytes of a response's status line and headers. */
+  public static final int DEFAULT_MAX_HEAD_BYTES = 256 * 1024;
+
+  private final int maxHeadBytes;
+
+  /** The line being parsed. Grows to fit the longest line so far. */
+  private byte[] line = new byte[256];
+
+  /** Bytes consumed since the end of the previous head. */
+  private int headByteCount;
+
+  public HeaderReader(int maxHeadBytes) {
+    if (maxHeadBytes <= 0) throw new IllegalArgumentException("maxHeadBytes <= 0");
+    this.maxHeadBytes = maxHeadBytes;
+  }
+
+  /**
+   * Returns the offset in {@code buffer} of the newline that ends the next
+   * line, or -1 if that line hasn't been buffered yet.
+   *
+   * @throws ProtocolException if the line would exceed the head's limit.
+   */
+  public long lineEnd(OkBuffer buffer) throws ProtocolException {
+    return lineEnd(buffer, 0);
+  }
+
+  private long lineEnd(OkBuffer buffer, long fromIndex) throws ProtocolException {
+    long newline = buffer.indexOf((byte) '\n', fromIndex);
+    long lineByteCount = newline != -1 ? newline + 1 : buffer.size();
+    if (headByteCount + lineByteCount > maxHeadBytes) {
+      throw new ProtocolException("Response head exceeds " + maxHeadBytes + " bytes");
+    }
+    return newline;
+  }
+
+  /** Reads the next line from {@code source}, waiting for it if necessary. */
+  private long lineEnd(BufferedSource source) throws IOException {
+    OkBuffer buffer = source.buffer();
+    for (long scanned = 0; true; ) {
+      long newline = lineEnd(buffer, scanned);
+      if (newline != -1) return newline;
+      scanned = buffer.size();
+      source.require(scanned + 1);
+    }
+  }
+
+  /** Reads a status line from {@code source}. */
+  public StatusLine readStatusLine(BufferedSource source) throws IOException {
+    return readStatusLine(source.buffer(), lineEnd(source));
+  }
+
+  /**
+   * Reads headers from {@code source} into {@code builder}, through the blank
+   * line that ends them.
+   */
+  public void readHeaders(BufferedSource source, Headers.Builder builder) throws IOException {
+    while (readHeaderLine(source.buffer(), lineEnd(source), builder)) {
+    }
+  }
+
+  /**
+   * Consumes the line of {@code buffer} that ends at {@code newline} and
+   * returns it as a status line.
+   */
+  public StatusLine readStatusLine(OkBuffer buffer, long newline) throws IOException {
+    int end = readLine(buffer, newline);
+    return new StatusLine(new String(line, 0, end, Util.UTF_8));
+  }
+
+  /**
+   * Consumes the line of {@code buffer} that ends at {@code newline} and adds
+   * it to {@code builder}. Returns false if it was the blank line that ends the
+   * headers.
+   */
+  public boolean readHeaderLine(OkBuffer buffer, long newline, Headers.Builder builder) {
+    int end = readLine(buffer, newline);
+    if (end == 0) {
+      headByteCount = 0;
+      return false;
+    }
+
+    int colon = -1;
+    for (int i = 1; i < end; i++) {
+      byte b = line[i];
+      if (b == '\0') {
+        colon = -1; // Headers.Builder.add() rejects NUL; let addLine() be lenient.
+        break;
+      }
+      if (b == ':' && colon == -1) colon = i;
+    }
+    if (colon == -1 || line[0] == '\0') {
+      builder.addLine(new String(line, 0, end, Util.UTF_8));
+      return true;
+    }
+
+    int valueStart = colon + 1;
+    int valueEnd = end;
+    while (valueStart < valueEnd && (line[valueStart] & 0xff) <= ' ') valueStart++;
+    while (valueEnd > valueStart && (line[valueEnd - 1] & 0xff) <= ' ') valueEnd--;
+    builder.add(HeaderNames.intern(line, 0, colon),
+        new String(line, valueStart, valueEnd - valueStart, Util.UTF_8));
+    return true;
+  }
+
+  /**
+   * Copies the line that ends at {@code newline} out of {@code buffer} and
+   * returns its length without the line terminator.
+   */
+  private int readLine(OkBuffer buffer, long newline) {
+    int byteCount = (int) newline + 1;
+    if (byteCount > line.length) {
+      line = new byte[Math.max(byteCount, line.length * 2)];
+    }
+    for (int pos = 0; pos < byteCount; ) {
+      pos += buffer.read(line, pos, byteCount - pos);
+    }
+    headByteCount += byteCount;
+
+    int end = byteCount - 1;
+    if (end > 0 && line[end - 1] == '\r') end--;
+    return end;
+  }
+}
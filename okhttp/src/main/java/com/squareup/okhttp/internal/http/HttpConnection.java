@@ -21,6 +21,7 @@ import com.squareup.okhttp.ConnectionPool;
 import com.squareup.okhttp.Headers;
 import com.squareup.okhttp.Protocol;
 import com.squareup.okhttp.Response;
+import com.squareup.okhttp.internal.HeaderNames;
 import com.squareup.okhttp.internal.Util;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -57,6 +58,10 @@ import static com.squareup.okhttp.internal.http.Transport.DISCARD_STREAM_TIMEOUT
  * <p>Exchanges that do not have a request body may skip creating and closing
  * the request body. Exchanges that do not have a response body must call {@link
  * #emptyResponseBody}.
+ *
+ * <p>After {@link #pipelineRequests}, requests without bodies may be written
+ * before the responses to earlier requests have been read. Their responses are
+ * read in order, each once the previous response body is exhausted.
  */
 public final class HttpConnection {
   private static final int STATE_IDLE = 0; // Idle connections are ready to write request headers.
@@ -76,10 +81,18 @@ public final class HttpConnection {
   private final Socket socket;
   private final BufferedSource source;
   private final BufferedSink sink;
+  private final HeaderReader headerReader =
+      new HeaderReader(HeaderReader.DEFAULT_MAX_HEAD_BYTES);
 
   private int state = STATE_IDLE;
   private int onIdle = ON_IDLE_HOLD;
 
+  /** True if requests may be written before earlier responses are read. */
+  private boolean pipelining;
+
+  /** The number of requests written after the current one whose responses are unread. */
+  private int pipelinedRequestCount;
+
   public HttpConnection(ConnectionPool pool, Connection connection, Socket socket)
       throws IOException {
     this.pool = pool;
@@ -117,6 +130,16 @@ public final class HttpConnection {
     }
   }
 
+  /**
+   * Permits requests without bodies to be written before the responses to
+   * earlier requests have been read. This lasts until the connection is idle.
+   * Only use this with servers that are known to support HTTP/1.1 pipelining.
+   */
+  public void pipelineRequests() {
+    if (state == STATE_CLOSED) throw new IllegalStateException("state: " + state);
+    pipelining = true;
+  }
+
   /** Returns true if this connection is closed. */
   public boolean isClosed() {
     return state == STATE_CLOSED;
@@ -153,16 +176,24 @@ public final class HttpConnection {
 
   /** Returns bytes of a request header for sending on an HTTP transport. */
   public void writeRequest(Headers headers, String requestLine) throws IOException {
-    if (state != STATE_IDLE) throw new IllegalStateException("state: " + state);
+    boolean pipelined = state != STATE_IDLE;
+    if (pipelined && (!pipelining || state == STATE_WRITING_REQUEST_BODY
+        || state == STATE_CLOSED)) {
+      throw new IllegalStateException("state: " + state);
+    }
     sink.writeUtf8(requestLine).writeUtf8("\r\n");
     for (int i = 0; i < headers.size(); i ++) {
-      sink.writeUtf8(headers.name(i))
-          .writeUtf8(": ")
+      HeaderNames.writeUtf8(sink, headers.name(i));
+      sink.writeUtf8(": ")
           .writeUtf8(headers.value(i))
           .writeUtf8("\r\n");
     }
     sink.writeUtf8("\r\n");
-    state = STATE_OPEN_REQUEST_BODY;
+    if (pipelined) {
+      pipelinedRequestCount++;
+    } else {
+      state = STATE_OPEN_REQUEST_BODY;
+    }
   }
 
   /** Parses bytes of a response header from an HTTP transport. */
@@ -172,8 +203,7 @@ public final class HttpConnection {
     }
 
     while (true) {
-      String statusLineString = source.readUtf8LineStrict();
-      StatusLine statusLine = new StatusLine(statusLineString);
+      StatusLine statusLine = headerReader.readStatusLine(source);
 
       Response.Builder responseBuilder = new Response.Builder()
           .statusLine(statusLine)
@@ -192,10 +222,7 @@ public final class HttpConnection {
 
   /** Reads headers or trailers into {@code builder}. */
   public void readHeaders(Headers.Builder builder) throws IOException {
-    // parse the result headers until the first blank line
-    for (String line; (line = source.readUtf8LineStrict()).length() != 0; ) {
-      builder.addLine(line);
-    }
+    headerReader.readHeaders(source, builder);
   }
 
   /**
@@ -390,6 +417,16 @@ public final class HttpConnection {
         cacheBody.close();
       }
 
+      if (pipelinedRequestCount > 0) {
+        // The next response follows. If the server has closed the connection
+        // early, reading it will fail.
+        pipelinedRequestCount--;
+        onIdle = ON_IDLE_HOLD;
+        state = STATE_READ_RESPONSE_HEADERS;
+        return;
+      }
+
+      pipelining = false;
       state = STATE_IDLE;
       if (recyclable && onIdle == ON_IDLE_POOL) {
         onIdle = ON_IDLE_HOLD; // Set the on idle policy back to the default.
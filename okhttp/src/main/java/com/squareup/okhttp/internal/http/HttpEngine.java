@@ -217,26 +217,13 @@ public class HttpEngine {
     if (connection != null) throw new IllegalStateException();
 
     if (routeSelector == null) {
-      String uriHost = request.url().getHost();
-      if (uriHost == null || uriHost.length() == 0) {
-        throw new UnknownHostException(request.url().toString());
-      }
-      SSLSocketFactory sslSocketFactory = null;
-      HostnameVerifier hostnameVerifier = null;
-      if (request.isHttps()) {
-        sslSocketFactory = client.getSslSocketFactory();
-        hostnameVerifier = client.getHostnameVerifier();
-      }
-      Address address = new Address(uriHost, getEffectivePort(request.url()), sslSocketFactory,
-          hostnameVerifier, client.getAuthenticator(), client.getProxy(), client.getProtocols());
-      routeSelector = new RouteSelector(address, request.uri(), client.getProxySelector(),
-          client.getConnectionPool(), Dns.DEFAULT, client.getRoutesDatabase());
+      routeSelector = newRouteSelector();
     }
 
     connection = routeSelector.next(request.method());
 
     if (!connection.isConnected()) {
-      connection.connect(client.getConnectTimeout(), client.getReadTimeout(), getTunnelConfig());
+      connection.connect(client, getTunnelConfig());
       if (connection.isSpdy()) client.getConnectionPool().share(connection);
       client.getRoutesDatabase().connected(connection.getRoute());
     } else if (!connection.isSpdy()) {
@@ -246,6 +233,57 @@ public class HttpEngine {
     route = connection.getRoute();
   }
 
+  /**
+   * Opens a new connection to the origin server and gives it to the connection
+   * pool without transmitting a request. Pooled connections are not used. If a
+   * route fails to connect, it is reported and the next route is attempted.
+   * Returns the new connection.
+   */
+  public final Connection prewarmConnection() throws IOException {
+    if (connection != null) throw new IllegalStateException();
+
+    if (routeSelector == null) {
+      routeSelector = newRouteSelector();
+    }
+
+    while (true) {
+      Connection newConnection = routeSelector.nextUnpooled();
+      try {
+        newConnection.connect(client, getTunnelConfig());
+      } catch (IOException e) {
+        routeSelector.connectFailed(newConnection, e);
+        closeQuietly(newConnection.getSocket());
+        if (!routeSelector.hasNext() || !isRecoverable(e)) throw e;
+        continue;
+      }
+
+      client.getRoutesDatabase().connected(newConnection.getRoute());
+      if (newConnection.isSpdy()) {
+        client.getConnectionPool().share(newConnection);
+      } else {
+        client.getConnectionPool().prewarm(newConnection);
+      }
+      return newConnection;
+    }
+  }
+
+  private RouteSelector newRouteSelector() throws IOException {
+    String uriHost = request.url().getHost();
+    if (uriHost == null || uriHost.length() == 0) {
+      throw new UnknownHostException(request.url().toString());
+    }
+    SSLSocketFactory sslSocketFactory = null;
+    HostnameVerifier hostnameVerifier = null;
+    if (request.isHttps()) {
+      sslSocketFactory = client.getSslSocketFactory();
+      hostnameVerifier = client.getHostnameVerifier();
+    }
+    Address address = new Address(uriHost, getEffectivePort(request.url()), sslSocketFactory,
+        hostnameVerifier, client.getAuthenticator(), client.getProxy(), client.getProtocols());
+    return new RouteSelector(address, request.uri(), client.getProxySelector(),
+        client.getConnectionPool(), Dns.DEFAULT, client.getRoutesDatabase());
+  }
+
   /**
    * Called immediately before the transport transmits HTTP request headers.
    * This is used to observe the sent time should the request be cached.
@@ -529,6 +567,18 @@ public class HttpEngine {
         : url.getHost();
   }
 
+  /**
+   * Writes the request headers without waiting to read the response. This is
+   * only necessary to pipeline requests; otherwise {@link #readResponse} writes
+   * them. The request must not have a body.
+   */
+  public final void writeRequestHeaders() throws IOException {
+    if (responseSource == null) throw new IllegalStateException("call sendRequest() first!");
+    if (hasRequestBody()) throw new IllegalStateException("request has a body");
+    if (!responseSource.requiresConnection() || sentRequestMillis != -1) return;
+    transport.writeRequestHeaders(request);
+  }
+
   /**
    * Flushes the remaining request header and body, parses the HTTP response
    * headers and starts reading the HTTP response body if it exists.
@@ -0,0 +1,628 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.http;
+
+import com.squareup.okhttp.Failure;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.internal.EventLoop;
+import com.squareup.okhttp.internal.HeaderNames;
+import com.squareup.okhttp.internal.NamedRunnable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import okio.BufferedSource;
+import okio.Deadline;
+import okio.OkBuffer;
+import okio.Okio;
+import okio.Source;
+
+import static com.squareup.okhttp.internal.Util.closeQuietly;
+import static com.squareup.okhttp.internal.Util.getEffectivePort;
+import static com.squareup.okhttp.internal.http.StatusLine.HTTP_CONTINUE;
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
+import static java.net.HttpURLConnection.HTTP_NO_CONTENT;
+
+/**
+ * Performs a single HTTP/1.1 exchange on a non-blocking socket channel. The
+ * request is written and the response is parsed incrementally by an {@link
+ * EventLoop}, so no thread waits on the network. The receiver is called back
+ * on {@code executor} when the response headers arrive and, while it returns
+ * false from {@link Response.Receiver#onResponse}, each time more of the body
+ * arrives.
+ *
+ * <p>The exchange fails with a {@link SocketTimeoutException} if connecting
+ * takes longer than the connect timeout, or if the network makes no progress
+ * for the read timeout while the exchange waits for it. A timeout of zero
+ * never expires.
+ *
+ * <p>This transport is deliberately limited. It supports plain HTTP without a
+ * proxy, it doesn't follow redirects or authentication challenges, and it
+ * doesn't use the connection pool: each exchange opens a connection, sends
+ * {@code Connection: close}, and closes the connection when the exchange
+ * completes. Every request pays for a TCP handshake and leaves a socket in
+ * {@code TIME_WAIT}, which limits how many requests per second a client can
+ * make to one server. Request bodies are buffered in memory.
+ */
+public final class NioHttpExchange implements EventLoop.Handler {
+  /** Stop reading from the network while this many body bytes are unread. */
+  private static final long MAX_BUFFERED_BODY = 64 * 1024;
+
+  /** The longest chunk size or trailer line we'll accept. */
+  private static final long MAX_LINE_LENGTH = 64 * 1024;
+
+  private static final int STATE_STATUS_LINE = 0;
+  private static final int STATE_HEADERS = 1;
+  private static final int STATE_FIXED_LENGTH_BODY = 2;
+  private static final int STATE_CHUNK_SIZE = 3;
+  private static final int STATE_CHUNK_DATA = 4;
+  private static final int STATE_CHUNK_END = 5;
+  private static final int STATE_TRAILERS = 6;
+  private static final int STATE_UNKNOWN_LENGTH_BODY = 7;
+  private static final int STATE_DONE = 8;
+
+  private final Request request;
+  private final Response.Receiver receiver;
+  private final Executor executor;
+  private final Runnable finished;
+  private final long connectTimeoutNanos;
+  private final long readTimeoutNanos;
+
+  private volatile SocketChannel channel;
+  private EventLoop loop;
+
+  // These fields are confined to the loop thread once the channel is registered.
+  private ByteBuffer requestBytes;
+  private final OkBuffer in = new OkBuffer();
+  private final HeaderReader headerReader =
+      new HeaderReader(HeaderReader.DEFAULT_MAX_HEAD_BYTES);
+  private int state = STATE_STATUS_LINE;
+  private long bytesRemaining;
+  private StatusLine statusLine;
+  private Headers.Builder headers = new Headers.Builder();
+  private boolean connected;
+  private long lastProgressNanos;
+  private boolean timeoutScheduled;
+
+  // These fields are guarded by this.
+  private final OkBuffer body = new OkBuffer();
+  private Response response;
+  private boolean bodyComplete;
+  private boolean bodyClosed;
+  private IOException failure;
+  private boolean paused;
+  private boolean delivering;
+  private boolean redeliver;
+  private boolean canceled;
+  private boolean done;
+
+  public NioHttpExchange(Request request, Response.Receiver receiver, Executor executor,
+      int connectTimeoutMillis, int readTimeoutMillis, Runnable finished) {
+    this.request = request;
+    this.receiver = receiver;
+    this.executor = executor;
+    this.connectTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis);
+    this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+    this.finished = finished;
+  }
+
+  /**
+   * Starts this exchange. The host name is resolved and the request body is
+   * buffered on {@code executor}; everything else happens on an event loop.
+   */
+  public void start() {
+    executor.execute(new NamedRunnable("OkHttp %s", request.urlString()) {
+      @Override protected void execute() {
+        connect();
+      }
+    });
+  }
+
+  /**
+   * Abandons this exchange. Its receiver won't be called back unless a call is
+   * already in progress.
+   */
+  public void cancel() {
+    synchronized (this) {
+      canceled = true;
+    }
+    closeQuietly(channel);
+    fail(new IOException("Canceled"));
+  }
+
+  private void connect() {
+    try {
+      OkBuffer bytes = requestBytes();
+      requestBytes = ByteBuffer.wrap(bytes.readByteString(bytes.size()).toByteArray());
+
+      URL url = request.url();
+      InetSocketAddress address = new InetSocketAddress(url.getHost(), getEffectivePort(url));
+      if (address.isUnresolved()) throw new UnknownHostException(url.getHost());
+
+      synchronized (this) {
+        if (canceled) return;
+        channel = SocketChannel.open();
+      }
+      channel.configureBlocking(false);
+      connected = channel.connect(address);
+      loop = EventLoop.next();
+      lastProgressNanos = System.nanoTime();
+      scheduleTimeout();
+      loop.register(channel, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+    } catch (IOException e) {
+      closeQuietly(channel);
+      fail(e);
+    }
+  }
+
+  /** Returns the request line, headers and body to send. */
+  private OkBuffer requestBytes() throws IOException {
+    OkBuffer requestBody = null;
+    Request.Builder builder = request.newBuilder();
+    if (request.body() != null) {
+      requestBody = new OkBuffer();
+      request.body().writeTo(requestBody);
+      MediaType contentType = request.body().contentType();
+      if (contentType == null) throw new IllegalStateException("contentType == null");
+      builder.header("Content-Type", contentType.toString());
+      builder.header("Content-Length", Long.toString(requestBody.size()));
+      builder.removeHeader("Transfer-Encoding");
+    }
+    if (request.header("Host") == null) {
+      builder.header("Host", HttpEngine.hostHeader(request.url()));
+    }
+    if (request.getUserAgent() == null) builder.setUserAgent(HttpEngine.getDefaultUserAgent());
+    builder.header("Connection", "close");
+    Headers requestHeaders = builder.build().headers();
+
+    OkBuffer result = new OkBuffer();
+    result.writeUtf8(request.method()).writeByte(' ')
+        .writeUtf8(RequestLine.requestPath(request.url())).writeUtf8(" HTTP/1.1\r\n");
+    for (int i = 0; i < requestHeaders.size(); i++) {
+      HeaderNames.writeUtf8(result, requestHeaders.name(i));
+      result.writeUtf8(": ").writeUtf8(requestHeaders.value(i)).writeUtf8("\r\n");
+    }
+    result.writeUtf8("\r\n");
+    if (requestBody != null) result.write(requestBody, requestBody.size());
+    return result;
+  }
+
+  @Override public void ready(SelectionKey key) throws IOException {
+    if (key.isConnectable()) {
+      if (!channel.finishConnect()) return;
+      connected = true;
+      lastProgressNanos = System.nanoTime();
+      scheduleTimeout();
+      key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    if (requestBytes != null) {
+      if (channel.write(requestBytes) > 0) lastProgressNanos = System.nanoTime();
+      if (requestBytes.hasRemaining()) return;
+      requestBytes = null;
+      key.interestOps(SelectionKey.OP_READ);
+      return;
+    }
+
+    if (key.isReadable()) {
+      ByteBuffer readBuffer = loop.readBuffer();
+      int byteCount = channel.read(readBuffer);
+      if (byteCount == -1) {
+        if (state != STATE_UNKNOWN_LENGTH_BODY) {
+          throw new ProtocolException("unexpected end of stream");
+        }
+        complete();
+        return;
+      }
+      lastProgressNanos = System.nanoTime();
+      in.write(readBuffer.array(), 0, byteCount);
+      parse(key);
+    }
+  }
+
+  /**
+   * Schedules a check that the network is making progress, unless one is
+   * already scheduled or the current timeout is zero.
+   */
+  private void scheduleTimeout() {
+    long timeoutNanos = connected ? readTimeoutNanos : connectTimeoutNanos;
+    if (timeoutNanos == 0 || timeoutScheduled) return;
+    timeoutScheduled = true;
+    loop.schedule(timeoutCheck, timeoutNanos);
+  }
+
+  /** Fails this exchange if it has waited too long for the network. Runs on the loop. */
+  private final Runnable timeoutCheck = new Runnable() {
+    @Override public void run() {
+      timeoutScheduled = false;
+      synchronized (NioHttpExchange.this) {
+        if (done || bodyComplete || bodyClosed || failure != null) return;
+        if (paused) lastProgressNanos = System.nanoTime(); // Waiting for the receiver.
+      }
+
+      long timeoutNanos = connected ? readTimeoutNanos : connectTimeoutNanos;
+      if (timeoutNanos == 0) return;
+      long idleNanos = System.nanoTime() - lastProgressNanos;
+      if (idleNanos < timeoutNanos) {
+        timeoutScheduled = true;
+        loop.schedule(this, timeoutNanos - idleNanos);
+        return;
+      }
+
+      closeQuietly(channel);
+      fail(new SocketTimeoutException(connected ? "Read timed out" : "Connect timed out"));
+    }
+  };
+
+  @Override public void failed(IOException e) {
+    fail(e);
+  }
+
+  /** Consumes as much of {@code in} as possible. */
+  private void parse(SelectionKey key) throws IOException {
+    while (true) {
+      String line;
+      long newline;
+      switch (state) {
+        case STATE_STATUS_LINE:
+          newline = headerReader.lineEnd(in);
+          if (newline == -1) return;
+          statusLine = headerReader.readStatusLine(in, newline);
+          state = STATE_HEADERS;
+          break;
+
+        case STATE_HEADERS:
+          newline = headerReader.lineEnd(in);
+          if (newline == -1) return;
+          if (headerReader.readHeaderLine(in, newline, headers)) {
+            break;
+          } else if (statusLine.code() == HTTP_CONTINUE) {
+            headers = new Headers.Builder(); // Skip the interim response.
+            state = STATE_STATUS_LINE;
+          } else {
+            readHeaders();
+          }
+          break;
+
+        case STATE_FIXED_LENGTH_BODY:
+        case STATE_CHUNK_DATA:
+          if (in.size() == 0) return;
+          long byteCount = Math.min(in.size(), bytesRemaining);
+          receiveBody(key, byteCount);
+          bytesRemaining -= byteCount;
+          if (bytesRemaining == 0) {
+            if (state == STATE_FIXED_LENGTH_BODY) {
+              complete();
+            } else {
+              state = STATE_CHUNK_END;
+            }
+          }
+          break;
+
+        case STATE_CHUNK_SIZE:
+          line = readLine();
+          if (line == null) return;
+          int semicolon = line.indexOf(';');
+          if (semicolon != -1) line = line.substring(0, semicolon);
+          try {
+            bytesRemaining = Long.parseLong(line.trim(), 16);
+          } catch (NumberFormatException e) {
+            throw new ProtocolException("Expected a hex chunk size but was " + line);
+          }
+          if (bytesRemaining < 0) throw new ProtocolException("Negative chunk size: " + line);
+          state = bytesRemaining == 0 ? STATE_TRAILERS : STATE_CHUNK_DATA;
+          break;
+
+        case STATE_CHUNK_END:
+          line = readLine();
+          if (line == null) return;
+          if (line.length() != 0) throw new ProtocolException("Expected CRLF after chunk");
+          state = STATE_CHUNK_SIZE;
+          break;
+
+        case STATE_TRAILERS:
+          line = readLine();
+          if (line == null) return;
+          if (line.length() == 0) complete(); // Trailers are discarded.
+          break;
+
+        case STATE_UNKNOWN_LENGTH_BODY:
+          if (in.size() == 0) return;
+          receiveBody(key, in.size());
+          break;
+
+        case STATE_DONE:
+          return;
+
+        default:
+          throw new AssertionError();
+      }
+    }
+  }
+
+  /** Returns the next complete line from {@code in}, or null if it hasn't all arrived. */
+  private String readLine() throws IOException {
+    if (in.indexOf((byte) '\n') == -1) {
+      if (in.size() > MAX_LINE_LENGTH) throw new ProtocolException("Line too long");
+      return null;
+    }
+    return in.readUtf8LineStrict();
+  }
+
+  /** Builds the response and calls back the receiver. */
+  private void readHeaders() throws IOException {
+    Response newResponse = new Response.Builder()
+        .request(request)
+        .statusLine(statusLine)
+        .headers(headers.build())
+        .body(new NioBody())
+        .build();
+
+    long contentLength = OkHeaders.contentLength(newResponse);
+    if (!hasResponseBody(newResponse)) {
+      state = STATE_DONE;
+    } else if ("chunked".equalsIgnoreCase(newResponse.header("Transfer-Encoding"))) {
+      state = STATE_CHUNK_SIZE;
+    } else if (contentLength != -1) {
+      bytesRemaining = contentLength;
+      state = contentLength > 0 ? STATE_FIXED_LENGTH_BODY : STATE_DONE;
+    } else {
+      state = STATE_UNKNOWN_LENGTH_BODY;
+    }
+
+    synchronized (this) {
+      response = newResponse;
+    }
+    if (state == STATE_DONE) {
+      complete();
+    } else {
+      dataArrived();
+    }
+  }
+
+  private boolean hasResponseBody(Response response) {
+    if (request.method().equals("HEAD")) return false;
+    int responseCode = response.code();
+    if ((responseCode < HTTP_CONTINUE || responseCode >= 200)
+        && responseCode != HTTP_NO_CONTENT
+        && responseCode != HTTP_NOT_MODIFIED) {
+      return true;
+    }
+    return OkHeaders.contentLength(response) != -1
+        || "chunked".equalsIgnoreCase(response.header("Transfer-Encoding"));
+  }
+
+  /** Moves {@code byteCount} bytes of the response body to the receiver's buffer. */
+  private void receiveBody(SelectionKey key, long byteCount) {
+    synchronized (this) {
+      if (bodyClosed) {
+        in.skip(byteCount);
+        return;
+      }
+      body.write(in, byteCount);
+      if (body.size() >= MAX_BUFFERED_BODY && !paused) {
+        paused = true;
+        key.interestOps(0); // Resumed when the receiver catches up.
+      }
+      notifyAll();
+    }
+    dataArrived();
+  }
+
+  /** Marks the response body as complete and releases the connection. */
+  private void complete() {
+    state = STATE_DONE;
+    closeQuietly(channel);
+    synchronized (this) {
+      bodyComplete = true;
+      notifyAll();
+    }
+    dataArrived();
+  }
+
+  private void fail(final IOException e) {
+    Response failedResponse;
+    synchronized (this) {
+      if (done || bodyComplete || failure != null) return;
+      failure = e;
+      failedResponse = response;
+      notifyAll();
+    }
+
+    if (failedResponse != null) {
+      dataArrived(); // Let the receiver observe the failure while reading the body.
+      return;
+    }
+
+    executor.execute(new NamedRunnable("OkHttp %s", request.urlString()) {
+      @Override protected void execute() {
+        if (!isCanceled()) {
+          receiver.onFailure(new Failure.Builder()
+              .request(request)
+              .exception(e)
+              .build());
+        }
+        finish();
+      }
+    });
+  }
+
+  private synchronized boolean isCanceled() {
+    return canceled;
+  }
+
+  /** Calls back the receiver unless a call is already in progress. */
+  private void dataArrived() {
+    synchronized (this) {
+      if (done || response == null) return;
+      if (delivering) {
+        redeliver = true;
+        return;
+      }
+      delivering = true;
+    }
+
+    executor.execute(new NamedRunnable("OkHttp %s", request.urlString()) {
+      @Override protected void execute() {
+        deliver();
+      }
+    });
+  }
+
+  private void deliver() {
+    while (true) {
+      boolean receiverDone;
+      try {
+        receiverDone = isCanceled() || receiver.onResponse(response);
+      } catch (IOException e) {
+        receiver.onFailure(new Failure.Builder()
+            .request(request)
+            .exception(e)
+            .build());
+        receiverDone = true;
+      }
+
+      synchronized (this) {
+        boolean exhausted = bodyClosed || (bodyComplete && body.size() == 0);
+        if (!receiverDone && !exhausted) {
+          if (redeliver) {
+            redeliver = false;
+            continue; // More of the body arrived while the receiver was running.
+          }
+          if (!bodyComplete && failure == null) {
+            delivering = false; // Wait for more of the body.
+            return;
+          }
+        }
+      }
+
+      finish();
+      return;
+    }
+  }
+
+  /** Releases this exchange's resources and signals the dispatcher. */
+  private void finish() {
+    synchronized (this) {
+      if (done) return;
+      done = true;
+    }
+    closeQuietly(channel);
+    finished.run();
+  }
+
+  /**
+   * A response body whose bytes are buffered by the event loop. Reads block
+   * until bytes are available; receivers that don't want to block should check
+   * {@link #ready} first.
+   */
+  private final class NioBody extends Response.Body {
+    private final Source source = new NioSource();
+    private BufferedSource bufferedSource;
+    private InputStream in;
+
+    @Override public boolean ready() throws IOException {
+      if (bufferedSource != null && bufferedSource.buffer().size() > 0) return true;
+      synchronized (NioHttpExchange.this) {
+        return body.size() > 0 || bodyComplete || failure != null;
+      }
+    }
+
+    @Override public MediaType contentType() {
+      String contentType = response.header("Content-Type");
+      return contentType != null ? MediaType.parse(contentType) : null;
+    }
+
+    @Override public long contentLength() {
+      return OkHeaders.contentLength(response);
+    }
+
+    @Override public Source source() {
+      return source;
+    }
+
+    @Override public InputStream byteStream() {
+      InputStream result = in;
+      if (result != null) return result;
+      bufferedSource = Okio.buffer(source);
+      return in = bufferedSource.inputStream();
+    }
+  }
+
+  private final class NioSource implements Source {
+    private Deadline deadline = Deadline.NONE;
+
+    @Override public long read(OkBuffer sink, long byteCount) throws IOException {
+      if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
+      boolean resume = false;
+      long result;
+      synchronized (NioHttpExchange.this) {
+        while (body.size() == 0 && !bodyComplete && failure == null && !bodyClosed) {
+          deadline.throwIfReached();
+          try {
+            NioHttpExchange.this.wait();
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+          }
+        }
+        if (bodyClosed) throw new IOException("closed");
+        if (body.size() > 0) {
+          result = body.read(sink, Math.min(byteCount, body.size()));
+          if (paused && body.size() < MAX_BUFFERED_BODY / 2) {
+            paused = false;
+            resume = true;
+          }
+        } else if (failure != null) {
+          throw failure;
+        } else {
+          result = -1;
+        }
+      }
+      if (resume) loop.interestOps(channel, SelectionKey.OP_READ);
+      return result;
+    }
+
+    @Override public Source deadline(Deadline deadline) {
+      if (deadline == null) throw new IllegalArgumentException("deadline == null");
+      this.deadline = deadline;
+      return this;
+    }
+
+    @Override public void close() throws IOException {
+      boolean discarded;
+      synchronized (NioHttpExchange.this) {
+        if (bodyClosed) return;
+        bodyClosed = true;
+        discarded = !bodyComplete;
+        body.clear();
+        NioHttpExchange.this.notifyAll();
+      }
+      if (discarded) closeQuietly(channel); // Don't download what nobody will read.
+    }
+  }
+}
@@ -40,6 +40,12 @@ public final class OkHeaders {
    */
   public static final String RECEIVED_MILLIS = PREFIX + "-Received-Millis";
 
+  /**
+   * Synthetic response header: the number of milliseconds that an asynchronous
+   * request waited for its dispatcher before it was executed.
+   */
+  public static final String QUEUE_WAIT_MILLIS = PREFIX + "-Queue-Wait-Millis";
+
   /**
    * Synthetic response header: the response source and status code like
    * "CONDITIONAL_CACHE 304".
@@ -111,6 +111,16 @@ public final class RouteSelector {
       pooled.close();
     }
 
+    return nextUnpooled();
+  }
+
+  /**
+   * Returns a new connection on the next route to attempt, ignoring pooled
+   * connections.
+   *
+   * @throws NoSuchElementException if there are no more routes to attempt.
+   */
+  public Connection nextUnpooled() throws IOException {
     // Compute the next route to attempt.
     if (!hasNextTlsMode()) {
       if (!hasNextInetSocketAddress()) {
@@ -133,7 +143,7 @@ public final class RouteSelector {
       postponedRoutes.add(route);
       // We will only recurse in order to skip previously failed routes. They will be
       // tried last.
-      return next(method);
+      return nextUnpooled();
     }
 
     return new Connection(pool, route);
@@ -144,8 +154,8 @@ public final class RouteSelector {
    * failure on a connection returned by this route selector.
    */
   public void connectFailed(Connection connection, IOException failure) {
-    // If this is a recycled connection, don't count its failure against the route.
-    if (connection.recycleCount() > 0) return;
+    // If this is a pooled connection, don't count its failure against the route.
+    if (connection.recycleCount() > 0 || connection.isPrewarmed()) return;
 
     Route failedRoute = connection.getRoute();
     if (failedRoute.getProxy().type() != Proxy.Type.DIRECT && proxySelector != null) {
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.spdy;
+
+import com.squareup.okhttp.internal.NamedRunnable;
+import com.squareup.okhttp.internal.Util;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executor;
+import okio.Deadline;
+import okio.OkBuffer;
+import okio.Sink;
+
+/**
+ * Gathers the frames of concurrent streams and writes them to the socket in
+ * batches. Frame writers flush after every frame; here a flush only schedules
+ * a write on an executor, and that write takes every frame that has been
+ * buffered by the time it runs. Frames written while a batch is on the wire
+ * make up the next batch.
+ *
+ * <p>A batch is written once it reaches {@code maxBatchBytes}, or {@code
+ * maxDelayNanos} after the first flush that scheduled it. Writers that would
+ * grow the buffer past {@code maxBatchBytes} wait for the batch in progress.
+ * Write failures are reported to the next caller.
+ */
+final class CoalescingSink implements Sink {
+  /** Batch sizes are counted in power-of-two buckets, up to 2 GiB and more. */
+  private static final int BUCKET_COUNT = 32;
+
+  private final Sink sink;
+  private final Executor executor;
+  private final String name;
+  private final long maxBatchBytes;
+  private final long maxDelayNanos;
+
+  // All fields below are guarded by this.
+  private final OkBuffer buffer = new OkBuffer();
+  private final long[] batchSizes = new long[BUCKET_COUNT];
+  private boolean writeScheduled;
+  private boolean closed;
+  private IOException failure;
+
+  CoalescingSink(Sink sink, Executor executor, String name, long maxBatchBytes,
+      long maxDelayNanos) {
+    if (maxBatchBytes <= 0) throw new IllegalArgumentException("maxBatchBytes <= 0");
+    if (maxDelayNanos < 0) throw new IllegalArgumentException("maxDelayNanos < 0");
+    this.sink = sink;
+    this.executor = executor;
+    this.name = name;
+    this.maxBatchBytes = maxBatchBytes;
+    this.maxDelayNanos = maxDelayNanos;
+  }
+
+  @Override public synchronized void write(OkBuffer source, long byteCount) throws IOException {
+    checkNotClosed();
+    try {
+      while (writeScheduled && buffer.size() >= maxBatchBytes) {
+        wait();
+        checkNotClosed();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+    buffer.write(source, byteCount);
+    if (buffer.size() >= maxBatchBytes) {
+      scheduleWrite();
+      notifyAll(); // Cut a delayed batch short.
+    }
+  }
+
+  /** Schedules the buffered frames to be written. This doesn't wait for the write. */
+  @Override public synchronized void flush() throws IOException {
+    checkNotClosed();
+    if (buffer.size() > 0) scheduleWrite();
+  }
+
+  @Override public Sink deadline(Deadline deadline) {
+    sink.deadline(deadline);
+    return this;
+  }
+
+  /** Writes the remaining frames and closes the socket's sink. */
+  @Override public void close() throws IOException {
+    OkBuffer batch = null;
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      notifyAll();
+      try {
+        while (writeScheduled) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (failure == null && buffer.size() > 0) batch = takeBatch();
+    }
+
+    IOException thrown = null;
+    try {
+      if (batch != null) {
+        sink.write(batch, batch.size());
+        sink.flush();
+      }
+    } catch (IOException e) {
+      thrown = e;
+    }
+    try {
+      sink.close();
+    } catch (IOException e) {
+      if (thrown == null) thrown = e;
+    }
+    if (thrown != null) throw thrown;
+  }
+
+  /**
+   * Returns a histogram of the sizes of the batches written so far. Element
+   * {@code i} counts batches of {@code 2^i} through {@code 2^(i+1) - 1} bytes.
+   */
+  synchronized long[] batchSizes() {
+    return batchSizes.clone();
+  }
+
+  private void checkNotClosed() throws IOException {
+    if (failure != null) throw failure;
+    if (closed) throw new IOException("closed");
+  }
+
+  private void scheduleWrite() {
+    if (writeScheduled) return;
+    writeScheduled = true;
+    executor.execute(new NamedRunnable("OkHttp %s Writer", name) {
+      @Override protected void execute() {
+        writeBatches();
+      }
+    });
+  }
+
+  /** Writes batches until the buffer is empty. Runs on the executor. */
+  private void writeBatches() {
+    synchronized (this) {
+      long deadline = System.nanoTime() + maxDelayNanos;
+      try {
+        for (long remaining = maxDelayNanos; remaining > 0 && buffer.size() < maxBatchBytes
+            && !closed; remaining = deadline - System.nanoTime()) {
+          wait(remaining / 1000000L, (int) (remaining % 1000000L));
+        }
+      } catch (InterruptedException ignored) {
+      }
+    }
+
+    while (true) {
+      OkBuffer batch;
+      synchronized (this) {
+        if (buffer.size() == 0 || failure != null) {
+          writeScheduled = false;
+          notifyAll();
+          return;
+        }
+        batch = takeBatch();
+        notifyAll();
+      }
+
+      try {
+        sink.write(batch, batch.size());
+        sink.flush();
+      } catch (IOException e) {
+        synchronized (this) {
+          failure = e;
+        }
+        // Close the socket so that the reader notices the failure too.
+        Util.closeQuietly(sink);
+      }
+    }
+  }
+
+  /** Removes the buffered bytes and counts them as a batch. */
+  private OkBuffer takeBatch() {
+    long byteCount = buffer.size();
+    int bucket = 63 - Long.numberOfLeadingZeros(byteCount);
+    batchSizes[Math.min(bucket, BUCKET_COUNT - 1)]++;
+    OkBuffer batch = new OkBuffer();
+    batch.write(buffer, byteCount);
+    return batch;
+  }
+}
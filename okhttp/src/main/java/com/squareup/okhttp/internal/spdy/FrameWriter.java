@@ -25,7 +25,9 @@ import okio.OkBuffer;
 public interface FrameWriter extends Closeable {
   /** HTTP/2 only. */
   void connectionHeader() throws IOException;
-  void ackSettings() throws IOException;
+
+  /** HTTP/2 only. Applies {@code peerSettings} to this writer and acknowledges them. */
+  void ackSettings(Settings peerSettings) throws IOException;
 
   /**
    * HTTP/2 only. Send a push promise header block.
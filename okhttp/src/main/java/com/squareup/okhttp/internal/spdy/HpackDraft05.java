@@ -1,13 +1,19 @@
 package com.squareup.okhttp.internal.spdy;
 
 import com.squareup.okhttp.internal.BitArray;
+import com.squareup.okhttp.internal.HeaderNames;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import okio.BufferedSource;
 import okio.ByteString;
 import okio.OkBuffer;
@@ -19,9 +25,11 @@ import okio.Source;
  *
  * http://tools.ietf.org/html/draft-ietf-httpbis-header-compression-05
  *
- * This implementation uses an array for the header table with a bitset for
- * references.  Dynamic entries are added to the array, starting in the last
- * position moving forward.  When the array fills, it is doubled.
+ * This implementation uses a circular array for the header table with a bitset
+ * for references.  Dynamic entries are added to the array moving backward,
+ * wrapping around at the front.  Entries never move, so inserts and evictions
+ * don't copy entries or shift reference bits.  When the array fills, it is
+ * doubled.
  */
 final class HpackDraft05 {
   private static final int PREFIX_6_BITS = 0x3f;
@@ -104,13 +112,13 @@ final class HpackDraft05 {
     // Visible for testing.
     Header[] headerTable = new Header[8];
     // Array is populated back to front, so new entries always have lowest index.
+    // The length is a power of two, so positions wrap around with a mask.
     int nextHeaderIndex = headerTable.length - 1;
     int headerCount = 0;
 
     /**
      * Set bit positions indicate {@code headerTable[pos]} should be emitted.
      */
-    // Using a BitArray as it has left-shift operator.
     BitArray referencedHeaders = new BitArray.FixedCapacity();
 
     /**
@@ -153,24 +161,17 @@ final class HpackDraft05 {
       headerTableByteCount = 0;
     }
 
-    /** Returns the count of entries evicted. */
-    private int evictToRecoverBytes(int bytesToRecover) {
-      int entriesToEvict = 0;
-      if (bytesToRecover > 0) {
-        // determine how many headers need to be evicted.
-        for (int j = headerTable.length - 1; j >= nextHeaderIndex && bytesToRecover > 0; j--) {
-          bytesToRecover -= headerTable[j].hpackSize;
-          headerTableByteCount -= headerTable[j].hpackSize;
-          headerCount--;
-          entriesToEvict++;
-        }
-        referencedHeaders.shiftLeft(entriesToEvict);
-        emittedReferencedHeaders.shiftLeft(entriesToEvict);
-        System.arraycopy(headerTable, nextHeaderIndex + 1, headerTable,
-            nextHeaderIndex + 1 + entriesToEvict, headerCount);
-        nextHeaderIndex += entriesToEvict;
+    /** Evicts the oldest entries until {@code bytesToRecover} bytes are free. */
+    private void evictToRecoverBytes(int bytesToRecover) {
+      while (bytesToRecover > 0 && headerCount > 0) {
+        int oldest = headerTableIndex(headerCount - 1);
+        bytesToRecover -= headerTable[oldest].hpackSize;
+        headerTableByteCount -= headerTable[oldest].hpackSize;
+        headerTable[oldest] = null;
+        if (referencedHeaders.get(oldest)) referencedHeaders.toggle(oldest);
+        if (emittedReferencedHeaders.get(oldest)) emittedReferencedHeaders.toggle(oldest);
+        headerCount--;
       }
-      return entriesToEvict;
     }
 
     /**
@@ -210,7 +211,8 @@ final class HpackDraft05 {
     }
 
     void emitReferenceSet() {
-      for (int i = headerTable.length - 1; i != nextHeaderIndex; --i) {
+      for (int index = headerCount - 1; index >= 0; index--) { // Oldest first.
+        int i = headerTableIndex(index);
         if (referencedHeaders.get(i) && !emittedReferencedHeaders.get(i)) {
           emittedHeaders.add(headerTable[i]);
         }
@@ -234,7 +236,7 @@ final class HpackDraft05 {
         if (maxHeaderTableByteCount == 0) {
           emittedHeaders.add(staticEntry);
         } else {
-          insertIntoHeaderTable(-1, staticEntry);
+          insertIntoHeaderTable(staticEntry);
         }
       } else {
         int headerTableIndex = headerTableIndex(index);
@@ -246,9 +248,9 @@ final class HpackDraft05 {
       }
     }
 
-    // referencedHeaders is relative to nextHeaderIndex + 1.
-    private int headerTableIndex(int index) {
-      return nextHeaderIndex + 1 + index;
+    /** Returns the position in {@code headerTable} of the dynamic entry at {@code index}. */
+    int headerTableIndex(int index) {
+      return (nextHeaderIndex + 1 + index) & (headerTable.length - 1);
     }
 
     private void readLiteralHeaderWithoutIndexingIndexedName(int index) throws IOException {
@@ -267,13 +269,13 @@ final class HpackDraft05 {
         throws IOException {
       ByteString name = getName(nameIndex);
       ByteString value = readByteString(false);
-      insertIntoHeaderTable(-1, new Header(name, value));
+      insertIntoHeaderTable(new Header(name, value));
     }
 
     private void readLiteralHeaderWithIncrementalIndexingNewName() throws IOException {
       ByteString name = readByteString(true);
       ByteString value = readByteString(false);
-      insertIntoHeaderTable(-1, new Header(name, value));
+      insertIntoHeaderTable(new Header(name, value));
     }
 
     private ByteString getName(int index) {
@@ -288,14 +290,10 @@ final class HpackDraft05 {
       return index >= headerCount;
     }
 
-    /** index == -1 when new. */
-    private void insertIntoHeaderTable(int index, Header entry) {
+    private void insertIntoHeaderTable(Header entry) {
       int delta = entry.hpackSize;
-      if (index != -1) { // Index -1 == new header.
-        delta -= headerTable[headerTableIndex(index)].hpackSize;
-      }
 
-      // if the new or replacement header is too big, drop all entries.
+      // if the new header is too big, drop all entries.
       if (delta > maxHeaderTableByteCount) {
         clearHeaderTable();
         // emit the large header to the callback.
@@ -305,34 +303,45 @@ final class HpackDraft05 {
 
       // Evict headers to the required length.
       int bytesToRecover = (headerTableByteCount + delta) - maxHeaderTableByteCount;
-      int entriesEvicted = evictToRecoverBytes(bytesToRecover);
-
-      if (index == -1) { // Adding a value to the header table.
-        if (headerCount + 1 > headerTable.length) { // Need to grow the header table.
-          Header[] doubled = new Header[headerTable.length * 2];
-          System.arraycopy(headerTable, 0, doubled, headerTable.length, headerTable.length);
-          if (doubled.length == 64) {
-            referencedHeaders = ((BitArray.FixedCapacity) referencedHeaders).toVariableCapacity();
-            emittedReferencedHeaders =
-                ((BitArray.FixedCapacity) emittedReferencedHeaders).toVariableCapacity();
-          }
-          referencedHeaders.shiftLeft(headerTable.length);
-          emittedReferencedHeaders.shiftLeft(headerTable.length);
-          nextHeaderIndex = headerTable.length - 1;
-          headerTable = doubled;
-        }
-        index = nextHeaderIndex--;
-        referencedHeaders.set(index);
-        headerTable[index] = entry;
-        headerCount++;
-      } else { // Replace value at same position.
-        index += headerTableIndex(index) + entriesEvicted;
-        referencedHeaders.set(index);
-        headerTable[index] = entry;
+      evictToRecoverBytes(bytesToRecover);
+
+      if (headerCount == headerTable.length) { // Need to grow the header table.
+        growHeaderTable();
       }
+      int index = nextHeaderIndex;
+      nextHeaderIndex = (nextHeaderIndex - 1) & (headerTable.length - 1);
+      referencedHeaders.set(index);
+      headerTable[index] = entry;
+      headerCount++;
       headerTableByteCount += delta;
     }
 
+    /**
+     * Doubles the header table, moving its entries to the end of the new
+     * array. This is the only time entries and their reference bits move.
+     */
+    private void growHeaderTable() {
+      Header[] doubled = new Header[headerTable.length * 2];
+      BitArray doubledReferenced = doubled.length <= 64
+          ? new BitArray.FixedCapacity()
+          : new BitArray.VariableCapacity();
+      BitArray doubledEmitted = doubled.length <= 64
+          ? new BitArray.FixedCapacity()
+          : new BitArray.VariableCapacity();
+      int offset = doubled.length - headerCount;
+      for (int index = 0; index < headerCount; index++) {
+        int from = headerTableIndex(index);
+        int to = offset + index;
+        doubled[to] = headerTable[from];
+        if (referencedHeaders.get(from)) doubledReferenced.set(to);
+        if (emittedReferencedHeaders.get(from)) doubledEmitted.set(to);
+      }
+      headerTable = doubled;
+      referencedHeaders = doubledReferenced;
+      emittedReferencedHeaders = doubledEmitted;
+      nextHeaderIndex = offset - 1;
+    }
+
     private int readByte() throws IOException {
       return source.readByte() & 0xff;
     }
@@ -375,7 +384,7 @@ final class HpackDraft05 {
       }
 
       if (asciiLowercase) {
-        byteString = byteString.toAsciiLowercase();
+        byteString = HeaderNames.internLowercase(byteString.toAsciiLowercase());
       }
 
       return byteString;
@@ -395,27 +404,167 @@ final class HpackDraft05 {
     return Collections.unmodifiableMap(result);
   }
 
+  /**
+   * Writes header blocks that the peer's {@link Reader} can decode.
+   *
+   * <p>Headers are added to the header table so that headers repeated in later
+   * blocks, like cookies and authorization tokens, can be sent as a one or two
+   * byte index. The writer mirrors the peer's header table: it evicts entries
+   * exactly as the reader does, so both must agree on {@link
+   * #maxHeaderTableByteCount}. Literal names and values are Huffman coded when
+   * that is shorter.
+   *
+   * <p>Each block starts by clearing the reference set so that the peer emits
+   * exactly the headers in the block. Headers sent as an index are emitted
+   * immediately; headers added to the table are emitted at the end of the
+   * block. To keep headers that share a name in order, once a name's header has
+   * been added to the table, later headers with that name are added too.
+   */
   static final class Writer {
+    private final Huffman.Codec huffmanCodec;
     private final OkBuffer out;
+    private int maxHeaderTableByteCount;
+
+    /** Dynamic entries, newest first. The entry at position 0 has index 1. */
+    private final Deque<Header> headerTable = new ArrayDeque<Header>();
+    private int headerTableByteCount = 0;
 
-    Writer(OkBuffer out) {
+    /** Count of entries ever inserted. The newest entry's sequence is this minus 1. */
+    private int insertCount = 0;
+
+    /** The sequence of the newest entry for each header and for each name. */
+    private final Map<Header, Integer> headerSequences = new HashMap<Header, Integer>();
+    private final Map<ByteString, Integer> nameSequences = new HashMap<ByteString, Integer>();
+
+    /** Headers in the peer's reference set. */
+    private final Set<Header> referencedHeaders = new HashSet<Header>();
+
+    /** Names of headers the peer will emit at the end of the current block. */
+    private final Set<ByteString> deferredNames = new HashSet<ByteString>();
+    private int deferredByteCount = 0;
+
+    Writer(boolean client, int maxHeaderTableByteCount, OkBuffer out) {
+      this.huffmanCodec = client ? Huffman.Codec.REQUEST : Huffman.Codec.RESPONSE;
+      this.maxHeaderTableByteCount = maxHeaderTableByteCount;
       this.out = out;
     }
 
+    int maxHeaderTableByteCount() {
+      return maxHeaderTableByteCount;
+    }
+
+    /**
+     * Called when the peer's header table size setting is acknowledged. Evicts
+     * entries or clears the table, as the peer's reader will.
+     */
+    void maxHeaderTableByteCount(int newMaxHeaderTableByteCount) {
+      this.maxHeaderTableByteCount = newMaxHeaderTableByteCount;
+      if (maxHeaderTableByteCount == 0) {
+        headerTable.clear();
+        headerSequences.clear();
+        nameSequences.clear();
+        referencedHeaders.clear();
+        headerTableByteCount = 0;
+      } else {
+        evictToRecoverBytes(headerTableByteCount - maxHeaderTableByteCount);
+      }
+    }
+
     void writeHeaders(List<Header> headerBlock) throws IOException {
-      // TODO: implement index tracking
+      if (!referencedHeaders.isEmpty()) {
+        out.writeByte(0x80); // Clear the reference set.
+        referencedHeaders.clear();
+      }
+      deferredNames.clear();
+      deferredByteCount = 0;
+
       for (int i = 0, size = headerBlock.size(); i < size; i++) {
-        ByteString name = headerBlock.get(i).name;
-        Integer staticIndex = NAME_TO_FIRST_INDEX.get(name);
-        if (staticIndex != null) {
-          // Literal Header Field without Indexing - Indexed Name.
-          writeInt(staticIndex + 1, PREFIX_6_BITS, 0x40);
-          writeByteString(headerBlock.get(i).value);
+        Header header = headerBlock.get(i);
+        Integer sequence = headerSequences.get(header);
+
+        if (sequence != null && !referencedHeaders.contains(header)
+            && !deferredNames.contains(header.name)) {
+          // Indexed Representation. The peer emits this header immediately.
+          writeInt(insertCount - sequence, PREFIX_7_BITS, 0x80);
+          referencedHeaders.add(header);
+        } else if (header.hpackSize <= maxHeaderTableByteCount - deferredByteCount) {
+          // This header fits without evicting a header that hasn't been emitted yet.
+          int staticIndex = staticHeaderIndex(header);
+          if (staticIndex != -1) {
+            // Indexed Representation of a static entry, which copies it to the header table.
+            writeInt(headerTable.size() + staticIndex + 1, PREFIX_7_BITS, 0x80);
+          } else {
+            int nameIndex = nameIndex(header.name);
+            if (nameIndex != -1) {
+              // Literal Header with Incremental Indexing - Indexed Name.
+              writeInt(nameIndex + 1, PREFIX_6_BITS, 0);
+            } else {
+              out.writeByte(0); // Literal Header with Incremental Indexing - New Name.
+              writeByteString(header.name);
+            }
+            writeByteString(header.value);
+          }
+          insertIntoHeaderTable(header);
         } else {
-          out.writeByte(0x40); // Literal Header without Indexing - New Name.
-          writeByteString(name);
-          writeByteString(headerBlock.get(i).value);
+          int nameIndex = nameIndex(header.name);
+          if (nameIndex != -1) {
+            // Literal Header without Indexing - Indexed Name.
+            writeInt(nameIndex + 1, PREFIX_6_BITS, 0x40);
+          } else {
+            out.writeByte(0x40); // Literal Header without Indexing - New Name.
+            writeByteString(header.name);
+          }
+          writeByteString(header.value);
+        }
+      }
+    }
+
+    /** Returns the 0-based index of {@code header} in the static table, or -1. */
+    private int staticHeaderIndex(Header header) {
+      Integer first = NAME_TO_FIRST_INDEX.get(header.name);
+      if (first == null) return -1;
+      for (int i = first; i < STATIC_HEADER_TABLE.length; i++) {
+        if (!STATIC_HEADER_TABLE[i].name.equals(header.name)) break;
+        if (STATIC_HEADER_TABLE[i].value.equals(header.value)) return i;
+      }
+      return -1;
+    }
+
+    /** Returns the 0-based index of an entry named {@code name}, or -1. */
+    private int nameIndex(ByteString name) {
+      Integer sequence = nameSequences.get(name);
+      if (sequence != null) return insertCount - 1 - sequence;
+      Integer staticIndex = NAME_TO_FIRST_INDEX.get(name);
+      if (staticIndex != null) return headerTable.size() + staticIndex;
+      return -1;
+    }
+
+    private void insertIntoHeaderTable(Header header) {
+      evictToRecoverBytes(headerTableByteCount + header.hpackSize - maxHeaderTableByteCount);
+      headerTable.addFirst(header);
+      headerTableByteCount += header.hpackSize;
+      headerSequences.put(header, insertCount);
+      nameSequences.put(header.name, insertCount);
+      insertCount++;
+      referencedHeaders.add(header);
+      deferredNames.add(header.name);
+      deferredByteCount += header.hpackSize;
+    }
+
+    private void evictToRecoverBytes(int bytesToRecover) {
+      while (bytesToRecover > 0) {
+        int sequence = insertCount - headerTable.size();
+        Header evicted = headerTable.removeLast();
+        bytesToRecover -= evicted.hpackSize;
+        headerTableByteCount -= evicted.hpackSize;
+        // Leave the maps alone if they point to a newer copy of the evicted entry.
+        Integer headerSequence = headerSequences.get(evicted);
+        if (headerSequence != null && headerSequence == sequence) {
+          headerSequences.remove(evicted);
+          referencedHeaders.remove(evicted);
         }
+        Integer nameSequence = nameSequences.get(evicted.name);
+        if (nameSequence != null && nameSequence == sequence) nameSequences.remove(evicted.name);
       }
     }
 
@@ -440,9 +589,16 @@ final class HpackDraft05 {
       out.writeByte(value);
     }
 
+    /** Writes {@code data}, Huffman coded if that's shorter. */
     void writeByteString(ByteString data) throws IOException {
-      writeInt(data.size(), PREFIX_7_BITS, 0);
-      out.write(data);
+      int huffmanLength = huffmanCodec.encodedLength(data);
+      if (huffmanLength < data.size()) {
+        writeInt(huffmanLength, PREFIX_7_BITS, 0x80);
+        huffmanCodec.encode(data, out);
+      } else {
+        writeInt(data.size(), PREFIX_7_BITS, 0);
+        out.write(data);
+      }
     }
   }
 }
@@ -230,10 +230,10 @@ public final class Http20Draft09 implements Variant {
         int id = w1 & 0xffffff;
         settings.set(id, 0, value);
       }
-      handler.settings(false, settings);
       if (settings.getHeaderTableSize() >= 0) {
         hpackReader.maxHeaderTableByteCount(settings.getHeaderTableSize());
       }
+      handler.settings(false, settings);
     }
 
     private void readPushPromise(Handler handler, short length, byte flags, int streamId)
@@ -292,14 +292,14 @@ public final class Http20Draft09 implements Variant {
     private final BufferedSink sink;
     private final boolean client;
     private final OkBuffer hpackBuffer;
-    private final HpackDraft05.Writer hpackWriter;
+    final HpackDraft05.Writer hpackWriter;
     private boolean closed;
 
     Writer(BufferedSink sink, boolean client) {
       this.sink = sink;
       this.client = client;
       this.hpackBuffer = new OkBuffer();
-      this.hpackWriter = new HpackDraft05.Writer(hpackBuffer);
+      this.hpackWriter = new HpackDraft05.Writer(client, 4096, hpackBuffer);
     }
 
     @Override public synchronized void flush() throws IOException {
@@ -307,8 +307,12 @@ public final class Http20Draft09 implements Variant {
       sink.flush();
     }
 
-    @Override public synchronized void ackSettings() throws IOException {
+    @Override public synchronized void ackSettings(Settings peerSettings) throws IOException {
       if (closed) throw new IOException("closed");
+      // The peer resized its reader's header table when it sent these settings.
+      if (peerSettings.getHeaderTableSize() >= 0) {
+        hpackWriter.maxHeaderTableByteCount(peerSettings.getHeaderTableSize());
+      }
       int length = 0;
       byte type = TYPE_SETTINGS;
       byte flags = FLAG_ACK;
@@ -15,10 +15,10 @@
  */
 package com.squareup.okhttp.internal.spdy;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.Arrays;
 import okio.ByteString;
+import okio.OkBuffer;
 
 /**
  * This class was originally composed from the following classes in
@@ -28,57 +28,79 @@ import okio.ByteString;
  * <li>{@code com.twitter.hpack.HuffmanDecoder}</li>
  * <li>{@code com.twitter.hpack.HpackUtil}</li>
  * </ul>
+ *
+ * <p>Decoding consumes 8 bits per step using a flat lookup table. The table
+ * holds 256 entries for each node of the code tree; each entry either names a
+ * child node or holds a decoded symbol and the number of bits its code used in
+ * this step.
  */
 class Huffman {
   enum Codec {
     REQUEST(REQUEST_CODES, REQUEST_CODE_LENGTHS),
     RESPONSE(RESPONSE_CODES, RESPONSE_CODE_LENGTHS);
 
-    private final Node root = new Node();
-    private final int[] codes;
-    private final byte[] lengths;
-
     /**
-     * @param codes Index designates the symbol this code represents.
-     * @param lengths Index designates the symbol this code represents.
+     * Decoding steps, 256 per tree node. The root's entries come first. A
+     * positive entry is a terminal: {@code symbol << 4 | bits}. A negative
+     * entry is {@code -offset} of a child node's entries. Zero is unassigned.
      */
+    private final int[] table;
+
+    /** The shortest code, used to size decoded output. */
+    private final int minLength;
+
+    /** Index designates the symbol this code represents. */
+    final int[] codes;
+
+    /** Index designates the symbol this code represents. */
+    final byte[] lengths;
+
     Codec(int[] codes, byte[] lengths) {
-      buildTree(codes, lengths);
+      this.table = buildTable(codes, lengths);
       this.codes = codes;
       this.lengths = lengths;
+      int min = Integer.MAX_VALUE;
+      for (byte length : lengths) {
+        min = Math.min(min, length);
+      }
+      this.minLength = min;
     }
 
-    void encode(byte[] data, OutputStream out) throws IOException {
+    /** Writes the Huffman encoding of {@code data} to {@code sink}. */
+    void encode(ByteString data, OkBuffer sink) {
       long current = 0;
       int n = 0;
 
-      for (int i = 0; i < data.length; i++) {
-        int b = data[i] & 0xFF;
-        int code = codes[b];
+      for (int i = 0, size = data.size(); i < size; i++) {
+        int b = data.getByte(i) & 0xFF;
         int nbits = lengths[b];
-
-        current <<= nbits;
-        current |= code;
+        current = (current << nbits) | codes[b];
         n += nbits;
 
-        while (n >= 8) {
-          n -= 8;
-          out.write(((int) (current >> n)));
+        // Codes are at most 32 bits, so current never holds more than 63 bits.
+        if (n >= 32) {
+          n -= 32;
+          sink.writeInt((int) (current >>> n));
         }
       }
 
+      while (n >= 8) {
+        n -= 8;
+        sink.writeByte((int) (current >>> n));
+      }
+
       if (n > 0) {
         current <<= (8 - n);
         current |= (0xFF >>> n);
-        out.write((int) current);
+        sink.writeByte((int) current);
       }
     }
 
-    int encodedLength(byte[] bytes) {
+    int encodedLength(ByteString bytes) {
       long len = 0;
 
-      for (int i = 0; i < bytes.length; i++) {
-        int b = bytes[i] & 0xFF;
+      for (int i = 0, size = bytes.size(); i < size; i++) {
+        int b = bytes.getByte(i) & 0xFF;
         len += lengths[b];
       }
 
@@ -90,104 +112,76 @@ class Huffman {
     }
 
     byte[] decode(byte[] buf) throws IOException {
-      // FIXME
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      Node node = root;
+      byte[] result = new byte[buf.length * 8 / minLength];
+      int resultSize = 0;
+      int[] table = this.table;
+      int node = 0;
       int current = 0;
       int nbits = 0;
       for (int i = 0; i < buf.length; i++) {
-        int b = buf[i] & 0xFF;
-        current = (current << 8) | b;
+        current = (current << 8) | (buf[i] & 0xFF);
         nbits += 8;
         while (nbits >= 8) {
-          int c = (current >>> (nbits - 8)) & 0xFF;
-          node = node.children[c];
-          if (node.children == null) {
-            // terminal node
-            baos.write(node.symbol);
-            nbits -= node.terminalBits;
-            node = root;
-          } else {
-            // non-terminal node
+          int entry = table[node + ((current >>> (nbits - 8)) & 0xFF)];
+          if (entry > 0) {
+            // terminal
+            result[resultSize++] = (byte) (entry >>> 4);
+            nbits -= entry & 0xF;
+            node = 0;
+          } else if (entry < 0) {
+            // non-terminal
             nbits -= 8;
+            node = -entry;
+          } else {
+            throw new IOException("invalid Huffman code");
           }
         }
       }
 
       while (nbits > 0) {
-        int c = (current << (8 - nbits)) & 0xFF;
-        node = node.children[c];
-        if (node.children != null || node.terminalBits > nbits) {
+        int entry = table[node + ((current << (8 - nbits)) & 0xFF)];
+        if (entry <= 0 || (entry & 0xF) > nbits) {
           break;
         }
-        baos.write(node.symbol);
-        nbits -= node.terminalBits;
-        node = root;
+        result[resultSize++] = (byte) (entry >>> 4);
+        nbits -= entry & 0xF;
+        node = 0;
       }
 
-      return baos.toByteArray();
+      return Arrays.copyOf(result, resultSize);
     }
 
-    private void buildTree(int[] codes, byte[] lengths) {
-      for (int i = 0; i < lengths.length; i++) {
-        addCode(i, codes[i], lengths[i]);
-      }
-    }
+    private static int[] buildTable(int[] codes, byte[] lengths) {
+      int[] table = new int[256];
+      int nodeCount = 1;
 
-    private void addCode(int sym, int code, byte len) {
-      Node terminal = new Node(sym, len);
+      for (int symbol = 0; symbol < lengths.length; symbol++) {
+        int code = codes[symbol];
+        int len = lengths[symbol];
 
-      Node current = root;
-      while (len > 8) {
-        len -= 8;
-        int i = ((code >>> len) & 0xFF);
-        if (current.children == null) {
-          throw new IllegalStateException("invalid dictionary: prefix not unique");
-        }
-        if (current.children[i] == null) {
-          current.children[i] = new Node();
+        int node = 0;
+        while (len > 8) {
+          len -= 8;
+          int i = node + ((code >>> len) & 0xFF);
+          if (table[i] > 0) {
+            throw new IllegalStateException("invalid dictionary: prefix not unique");
+          }
+          if (table[i] == 0) {
+            if (table.length == nodeCount * 256) table = Arrays.copyOf(table, table.length * 2);
+            table[i] = -(nodeCount++ * 256);
+          }
+          node = -table[i];
         }
-        current = current.children[i];
-      }
 
-      int shift = 8 - len;
-      int start = (code << shift) & 0xFF;
-      int end = 1 << shift;
-      for (int i = start; i < start + end; i++) {
-        current.children[i] = terminal;
+        int shift = 8 - len;
+        int start = node + ((code << shift) & 0xFF);
+        int end = start + (1 << shift);
+        for (int i = start; i < end; i++) {
+          table[i] = (symbol << 4) | len;
+        }
       }
-    }
-  }
-
-  private static final class Node {
 
-    // Null if terminal.
-    private final Node[] children;
-
-    // Terminal nodes have a symbol.
-    private final int symbol;
-
-    // Number of bits represented in the terminal node.
-    private final int terminalBits;
-
-    /** Construct an internal node. */
-    Node() {
-      this.children = new Node[256];
-      this.symbol = 0; // Not read.
-      this.terminalBits = 0; // Not read.
-    }
-
-    /**
-     * Construct a terminal node.
-     *
-     * @param symbol symbol the node represents
-     * @param bits length of Huffman code in bits
-     */
-    Node(int symbol, int bits) {
-      this.children = null;
-      this.symbol = symbol;
-      int b = bits & 0x07;
-      this.terminalBits = b == 0 ? 8 : b;
+      return Arrays.copyOf(table, nodeCount * 256);
     }
   }
 
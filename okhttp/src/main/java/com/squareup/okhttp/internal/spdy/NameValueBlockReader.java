@@ -1,5 +1,6 @@
 package com.squareup.okhttp.internal.spdy;
 
+import com.squareup.okhttp.internal.HeaderNames;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -82,7 +83,7 @@ class NameValueBlockReader {
 
     List<Header> entries = new ArrayList<Header>(numberOfPairs);
     for (int i = 0; i < numberOfPairs; i++) {
-      ByteString name = readByteString().toAsciiLowercase();
+      ByteString name = HeaderNames.internLowercase(readByteString().toAsciiLowercase());
       ByteString values = readByteString();
       if (name.size() == 0) throw new IOException("name.size == 0");
       entries.add(new Header(name, values));
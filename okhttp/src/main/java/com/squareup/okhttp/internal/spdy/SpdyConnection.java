@@ -33,11 +33,11 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.ByteString;
 import okio.OkBuffer;
 import okio.Okio;
+import okio.Sink;
 
 import static com.squareup.okhttp.internal.spdy.Settings.DEFAULT_INITIAL_WINDOW_SIZE;
 
@@ -49,6 +49,15 @@ import static com.squareup.okhttp.internal.spdy.Settings.DEFAULT_INITIAL_WINDOW_
  * completed before the method returns. This is typical for Java but atypical
  * for SPDY. This is motivated by exception transparency: an IOException that
  * was triggered by a certain caller can be caught and handled by that caller.
+ *
+ * <p>Frames are written by the calling thread, which flushes the socket after
+ * each frame. Connections {@link Builder#coalesceWrites built to coalesce
+ * writes} instead gather the frames of concurrent streams and write them in
+ * batches, trading a little latency for fewer socket writes.
+ *
+ * <p>Receive windows are fixed unless the connection is {@link
+ * Builder#autoTuneReceiveWindows built to tune them}, in which case they grow
+ * with the measured bandwidth-delay product of the link.
  */
 public final class SpdyConnection implements Closeable {
 
@@ -64,9 +73,10 @@ public final class SpdyConnection implements Closeable {
   // operations must synchronize on 'this' last. This ensures that we never
   // wait for a blocking operation while holding 'this'.
 
-  private static final ExecutorService executor = new ThreadPoolExecutor(0,
-      Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
-      Util.threadFactory("OkHttp SpdyConnection", true));
+  private static final ExecutorService executor = Util.VIRTUAL_THREADS
+      ? Util.newVirtualThreadExecutor("OkHttp SpdyConnection")
+      : new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp SpdyConnection", true));
 
   /** The protocol variant, like {@link com.squareup.okhttp.internal.spdy.Spdy3}. */
   final Protocol protocol;
@@ -99,6 +109,9 @@ public final class SpdyConnection implements Closeable {
   // Visible for testing
   long unacknowledgedBytesRead = 0;
 
+  /** Grows the receive windows, or null if they're fixed. */
+  final WindowTuner windowTuner;
+
   /**
    * Count of bytes that can be written on the connection before receiving a
    * window update.
@@ -120,6 +133,9 @@ public final class SpdyConnection implements Closeable {
   final FrameWriter frameWriter;
   final long maxFrameSize;
 
+  /** Batches frames for the socket, or null if each frame is written immediately. */
+  private final CoalescingSink coalescingSink;
+
   // Visible for testing
   final Reader readerRunnable;
 
@@ -135,9 +151,15 @@ public final class SpdyConnection implements Closeable {
     // If we are a client, set the flow control window to 16MiB.  This avoids
     // thrashing window updates every 64KiB, yet small enough to avoid blowing
     // up the heap.
-    if (builder.client) {
+    // Tuned windows start small and grow to fit the link instead.
+    if (builder.client && builder.maxConnectionWindow == 0) {
       okHttpSettings.set(Settings.INITIAL_WINDOW_SIZE, 0, 16 * 1024 * 1024);
     }
+    windowTuner = builder.maxConnectionWindow != 0
+        ? new WindowTuner(DEFAULT_INITIAL_WINDOW_SIZE,
+            okHttpSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE),
+            builder.maxConnectionWindow, builder.maxStreamWindow)
+        : null;
 
     hostName = builder.hostName;
 
@@ -150,12 +172,25 @@ public final class SpdyConnection implements Closeable {
       throw new AssertionError(protocol);
     }
     bytesLeftInWriteWindow = peerSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE);
-    frameReader = variant.newReader(builder.source, client);
-    frameWriter = variant.newWriter(builder.sink, client);
     maxFrameSize = variant.maxFrameSize();
 
+    Sink socketSink = builder.socketSink;
+    if (builder.maxBatchBytes > 0) {
+      coalescingSink = new CoalescingSink(socketSink, executor, hostName, builder.maxBatchBytes,
+          builder.maxBatchDelayNanos);
+      socketSink = coalescingSink;
+    } else {
+      coalescingSink = null;
+    }
+
+    frameReader = variant.newReader(builder.source, client);
+    frameWriter = variant.newWriter(Okio.buffer(socketSink), client);
     readerRunnable = new Reader();
-    new Thread(readerRunnable).start(); // Not a daemon thread.
+    if (Util.VIRTUAL_THREADS) {
+      Util.virtualThreadFactory("OkHttp SpdyConnection Reader").newThread(readerRunnable).start();
+    } else {
+      new Thread(readerRunnable).start(); // Not a daemon thread.
+    }
   }
 
   /** The protocol as selected using NPN or ALPN. */
@@ -171,6 +206,18 @@ public final class SpdyConnection implements Closeable {
     return streams.size();
   }
 
+  /**
+   * Returns a histogram of the sizes of the batches of frames written to the
+   * socket. Element {@code i} counts batches of {@code 2^i} through {@code
+   * 2^(i+1) - 1} bytes.
+   *
+   * @throws IllegalStateException if this connection doesn't coalesce writes.
+   */
+  public long[] writeBatchSizes() {
+    if (coalescingSink == null) throw new IllegalStateException("writes are not coalesced");
+    return coalescingSink.batchSizes();
+  }
+
   synchronized SpdyStream getStream(int id) {
     return streams.get(id);
   }
@@ -248,6 +295,7 @@ public final class SpdyConnection implements Closeable {
         if (stream.isOpen()) {
           streams.put(streamId, stream);
           setIdle(false);
+          if (windowTuner != null) windowTuner.streamOpened();
         }
       }
       if (associatedStreamId == 0) {
@@ -323,6 +371,46 @@ public final class SpdyConnection implements Closeable {
     if (delta > 0) SpdyConnection.this.notifyAll();
   }
 
+  /**
+   * Acknowledges {@code byteCount} bytes consumed by the application once
+   * enough have accumulated. If the windows are tuned, a window update may
+   * also start measuring the consumption rate.
+   */
+  void bytesConsumed(long byteCount) {
+    int pingId = 0;
+    Ping ping = null;
+    synchronized (this) {
+      unacknowledgedBytesRead += byteCount;
+      long windowUpdateThreshold = windowTuner != null
+          ? windowTuner.connectionWindow / 2
+          : peerSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE) / 2;
+      boolean windowUpdate = unacknowledgedBytesRead >= windowUpdateThreshold;
+
+      if (windowTuner != null && !shutdown && windowTuner.consumed(byteCount, windowUpdate)) {
+        ping = new Ping();
+        pingId = nextPingId;
+        nextPingId += 2;
+        if (pings == null) pings = new HashMap<Integer, Ping>();
+        pings.put(pingId, ping);
+        windowTuner.pingSent(pingId);
+      }
+
+      if (windowUpdate) {
+        writeWindowUpdateLater(0, unacknowledgedBytesRead);
+        unacknowledgedBytesRead = 0;
+      }
+    }
+    if (ping != null) {
+      writePingLater(false, pingId, 0x4f4b6f6b /* ASCII "OKok" */, ping);
+    }
+  }
+
+  /** Advertises the growth of the connection's window if {@code pingId} was measuring it. */
+  private synchronized void tuneReceiveWindows(int pingId) {
+    long growth = windowTuner.pingReceived(pingId);
+    if (growth > 0) writeWindowUpdateLater(0, growth);
+  }
+
   void writeSynResetLater(final int streamId, final ErrorCode errorCode) {
     executor.submit(new NamedRunnable("OkHttp %s stream %d", hostName, streamId) {
       @Override public void execute() {
@@ -493,7 +581,11 @@ public final class SpdyConnection implements Closeable {
   public static class Builder {
     private String hostName;
     private BufferedSource source;
-    private BufferedSink sink;
+    private Sink socketSink;
+    private long maxBatchBytes;
+    private long maxBatchDelayNanos;
+    private long maxConnectionWindow;
+    private long maxStreamWindow;
     private IncomingStreamHandler handler = IncomingStreamHandler.REFUSE_INCOMING_STREAMS;
     private Protocol protocol = Protocol.SPDY_3;
     private PushObserver pushObserver = PushObserver.CANCEL;
@@ -511,7 +603,7 @@ public final class SpdyConnection implements Closeable {
       this.hostName = hostName;
       this.client = client;
       this.source = Okio.buffer(Okio.source(socket.getInputStream()));
-      this.sink = Okio.buffer(Okio.sink(socket.getOutputStream()));
+      this.socketSink = Okio.sink(socket.getOutputStream());
     }
 
     public Builder handler(IncomingStreamHandler handler) {
@@ -529,6 +621,41 @@ public final class SpdyConnection implements Closeable {
       return this;
     }
 
+    /**
+     * Gathers the frames of concurrent streams into batches and writes each
+     * batch to the socket at once. A batch is written when it reaches {@code
+     * maxBatchBytes}, or {@code maxDelay} after the first frame that's ready
+     * to go. With a zero delay, a batch holds the frames that were written
+     * while the previous batch was being sent.
+     *
+     * <p>Flushing doesn't wait for the socket write; write failures are
+     * reported by later calls.
+     */
+    public Builder coalesceWrites(long maxBatchBytes, long maxDelay, TimeUnit unit) {
+      if (maxBatchBytes <= 0) throw new IllegalArgumentException("maxBatchBytes <= 0");
+      if (maxDelay < 0) throw new IllegalArgumentException("maxDelay < 0");
+      this.maxBatchBytes = maxBatchBytes;
+      this.maxBatchDelayNanos = unit.toNanos(maxDelay);
+      return this;
+    }
+
+    /**
+     * Grows the receive windows of the connection and its streams as the
+     * application consumes data, up to {@code maxConnectionWindow} and {@code
+     * maxStreamWindow} bytes. Windows start at the protocol's default and are
+     * sized to twice the bytes consumed during a ping's round trip.
+     */
+    public Builder autoTuneReceiveWindows(long maxConnectionWindow, long maxStreamWindow) {
+      if (maxConnectionWindow <= 0) throw new IllegalArgumentException("maxConnectionWindow <= 0");
+      if (maxStreamWindow <= 0) throw new IllegalArgumentException("maxStreamWindow <= 0");
+      if (maxConnectionWindow > Integer.MAX_VALUE || maxStreamWindow > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("windows must fit in 31 bits");
+      }
+      this.maxConnectionWindow = maxConnectionWindow;
+      this.maxStreamWindow = maxStreamWindow;
+      return this;
+    }
+
     public SpdyConnection build() {
       return new SpdyConnection(this);
     }
@@ -614,6 +741,7 @@ public final class SpdyConnection implements Closeable {
               inFinished, priority, headerBlock);
           lastGoodStreamId = streamId;
           streams.put(streamId, newStream);
+          if (windowTuner != null) windowTuner.streamOpened();
           executor.submit(new NamedRunnable("OkHttp %s stream %d", hostName, streamId) {
             @Override public void execute() {
               try {
@@ -658,7 +786,7 @@ public final class SpdyConnection implements Closeable {
         if (clearPrevious) peerSettings.clear();
         peerSettings.merge(newSettings);
         if (getProtocol() == Protocol.HTTP_2) {
-          ackSettingsLater();
+          ackSettingsLater(newSettings);
         }
         int peerInitialWindowSize = peerSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE);
         if (peerInitialWindowSize != -1 && peerInitialWindowSize != priorWriteWindowSize) {
@@ -681,11 +809,11 @@ public final class SpdyConnection implements Closeable {
       }
     }
 
-    private void ackSettingsLater() {
+    private void ackSettingsLater(final Settings peerSettings) {
       executor.submit(new NamedRunnable("OkHttp %s ACK Settings", hostName) {
         @Override public void execute() {
           try {
-            frameWriter.ackSettings();
+            frameWriter.ackSettings(peerSettings);
           } catch (IOException ignored) {
           }
         }
@@ -701,6 +829,7 @@ public final class SpdyConnection implements Closeable {
         Ping ping = removePing(payload1);
         if (ping != null) {
           ping.receive();
+          if (windowTuner != null) tuneReceiveWindows(payload1);
         }
       } else {
         // Send a reply to a client ping if this is a server and vice versa.
@@ -343,8 +343,12 @@ public final class SpdyStream {
     /** Buffer with readable data. Guarded by SpdyStream.this. */
     private final OkBuffer readBuffer = new OkBuffer();
 
-    /** Maximum number of bytes to buffer before reporting a flow control error. */
-    private final long maxByteCount;
+    /**
+     * Maximum number of bytes to buffer before reporting a flow control error.
+     * This is the stream's receive window, which grows if the connection tunes
+     * its windows. Guarded by SpdyStream.this.
+     */
+    private long maxByteCount;
 
     /** True if the caller has closed this stream. */
     private boolean closed;
@@ -374,22 +378,22 @@ public final class SpdyStream {
 
         // Flow control: notify the peer that we're ready for more data!
         unacknowledgedBytesRead += read;
-        if (unacknowledgedBytesRead
-            >= connection.peerSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE) / 2) {
-          connection.writeWindowUpdateLater(id, unacknowledgedBytesRead);
+        WindowTuner windowTuner = connection.windowTuner;
+        long windowUpdateThreshold = windowTuner != null
+            ? maxByteCount / 2
+            : connection.peerSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE) / 2;
+        if (unacknowledgedBytesRead >= windowUpdateThreshold) {
+          long growth = windowTuner != null
+              ? Math.max(0, windowTuner.streamWindow - maxByteCount)
+              : 0;
+          maxByteCount += growth;
+          connection.writeWindowUpdateLater(id, unacknowledgedBytesRead + growth);
           unacknowledgedBytesRead = 0;
         }
       }
 
       // Update connection.unacknowledgedBytesRead outside the stream lock.
-      synchronized (connection) { // Multiple application threads may hit this section.
-        connection.unacknowledgedBytesRead += read;
-        if (connection.unacknowledgedBytesRead
-            >= connection.peerSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE) / 2) {
-          connection.writeWindowUpdateLater(0, connection.unacknowledgedBytesRead);
-          connection.unacknowledgedBytesRead = 0;
-        }
-      }
+      connection.bytesConsumed(read);
 
       return read;
     }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.spdy;
+
+/**
+ * Sizes a connection's receive windows to the bandwidth-delay product of its
+ * link. A fixed window caps throughput at one window per round trip; this
+ * measures how many bytes the application consumes during the round trip of a
+ * ping, and when that's most of a window, grows the window to twice that.
+ *
+ * <p>A measurement starts only when the connection sends a window update, so
+ * each sample covers a significant fraction of the window and a slow stream
+ * doesn't ping for every read. Measuring pauses after several samples in a row
+ * grow neither window, since peers may treat frequent pings as abuse. It resumes
+ * when a stream is opened, because new streams may be limited where earlier
+ * streams were not.
+ *
+ * <p>Measuring consumption rather than arrival keeps a slow reader from growing
+ * windows it can't drain. Stream windows grow only as each stream sends its
+ * next window update, so streams that aren't being read keep small windows.
+ *
+ * <p>Guarded by the connection, except for {@link #streamWindow}, which streams
+ * read while holding their own locks.
+ */
+final class WindowTuner {
+  /** Measuring pauses after this many consecutive samples that don't grow a window. */
+  static final int MAX_UNPRODUCTIVE_SAMPLES = 3;
+
+  private final long maxConnectionWindow;
+  private final long maxStreamWindow;
+
+  /** The connection's receive window, as advertised to the peer. */
+  long connectionWindow;
+
+  /** The receive window that streams grow to with their next window update. */
+  volatile long streamWindow;
+
+  /** The ID of the ping that is measuring the round trip, or 0 if there's none. */
+  private int pingId;
+
+  /** Bytes consumed since the measuring ping was sent. */
+  private long sampleByteCount;
+
+  /** The number of consecutive samples that didn't grow either window. */
+  private int unproductiveSampleCount;
+
+  WindowTuner(long initialConnectionWindow, long initialStreamWindow,
+      long maxConnectionWindow, long maxStreamWindow) {
+    this.connectionWindow = initialConnectionWindow;
+    this.streamWindow = initialStreamWindow;
+    this.maxConnectionWindow = Math.max(maxConnectionWindow, initialConnectionWindow);
+    this.maxStreamWindow = Math.max(maxStreamWindow, initialStreamWindow);
+  }
+
+  /**
+   * Counts {@code byteCount} consumed bytes. Returns true if a measurement
+   * should start; the caller must send a ping and call {@link #pingSent}.
+   *
+   * @param windowUpdate true if the connection is sending a window update for
+   *     the consumed bytes.
+   */
+  boolean consumed(long byteCount, boolean windowUpdate) {
+    if (pingId != 0) {
+      sampleByteCount += byteCount;
+      return false;
+    }
+    return windowUpdate
+        && unproductiveSampleCount < MAX_UNPRODUCTIVE_SAMPLES
+        && (connectionWindow < maxConnectionWindow || streamWindow < maxStreamWindow);
+  }
+
+  /** Resumes measuring if it was paused. */
+  void streamOpened() {
+    unproductiveSampleCount = 0;
+  }
+
+  void pingSent(int pingId) {
+    this.pingId = pingId;
+    this.sampleByteCount = 0;
+  }
+
+  /**
+   * Completes the measurement if {@code pingId} is its ping. Returns the number
+   * of bytes the connection's window grew by, which must be advertised to the
+   * peer.
+   */
+  long pingReceived(int pingId) {
+    if (pingId != this.pingId) return 0;
+    this.pingId = 0;
+
+    // If a window nearly filled in one round trip, it's what's limiting throughput.
+    long target = 2 * sampleByteCount;
+    long streamWindow = this.streamWindow;
+    boolean grew = false;
+    if (sampleByteCount * 3 >= streamWindow * 2 && target > streamWindow
+        && streamWindow < maxStreamWindow) {
+      this.streamWindow = Math.min(target, maxStreamWindow);
+      grew = true;
+    }
+    long growth = 0;
+    if (sampleByteCount * 3 >= connectionWindow * 2 && target > connectionWindow) {
+      growth = Math.min(target, maxConnectionWindow) - connectionWindow;
+      connectionWindow += growth;
+    }
+    if (grew || growth > 0) {
+      unproductiveSampleCount = 0;
+    } else {
+      unproductiveSampleCount++;
+    }
+    return growth;
+  }
+}
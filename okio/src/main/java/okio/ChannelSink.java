@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static okio.Util.checkOffsetAndCount;
+
+/**
+ * A sink that writes to a blocking channel. This is a named class so that
+ * {@link Okio#transfer} can recognize it and write file regions directly to
+ * the channel.
+ */
+final class ChannelSink implements Sink {
+  final WritableByteChannel channel;
+  Deadline deadline = Deadline.NONE;
+
+  ChannelSink(WritableByteChannel channel) {
+    this.channel = channel;
+  }
+
+  @Override public void write(OkBuffer source, long byteCount) throws IOException {
+    checkOffsetAndCount(source.size, 0, byteCount);
+    while (byteCount > 0) {
+      deadline.throwIfReached();
+      Segment head = source.head;
+      int toCopy = (int) Math.min(byteCount, head.limit - head.pos);
+      ByteBuffer byteBuffer = ByteBuffer.wrap(head.data, head.pos, toCopy);
+      while (byteBuffer.hasRemaining()) {
+        channel.write(byteBuffer);
+      }
+
+      head.pos += toCopy;
+      byteCount -= toCopy;
+      source.size -= toCopy;
+
+      if (head.pos == head.limit) {
+        source.head = head.pop();
+        SegmentPool.INSTANCE.recycle(head);
+      }
+    }
+  }
+
+  @Override public void flush() throws IOException {
+  }
+
+  @Override public void close() throws IOException {
+    channel.close();
+  }
+
+  @Override public Sink deadline(Deadline deadline) {
+    if (deadline == null) throw new IllegalArgumentException("deadline == null");
+    this.deadline = deadline;
+    return this;
+  }
+
+  @Override public String toString() {
+    return "sink(" + channel + ")";
+  }
+}
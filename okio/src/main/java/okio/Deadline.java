@@ -33,6 +33,7 @@ public class Deadline {
     }
   };
 
+  private boolean hasDeadline;
   private long deadlineNanos;
 
   public Deadline() {
@@ -40,9 +41,26 @@ public class Deadline {
 
   public Deadline start(long timeout, TimeUnit unit) {
     deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+    hasDeadline = true;
     return this;
   }
 
+  /** Returns true if this deadline has been started. */
+  public boolean hasDeadline() {
+    return hasDeadline;
+  }
+
+  /**
+   * Returns the {@link System#nanoTime} value at which this deadline is
+   * reached.
+   *
+   * @throws IllegalStateException if this deadline hasn't been started.
+   */
+  public long deadlineNanoTime() {
+    if (!hasDeadline) throw new IllegalStateException("No deadline");
+    return deadlineNanos;
+  }
+
   public boolean reached() {
     return System.nanoTime() - deadlineNanos >= 0; // Subtract to avoid overflow!
   }
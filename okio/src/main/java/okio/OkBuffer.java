@@ -360,8 +360,14 @@ public final class OkBuffer implements BufferedSource, BufferedSink, Cloneable {
     return result;
   }
 
-  /** Like {@link InputStream#read}. */
-  int read(byte[] sink, int offset, int byteCount) {
+  /**
+   * Removes up to {@code byteCount} bytes from this and copies them into
+   * {@code sink} at {@code offset}. Returns the number of bytes copied, or -1
+   * if this buffer is empty. Like {@link InputStream#read}, this may copy fewer
+   * bytes than requested even if more are buffered.
+   */
+  public int read(byte[] sink, int offset, int byteCount) {
+    checkOffsetAndCount(sink.length, offset, byteCount);
     Segment s = this.head;
     if (s == null) return -1;
     int toCopy = Math.min(byteCount, s.limit - s.pos);
@@ -507,7 +513,7 @@ public final class OkBuffer implements BufferedSource, BufferedSink, Cloneable {
     }
 
     Segment tail = head.prev;
-    if (tail.limit + minimumCapacity > Segment.SIZE) {
+    if (tail.limit + minimumCapacity > Segment.SIZE || !tail.owner) {
       tail = tail.push(SegmentPool.INSTANCE.take()); // Append a new empty segment to fill up.
     }
     return tail;
@@ -573,16 +579,17 @@ public final class OkBuffer implements BufferedSource, BufferedSink, Cloneable {
       // Is a prefix of the source's head segment all that we need to move?
       if (byteCount < (source.head.limit - source.head.pos)) {
         Segment tail = head != null ? head.prev : null;
-        if (tail == null || byteCount + (tail.limit - tail.pos) > Segment.SIZE) {
-          // We're going to need another segment. Split the source's head
-          // segment in two, then move the first of those two to this buffer.
-          source.head = source.head.split((int) byteCount);
-        } else {
+        if (tail != null && tail.owner
+            && (byteCount + tail.limit - (tail.shared ? 0 : tail.pos) <= Segment.SIZE)) {
           // Our existing segments are sufficient. Move bytes from source's head to our tail.
           source.head.writeTo(tail, (int) byteCount);
           source.size -= byteCount;
           this.size += byteCount;
           return;
+        } else {
+          // We're going to need another segment. Split the source's head
+          // segment in two, then move the first of those two to this buffer.
+          source.head = source.head.split((int) byteCount);
         }
       }
 
@@ -730,16 +737,21 @@ public final class OkBuffer implements BufferedSource, BufferedSink, Cloneable {
     }
   }
 
-  /** Returns a deep copy of this buffer. */
+  /**
+   * Returns a deep copy of this buffer. The copy shares this buffer's segment
+   * byte arrays rather than copying them; neither buffer may change shared
+   * bytes, so changes to one buffer are not visible in the other.
+   */
   @Override public OkBuffer clone() {
     OkBuffer result = new OkBuffer();
-    if (size() == 0) return result;
+    if (size == 0) return result;
 
-    result.write(head.data, head.pos, head.limit - head.pos);
+    result.head = new Segment(head);
+    result.head.next = result.head.prev = result.head;
     for (Segment s = head.next; s != head; s = s.next) {
-      result.write(s.data, s.pos, s.limit - s.pos);
+      result.head.prev.push(new Segment(s));
     }
-
+    result.size = size;
     return result;
   }
 }
@@ -15,9 +15,13 @@
  */
 package okio;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import static okio.Util.checkOffsetAndCount;
 
@@ -33,6 +37,42 @@ public final class Okio {
     return new RealBufferedSink(sink);
   }
 
+  /**
+   * Returns the number of segments that buffers took from the shared segment
+   * pool without allocating.
+   */
+  public static long segmentPoolHitCount() {
+    return SegmentPool.INSTANCE.hitCount();
+  }
+
+  /**
+   * Returns the number of segments that buffers allocated because the shared
+   * segment pool was empty. If this is high, consider increasing the pool's
+   * capacity with the {@code okio.segmentPool.maxSize} and {@code
+   * okio.segmentPool.overflowMaxSize} system properties.
+   */
+  public static long segmentPoolMissCount() {
+    return SegmentPool.INSTANCE.missCount();
+  }
+
+  /**
+   * Returns the number of segments that buffers released to the garbage
+   * collector because the shared segment pool was full.
+   */
+  public static long segmentPoolOverflowCount() {
+    return SegmentPool.INSTANCE.overflowCount();
+  }
+
+  /**
+   * Returns the number of segments that buffers released to the garbage
+   * collector because the segment pool's stripes were in use by other threads.
+   * If this is high, consider increasing the number of stripes with the {@code
+   * okio.segmentPool.stripeCount} system property.
+   */
+  public static long segmentPoolContentionCount() {
+    return SegmentPool.INSTANCE.contentionCount();
+  }
+
   /** Copies bytes from {@code source} to {@code sink}. */
   public static void copy(OkBuffer source, long offset, long byteCount, OutputStream sink)
       throws IOException {
@@ -100,6 +140,103 @@ public final class Okio {
     };
   }
 
+  /**
+   * Returns a sink that writes to {@code channel}, which must be in blocking
+   * mode. Use {@link #transfer} to write file regions to this sink without
+   * copying them through its buffer.
+   */
+  public static Sink sink(WritableByteChannel channel) {
+    if (channel == null) throw new IllegalArgumentException("channel == null");
+    return new ChannelSink(channel);
+  }
+
+  /**
+   * Returns a source that reads from {@code channel}, starting at its current
+   * position.
+   */
+  public static Source source(final FileChannel channel) {
+    if (channel == null) throw new IllegalArgumentException("channel == null");
+    return new Source() {
+      private Deadline deadline = Deadline.NONE;
+
+      @Override public long read(OkBuffer sink, long byteCount) throws IOException {
+        if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
+        deadline.throwIfReached();
+        Segment tail = sink.writableSegment(1);
+        int maxToCopy = (int) Math.min(byteCount, Segment.SIZE - tail.limit);
+        int bytesRead = channel.read(ByteBuffer.wrap(tail.data, tail.limit, maxToCopy));
+        if (bytesRead == -1) return -1;
+        tail.limit += bytesRead;
+        sink.size += bytesRead;
+        return bytesRead;
+      }
+
+      @Override public void close() throws IOException {
+        channel.close();
+      }
+
+      @Override public Source deadline(Deadline deadline) {
+        if (deadline == null) throw new IllegalArgumentException("deadline == null");
+        this.deadline = deadline;
+        return this;
+      }
+
+      @Override public String toString() {
+        return "source(" + channel + ")";
+      }
+    };
+  }
+
+  /**
+   * Writes {@code byteCount} bytes of {@code source}, starting at {@code
+   * position}, to {@code sink}. This doesn't change the channel's position.
+   *
+   * <p>If {@code sink} buffers a sink returned by {@link
+   * #sink(WritableByteChannel)}, its buffered bytes are emitted and then the
+   * file region is written with {@link FileChannel#transferTo}. That lets the
+   * operating system move bytes from the file to a socket without copying them
+   * through this process. Otherwise the region is read directly into the
+   * sink's segments.
+   */
+  public static void transfer(FileChannel source, long position, long byteCount,
+      BufferedSink sink) throws IOException {
+    if (source == null) throw new IllegalArgumentException("source == null");
+    if (sink == null) throw new IllegalArgumentException("sink == null");
+    if ((position | byteCount) < 0) {
+      throw new IllegalArgumentException("position=" + position + " byteCount=" + byteCount);
+    }
+    if (position + byteCount > source.size()) throw new EOFException();
+
+    if (sink instanceof RealBufferedSink && ((RealBufferedSink) sink).sink instanceof ChannelSink) {
+      RealBufferedSink realBufferedSink = (RealBufferedSink) sink;
+      ChannelSink channelSink = (ChannelSink) realBufferedSink.sink;
+      OkBuffer buffer = realBufferedSink.buffer;
+      if (buffer.size > 0) channelSink.write(buffer, buffer.size);
+
+      while (byteCount > 0) {
+        channelSink.deadline.throwIfReached();
+        long transferred = source.transferTo(position, byteCount, channelSink.channel);
+        if (transferred == 0 && position >= source.size()) throw new EOFException();
+        position += transferred;
+        byteCount -= transferred;
+      }
+      return;
+    }
+
+    OkBuffer buffer = sink.buffer();
+    while (byteCount > 0) {
+      Segment tail = buffer.writableSegment(1);
+      int maxToCopy = (int) Math.min(byteCount, Segment.SIZE - tail.limit);
+      int bytesRead = source.read(ByteBuffer.wrap(tail.data, tail.limit, maxToCopy), position);
+      if (bytesRead == -1) throw new EOFException();
+      tail.limit += bytesRead;
+      buffer.size += bytesRead;
+      position += bytesRead;
+      byteCount -= bytesRead;
+      sink.emitCompleteSegments();
+    }
+  }
+
   /** Returns a source that reads from {@code in}. */
   public static Source source(final InputStream in) {
     return new Source() {
@@ -23,6 +23,13 @@ package okio;
  *
  * <p>Each segment in the pool is a singly-linked list node referencing the rest
  * of segments in the pool.
+ *
+ * <p>The underlying byte arrays of segments may be shared between buffers and
+ * byte strings. When a segment's byte array is shared the segment may not be
+ * recycled, nor may its byte data be changed. The lone exception is that the
+ * owner segment is allowed to append to the segment, writing data at {@code
+ * limit} and beyond. There is a single owning segment for each byte array.
+ * Positions, limits, prev, and next references are not shared.
  */
 final class Segment {
   /** The size of all segments in bytes. */
@@ -31,7 +38,13 @@ final class Segment {
   // TODO: Is 2 KiB a good default segment size?
   static final int SIZE = 2048;
 
-  final byte[] data = new byte[SIZE];
+  /**
+   * Segments will be shared when doing so avoids {@code arraycopy()} of this
+   * many bytes.
+   */
+  static final int SHARE_MINIMUM = 1024;
+
+  final byte[] data;
 
   /** The next byte of application data byte to read in this segment. */
   int pos;
@@ -39,12 +52,37 @@ final class Segment {
   /** The first byte of available data ready to be written to. */
   int limit;
 
+  /** True if other segments use the same byte array. */
+  boolean shared;
+
+  /** True if this segment owns the byte array and can append to it, extending {@code limit}. */
+  boolean owner;
+
   /** Next segment in a linked or circularly-linked list. */
   Segment next;
 
   /** Previous segment in a circularly-linked list. */
   Segment prev;
 
+  Segment() {
+    this.data = new byte[SIZE];
+    this.owner = true;
+    this.shared = false;
+  }
+
+  /**
+   * Returns a new segment that shares the bytes of {@code shareFrom}. Neither
+   * segment may change the shared bytes or be recycled.
+   */
+  Segment(Segment shareFrom) {
+    this.data = shareFrom.data;
+    this.pos = shareFrom.pos;
+    this.limit = shareFrom.limit;
+    this.owner = false;
+    this.shared = true;
+    shareFrom.shared = true;
+  }
+
   /**
    * Removes this segment of a circularly-linked list and returns its successor.
    * Returns null if the list is now empty.
@@ -76,31 +114,27 @@ final class Segment {
    * segment contains the data in {@code [pos+byteCount..limit)}. This can be
    * useful when moving partial segments from one OkBuffer to another.
    *
+   * <p>Large prefixes share this segment's byte array rather than copying it.
+   * Small prefixes are copied into a pooled segment, which is cheaper than
+   * pinning this segment's byte array.
+   *
    * <p>Returns the new head of the circularly-linked list.
    */
   public Segment split(int byteCount) {
-    int aSize = byteCount;
-    int bSize = (limit - pos) - byteCount;
-    if (aSize <= 0 || bSize <= 0) throw new IllegalArgumentException();
-
-    // Which side of the split is larger? We want to copy as few bytes as possible.
-    if (aSize < bSize) {
-      // Create a segment of size 'aSize' before this segment.
-      Segment before = SegmentPool.INSTANCE.take();
-      System.arraycopy(data, pos, before.data, before.pos, aSize);
-      pos += aSize;
-      before.limit += aSize;
-      prev.push(before);
-      return before;
+    if (byteCount <= 0 || byteCount >= limit - pos) throw new IllegalArgumentException();
+
+    Segment prefix;
+    if (byteCount >= SHARE_MINIMUM) {
+      prefix = new Segment(this);
     } else {
-      // Create a new segment of size 'bSize' after this segment.
-      Segment after = SegmentPool.INSTANCE.take();
-      System.arraycopy(data, pos + aSize, after.data, after.pos, bSize);
-      limit -= bSize;
-      after.limit += bSize;
-      push(after);
-      return this;
+      prefix = SegmentPool.INSTANCE.take();
+      System.arraycopy(data, pos, prefix.data, 0, byteCount);
     }
+
+    prefix.limit = prefix.pos + byteCount;
+    pos += byteCount;
+    prev.push(prefix);
+    return prefix;
   }
 
   /**
@@ -109,20 +143,24 @@ final class Segment {
    */
   public void compact() {
     if (prev == this) throw new IllegalStateException();
-    if ((prev.limit - prev.pos) + (limit - pos) > SIZE) return; // Cannot compact.
-    writeTo(prev, limit - pos);
+    if (!prev.owner) return; // Cannot compact: prev isn't writable.
+    int byteCount = limit - pos;
+    int availableByteCount = SIZE - prev.limit + (prev.shared ? 0 : prev.pos);
+    if (byteCount > availableByteCount) return; // Cannot compact: not enough writable space.
+    writeTo(prev, byteCount);
     pop();
     SegmentPool.INSTANCE.recycle(this);
   }
 
-  /** Moves {@code byteCount} bytes from {@code sink} to this segment. */
+  /** Moves {@code byteCount} bytes from this segment to {@code sink}. */
   // TODO: if sink has fewer bytes than this, it may be cheaper to reverse the
   //       direction of the copy and swap the segments!
   public void writeTo(Segment sink, int byteCount) {
-    if (byteCount + (sink.limit - sink.pos) > SIZE) throw new IllegalArgumentException();
-
+    if (!sink.owner) throw new IllegalArgumentException();
     if (sink.limit + byteCount > SIZE) {
-      // We can't fit byteCount bytes at the sink's current position. Compact sink first.
+      // We can't fit byteCount bytes at the sink's current position. Shift sink first.
+      if (sink.shared) throw new IllegalArgumentException();
+      if (sink.limit + byteCount - sink.pos > SIZE) throw new IllegalArgumentException();
       System.arraycopy(sink.data, sink.pos, sink.data, 0, sink.limit - sink.pos);
       sink.limit -= sink.pos;
       sink.pos = 0;
@@ -15,47 +15,212 @@
  */
 package okio;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * A collection of unused segments, necessary to avoid GC churn and zero-fill.
  * This pool is a thread-safe static singleton.
+ *
+ * <p>To avoid contention, the pool is split into stripes and each thread uses
+ * the stripe selected by its thread ID. Segments that don't fit in a full
+ * stripe spill into a shared overflow stripe, which is also consulted when a
+ * thread's own stripe is empty.
+ *
+ * <p>Each stripe is a singly-linked list that is guarded by swapping a {@link
+ * #LOCK} sentinel into its head. Threads never wait for that lock: a thread
+ * that finds a stripe locked skips it. Taking then allocates a new segment;
+ * recycling tries the next stripe, and lets the segment be garbage collected
+ * only if that is unavailable too. The head segment's {@code limit} holds the
+ * number of bytes in its list.
  */
 final class SegmentPool {
-  static final SegmentPool INSTANCE = new SegmentPool();
+  /**
+   * The maximum number of bytes to pool in each stripe. Configure with the
+   * {@code okio.segmentPool.maxSize} system property.
+   */
+  static final long MAX_SIZE = segmentAlignedProperty("okio.segmentPool.maxSize", 64 * 1024);
+
+  /**
+   * The maximum number of bytes to pool in the shared overflow stripe.
+   * Configure with the {@code okio.segmentPool.overflowMaxSize} system property.
+   */
+  static final long OVERFLOW_MAX_SIZE
+      = segmentAlignedProperty("okio.segmentPool.overflowMaxSize", 256 * 1024);
+
+  /**
+   * The number of thread stripes. This is a power of two, by default the
+   * smallest one that is at least the number of available processors.
+   * Configure with the {@code okio.segmentPool.stripeCount} system property.
+   */
+  static final int STRIPE_COUNT = powerOfTwoProperty("okio.segmentPool.stripeCount",
+      Runtime.getRuntime().availableProcessors());
 
-  /** The maximum number of bytes to pool. */
-  // TODO: Is 64 KiB a good maximum size? Do we ever have that many idle segments?
-  static final long MAX_SIZE = 64 * 1024; // 64 KiB.
+  /** A sentinel head that marks a stripe as in use by another thread. */
+  private static final Segment LOCK = new Segment();
 
-  /** Singly-linked list of segments. */
-  private Segment next;
+  /** Results of {@link Stripe#recycle}. */
+  private static final int RECYCLED = 0;
+  private static final int FULL = 1;
+  private static final int BUSY = 2;
 
-  /** Total bytes in this pool. */
-  long byteCount;
+  static final SegmentPool INSTANCE = new SegmentPool();
+
+  private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+  private final Stripe overflow = new Stripe(OVERFLOW_MAX_SIZE);
 
   private SegmentPool() {
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe(MAX_SIZE);
+    }
   }
 
   Segment take() {
-    synchronized (this) {
-      if (next != null) {
-        Segment result = next;
-        next = result.next;
-        result.next = null;
-        byteCount -= Segment.SIZE;
-        return result;
-      }
+    Stripe stripe = stripe();
+    Segment result = stripe.take();
+    if (result == null) result = overflow.take();
+    if (result == null) {
+      stripe.missCount.incrementAndGet();
+      return new Segment(); // Pool is empty.
     }
-    return new Segment(); // Pool is empty. Don't zero-fill while holding a lock.
+    stripe.hitCount.incrementAndGet();
+    return result;
   }
 
   void recycle(Segment segment) {
     if (segment.next != null || segment.prev != null) throw new IllegalArgumentException();
-    synchronized (this) {
-      if (byteCount + Segment.SIZE > MAX_SIZE) return; // Pool is full.
-      byteCount += Segment.SIZE;
-      segment.next = next;
-      segment.pos = segment.limit = 0;
-      next = segment;
+    if (segment.shared) return; // This segment cannot be recycled.
+    int index = stripeIndex();
+    Stripe stripe = stripes[index];
+    int result = stripe.recycle(segment);
+    boolean busy = result == BUSY;
+    if (busy) result = stripes[(index + 1) & (STRIPE_COUNT - 1)].recycle(segment);
+    if (result == RECYCLED) return;
+    result = overflow.recycle(segment);
+    if (result == RECYCLED) return;
+    if (busy || result == BUSY) {
+      stripe.contentionCount.incrementAndGet(); // Stripes are in use.
+    } else {
+      stripe.overflowCount.incrementAndGet(); // Pool is full.
+    }
+  }
+
+  /**
+   * Returns the number of bytes pooled in the current thread's stripe and in
+   * the overflow stripe. These are the bytes the current thread may take
+   * without allocating.
+   */
+  long byteCount() {
+    return stripe().byteCount() + overflow.byteCount();
+  }
+
+  /** Returns the number of segments that were taken from the pool. */
+  long hitCount() {
+    long result = 0;
+    for (Stripe stripe : stripes) {
+      result += stripe.hitCount.get();
+    }
+    return result;
+  }
+
+  /** Returns the number of segments that were allocated because the pool was empty. */
+  long missCount() {
+    long result = 0;
+    for (Stripe stripe : stripes) {
+      result += stripe.missCount.get();
+    }
+    return result;
+  }
+
+  /** Returns the number of segments that were discarded because the pool was full. */
+  long overflowCount() {
+    long result = 0;
+    for (Stripe stripe : stripes) {
+      result += stripe.overflowCount.get();
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of segments that were discarded because the stripes
+   * that could hold them were in use by other threads.
+   */
+  long contentionCount() {
+    long result = 0;
+    for (Stripe stripe : stripes) {
+      result += stripe.contentionCount.get();
+    }
+    return result;
+  }
+
+  private Stripe stripe() {
+    return stripes[stripeIndex()];
+  }
+
+  private static int stripeIndex() {
+    return (int) (Thread.currentThread().getId() & (STRIPE_COUNT - 1));
+  }
+
+  private static long segmentAlignedProperty(String name, long defaultValue) {
+    long value = Long.getLong(name, defaultValue);
+    if (value < 0 || value > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(name + " out of range: " + value);
+    }
+    return value - (value % Segment.SIZE);
+  }
+
+  private static int powerOfTwoProperty(String name, int defaultValue) {
+    int value = Integer.getInteger(name, defaultValue);
+    if (value < 1) throw new IllegalArgumentException(name + " < 1: " + value);
+    int result = Integer.highestOneBit(value);
+    return result == value ? result : result << 1;
+  }
+
+  private static final class Stripe {
+    final AtomicReference<Segment> head = new AtomicReference<Segment>();
+    final AtomicLong hitCount = new AtomicLong();
+    final AtomicLong missCount = new AtomicLong();
+    final AtomicLong overflowCount = new AtomicLong();
+    final AtomicLong contentionCount = new AtomicLong();
+    final long maxSize;
+
+    Stripe(long maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    /** Returns a pooled segment, or null if this stripe is empty or busy. */
+    Segment take() {
+      Segment first = head.getAndSet(LOCK);
+      if (first == LOCK) return null; // Another thread holds the stripe.
+      if (first == null) {
+        head.set(null);
+        return null;
+      }
+      head.set(first.next);
+      first.next = null;
+      first.limit = 0;
+      return first;
+    }
+
+    /** Adds {@code segment} to this stripe and returns {@link #RECYCLED}, or returns why not. */
+    int recycle(Segment segment) {
+      Segment first = head.getAndSet(LOCK);
+      if (first == LOCK) return BUSY; // Another thread holds the stripe.
+      int firstLimit = first != null ? first.limit : 0;
+      if (firstLimit + Segment.SIZE > maxSize) {
+        head.set(first);
+        return FULL;
+      }
+      segment.next = first;
+      segment.pos = 0;
+      segment.limit = firstLimit + Segment.SIZE;
+      head.set(segment);
+      return RECYCLED;
+    }
+
+    long byteCount() {
+      Segment first = head.get();
+      return first != null && first != LOCK ? first.limit : 0;
     }
   }
 }
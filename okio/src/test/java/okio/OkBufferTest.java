@@ -15,14 +15,21 @@
  */
 package okio;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.Test;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -117,27 +124,80 @@ public final class OkBufferTest {
 
   @Test public void fillAndDrainPool() throws Exception {
     OkBuffer buffer = new OkBuffer();
+    int capacity = (int) (SegmentPool.MAX_SIZE + SegmentPool.OVERFLOW_MAX_SIZE);
 
-    // Take 2 * MAX_SIZE segments. This will drain the pool, even if other tests filled it.
-    buffer.write(new byte[(int) SegmentPool.MAX_SIZE]);
-    buffer.write(new byte[(int) SegmentPool.MAX_SIZE]);
-    assertEquals(0, SegmentPool.INSTANCE.byteCount);
+    // Take 2 * capacity segments. This will drain the pool, even if other tests filled it.
+    buffer.write(new byte[capacity]);
+    buffer.write(new byte[capacity]);
+    assertEquals(0, SegmentPool.INSTANCE.byteCount());
 
-    // Recycle MAX_SIZE segments. They're all in the pool.
-    buffer.readByteString(SegmentPool.MAX_SIZE);
-    assertEquals(SegmentPool.MAX_SIZE, SegmentPool.INSTANCE.byteCount);
+    // Recycle capacity segments. They're all in the pool.
+    buffer.readByteString(capacity);
+    assertEquals(capacity, SegmentPool.INSTANCE.byteCount());
 
-    // Recycle MAX_SIZE more segments. The pool is full so they get garbage collected.
-    buffer.readByteString(SegmentPool.MAX_SIZE);
-    assertEquals(SegmentPool.MAX_SIZE, SegmentPool.INSTANCE.byteCount);
+    // Recycle capacity more segments. The pool is full so they get garbage collected.
+    buffer.readByteString(capacity);
+    assertEquals(capacity, SegmentPool.INSTANCE.byteCount());
 
-    // Take MAX_SIZE segments to drain the pool.
-    buffer.write(new byte[(int) SegmentPool.MAX_SIZE]);
-    assertEquals(0, SegmentPool.INSTANCE.byteCount);
+    // Take capacity segments to drain the pool.
+    buffer.write(new byte[capacity]);
+    assertEquals(0, SegmentPool.INSTANCE.byteCount());
 
-    // Take MAX_SIZE more segments. The pool is drained so these will need to be allocated.
-    buffer.write(new byte[(int) SegmentPool.MAX_SIZE]);
-    assertEquals(0, SegmentPool.INSTANCE.byteCount);
+    // Take capacity more segments. The pool is drained so these will need to be allocated.
+    buffer.write(new byte[capacity]);
+    assertEquals(0, SegmentPool.INSTANCE.byteCount());
+  }
+
+  @Test public void poolCounters() throws Exception {
+    OkBuffer buffer = new OkBuffer();
+    int capacity = (int) (SegmentPool.MAX_SIZE + SegmentPool.OVERFLOW_MAX_SIZE);
+    int segmentCount = capacity / Segment.SIZE;
+
+    // Drain the pool, then fill it and overflow it by one segment.
+    buffer.write(new byte[capacity]);
+    long hitCount = Okio.segmentPoolHitCount();
+    long missCount = Okio.segmentPoolMissCount();
+    long overflowCount = Okio.segmentPoolOverflowCount();
+    buffer.write(new byte[capacity + Segment.SIZE]);
+    assertEquals(missCount + segmentCount + 1, Okio.segmentPoolMissCount());
+    buffer.clear();
+    assertEquals(overflowCount + segmentCount + 1, Okio.segmentPoolOverflowCount());
+
+    // Taking from the full pool is all hits.
+    buffer.write(new byte[capacity]);
+    assertEquals(hitCount + segmentCount, Okio.segmentPoolHitCount());
+    assertEquals(missCount + segmentCount + 1, Okio.segmentPoolMissCount());
+    buffer.clear();
+  }
+
+  @Test public void poolNeverSharesSegmentsAcrossThreads() throws Exception {
+    final Set<Segment> inUse = Collections.newSetFromMap(new ConcurrentHashMap<Segment, Boolean>());
+    final AtomicBoolean failed = new AtomicBoolean();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 8; t++) {
+      threads.add(new Thread() {
+        @Override public void run() {
+          Segment[] segments = new Segment[64];
+          for (int i = 0; i < 1000; i++) {
+            for (int s = 0; s < segments.length; s++) {
+              segments[s] = SegmentPool.INSTANCE.take();
+              if (!inUse.add(segments[s])) failed.set(true);
+            }
+            for (int s = 0; s < segments.length; s++) {
+              inUse.remove(segments[s]);
+              SegmentPool.INSTANCE.recycle(segments[s]);
+            }
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertFalse(failed.get());
   }
 
   @Test public void moveBytesBetweenBuffersShareSegment() throws Exception {
@@ -428,6 +488,21 @@ public final class OkBufferTest {
     assertEquals(0, data.size());
   }
 
+  @Test public void readByteArrayStopsAtSegmentBoundary() throws Exception {
+    OkBuffer data = new OkBuffer();
+    data.writeUtf8(repeat('a', Segment.SIZE - 1));
+    data.writeUtf8("bcd");
+    byte[] sink = new byte[Segment.SIZE + 10];
+    assertEquals(Segment.SIZE, data.read(sink, 1, Segment.SIZE + 9));
+    assertEquals(0, sink[0]);
+    assertEquals('a', sink[Segment.SIZE - 1]);
+    assertEquals('b', sink[Segment.SIZE]);
+    assertEquals(2, data.read(sink, 0, sink.length));
+    assertEquals('c', sink[0]);
+    assertEquals('d', sink[1]);
+    assertEquals(-1, data.read(sink, 0, sink.length));
+  }
+
   @Test public void readShort() throws Exception {
     OkBuffer data = new OkBuffer();
     data.write(new byte[] {
@@ -615,6 +690,62 @@ public final class OkBufferTest {
         clone.readUtf8(Segment.SIZE * 6));
   }
 
+  @Test public void cloneSharesSegments() throws Exception {
+    OkBuffer original = new OkBuffer();
+    original.writeUtf8("abc");
+    OkBuffer clone = original.clone();
+    assertSame(original.head.data, clone.head.data);
+
+    // Both buffers may append without observing each other's writes.
+    original.writeUtf8("def");
+    clone.writeUtf8("xyz");
+    assertEquals("abcdef", original.readUtf8(6));
+    assertEquals("abcxyz", clone.readUtf8(6));
+  }
+
+  @Test public void sharedSegmentsAreNotRecycled() throws Exception {
+    OkBuffer original = new OkBuffer();
+    original.writeUtf8(repeat('a', Segment.SIZE * 2));
+    OkBuffer clone = original.clone();
+
+    // Drain the pool so that we can observe whether the shared segments are recycled.
+    OkBuffer drain = new OkBuffer();
+    drain.write(new byte[(int) (SegmentPool.MAX_SIZE + SegmentPool.OVERFLOW_MAX_SIZE)]);
+    original.clear();
+    assertEquals(0, SegmentPool.INSTANCE.byteCount());
+    assertEquals(repeat('a', Segment.SIZE * 2), clone.readUtf8(Segment.SIZE * 2));
+    drain.clear();
+  }
+
+  @Test public void moveLargePrefixSharesSegment() throws Exception {
+    OkBuffer source = new OkBuffer();
+    source.writeUtf8(repeat('a', Segment.SIZE));
+    OkBuffer sink = new OkBuffer();
+    sink.writeUtf8(repeat('b', Segment.SIZE - 1));
+
+    sink.write(source, Segment.SHARE_MINIMUM);
+    assertSame(source.head.data, sink.head.prev.data);
+    assertEquals(asList(Segment.SIZE - 1, Segment.SHARE_MINIMUM), sink.segmentSizes());
+    assertEquals(asList(Segment.SIZE - Segment.SHARE_MINIMUM), source.segmentSizes());
+
+    // Writes to the sink may not clobber the source's bytes.
+    sink.writeUtf8("c");
+    assertEquals(repeat('b', Segment.SIZE - 1) + repeat('a', Segment.SHARE_MINIMUM) + "c",
+        sink.readUtf8(sink.size()));
+    assertEquals(repeat('a', Segment.SIZE - Segment.SHARE_MINIMUM), source.readUtf8(source.size()));
+  }
+
+  @Test public void moveSmallPrefixCopiesSegment() throws Exception {
+    OkBuffer source = new OkBuffer();
+    source.writeUtf8(repeat('a', Segment.SIZE));
+    OkBuffer sink = new OkBuffer();
+    sink.writeUtf8(repeat('b', Segment.SIZE - 1));
+
+    sink.write(source, Segment.SHARE_MINIMUM - 1);
+    assertNotSame(source.head.data, sink.head.prev.data);
+    assertEquals(asList(Segment.SIZE - 1, Segment.SHARE_MINIMUM - 1), sink.segmentSizes());
+  }
+
   @Test public void testEqualsAndHashCodeEmpty() throws Exception {
     OkBuffer a = new OkBuffer();
     OkBuffer b = new OkBuffer();
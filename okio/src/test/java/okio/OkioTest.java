@@ -17,8 +17,16 @@ package okio;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
 import static okio.Util.UTF_8;
@@ -26,6 +34,16 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 public final class OkioTest {
+  private File file;
+
+  @Before public void setUp() throws Exception {
+    file = File.createTempFile("OkioTest", "tmp");
+  }
+
+  @After public void tearDown() throws Exception {
+    file.delete();
+  }
+
   @Test public void sinkFromOutputStream() throws Exception {
     OkBuffer data = new OkBuffer();
     data.writeUtf8("a");
@@ -73,6 +91,99 @@ public final class OkioTest {
     }
   }
 
+  @Test public void sinkFromChannel() throws Exception {
+    OkBuffer data = new OkBuffer();
+    data.writeUtf8("a");
+    data.writeUtf8(repeat('b', 9998));
+    data.writeUtf8("c");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Sink sink = Okio.sink(Channels.newChannel(out));
+    sink.write(data, 3);
+    assertEquals("abb", out.toString("UTF-8"));
+    sink.write(data, data.size());
+    assertEquals("a" + repeat('b', 9998) + "c", out.toString("UTF-8"));
+  }
+
+  @Test public void sourceFromFileChannel() throws Exception {
+    writeFile("a" + repeat('b', Segment.SIZE * 2) + "c");
+    FileChannel channel = new FileInputStream(file).getChannel();
+
+    // Source: ab...bc
+    Source source = Okio.source(channel);
+    OkBuffer sink = new OkBuffer();
+
+    // Source: b...bc. Sink: abb.
+    assertEquals(3, source.read(sink, 3));
+    assertEquals("abb", sink.readUtf8(3));
+
+    // Source: b...bc. Sink: b...b.
+    assertEquals(Segment.SIZE, source.read(sink, 20000));
+    assertEquals(repeat('b', Segment.SIZE), sink.readUtf8(sink.size()));
+
+    // Source: b...bc. Sink: b...bc.
+    assertEquals(Segment.SIZE - 1, source.read(sink, 20000));
+    assertEquals(repeat('b', Segment.SIZE - 2) + "c", sink.readUtf8(sink.size()));
+
+    // Source and sink are empty.
+    assertEquals(-1, source.read(sink, 1));
+    source.close();
+  }
+
+  @Test public void transferToChannelSink() throws Exception {
+    writeFile("abc" + repeat('d', 10000) + "e");
+    FileChannel channel = new FileInputStream(file).getChannel();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BufferedSink sink = Okio.buffer(Okio.sink(Channels.newChannel(out)));
+
+    // Buffered bytes are written before the transferred bytes.
+    sink.writeUtf8("z");
+    Okio.transfer(channel, 2, 10001, sink);
+    sink.writeUtf8("z");
+    sink.flush();
+    assertEquals("zc" + repeat('d', 10000) + "z", out.toString("UTF-8"));
+    assertEquals(0, channel.position());
+    channel.close();
+  }
+
+  @Test public void transferSmallRegionToBuffer() throws Exception {
+    writeFile("abc" + repeat('d', 10000) + "e");
+    FileChannel channel = new FileInputStream(file).getChannel();
+    OkBuffer sink = new OkBuffer();
+    Okio.transfer(channel, 2, 10001, sink);
+    assertEquals("c" + repeat('d', 10000), sink.readUtf8(sink.size()));
+    channel.close();
+  }
+
+  @Test public void transferLargeRegionToStreamSink() throws Exception {
+    int byteCount = Segment.SIZE * 40 + 1;
+    writeFile("a" + repeat('b', byteCount) + "c");
+    FileChannel channel = new FileInputStream(file).getChannel();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BufferedSink sink = Okio.buffer(Okio.sink(out));
+    Okio.transfer(channel, 1, byteCount, sink);
+    sink.flush();
+    assertEquals(repeat('b', byteCount), out.toString("UTF-8"));
+    channel.close();
+  }
+
+  @Test public void transferBeyondEndOfFile() throws Exception {
+    writeFile("abc");
+    FileChannel channel = new FileInputStream(file).getChannel();
+    try {
+      Okio.transfer(channel, 1, 3, new OkBuffer());
+      fail();
+    } catch (EOFException expected) {
+    }
+    channel.close();
+  }
+
+  private void writeFile(String content) throws Exception {
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(content.getBytes(UTF_8));
+    out.close();
+  }
+
   private String repeat(char c, int count) {
     char[] array = new char[count];
     Arrays.fill(array, c);